@@ -0,0 +1,380 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Renders a zoom animation without any window: a run of frames going smoothly from one set of bounds to another,
+ * saved as numbered PNG files, or written to standard output as raw frames for a video encoder to read (e.g.
+ * "ffmpeg -f rawvideo -pix_fmt rgb24 -s WIDTHxHEIGHT -r 30 -i - zoom.mp4").
+ *
+ * The zoom is exponential, so it looks like the same speed all the way in: each frame is the one before it scaled by
+ * the same factor, about the one point that stays put between the start and the end.
+ *
+ * Each frame starts from the one before it, through a FrameReprojection: counts that land exactly on the new frame's
+ * pixels are used as they are, and with --max-error, so are counts up to that many pixels out (keeping track of how
+ * far out each one is, so that it never drifts further than that over the frames). Everything else is calculated
+ * with the divide-and-conquer scan (or whichever --scan we're given), across all the threads. While one frame is
+ * calculated, the ones before it are colored, compressed and written by a couple more threads, so the cores aren't
+ * left waiting for the PNG encoder.
+ *
+ * Smooth zooms hardly ever put a new pixel exactly where an old one was, so without --max-error there is very little
+ * to reuse. With it, the reused pixels are drawn a little off from where they should be (at most that many pixels),
+ * which mostly shows as a slight fuzz along the edges; 0.45 reuses about a third of the pixels.
+ *
+ * Usage: java RecursiveFractalRunner --animate --from minRe,minIm,maxRe,maxIm --to minRe,minIm,maxRe,maxIm
+ *                                    --frames N --size WIDTHxHEIGHT [--max-count N] [--palette NAME]
+ *                                    [--threads N] [--scan NAME] [--max-error PIXELS] (--out FRAME%05d.png | --raw)
+ */
+public class AnimationRenderer
+{
+    // how many frames may be waiting to be written at once.
+    private static final int FRAMES_IN_FLIGHT = 2;
+
+    private final ComplexRange from, to;
+    private final int frames, width, height;
+    private final MandelbrotKernel kernel;
+    private final Palette palette;
+    private final int threads;
+    private final double maxError;
+    private int scanMode = FractalScanner.MODE_DIVIDE_AND_CONQUER;
+
+    /**
+     * @param from - the bounds of the first frame
+     * @param to - the bounds of the last frame
+     * @param frames - how many frames, including the first and last
+     * @param width - the width of each frame, in pixels
+     * @param height - the height of each frame, in pixels
+     * @param maxCount - the most steps to try for each point
+     * @param palette - the colors to use
+     * @param threads - how many threads to calculate with
+     * @param maxError - how far out (in pixels) a count carried over from the frame before may be; 0 for exact only
+     */
+    public AnimationRenderer(ComplexRange from, ComplexRange to, int frames, int width, int height, int maxCount,
+                             Palette palette, int threads, double maxError)
+    {
+        int maxDimension = HeadlessRenderer.MAX_DIMENSION;
+        if (width < 1 || height < 1 || width > maxDimension || height > maxDimension)
+            throw new IllegalArgumentException("Image size must be between 1x1 and "+maxDimension+"x"+maxDimension+
+                                               ".");
+        if (frames < 1)
+            throw new IllegalArgumentException("An animation needs at least one frame.");
+        if (maxError < 0 || maxError >= 1)
+            throw new IllegalArgumentException("The error allowed must be at least 0, and less than a pixel.");
+        this.from = from;
+        this.to = to;
+        this.frames = frames;
+        this.width = width;
+        this.height = height;
+        this.kernel = new MandelbrotKernel(maxCount, MandelbrotKernel.DEFAULT_THRESHOLD_SQUARED, true, true);
+        this.palette = palette;
+        this.threads = threads;
+        this.maxError = maxError;
+    }
+
+    /**
+     * @param scanMode - which scan to calculate the frames with (one of FractalScanner's MODE_ constants)
+     */
+    public void setScanMode(int scanMode) {this.scanMode = scanMode;}
+
+    /**
+     * @return the bounds of the given frame, along the exponential path from the first frame to the last.
+     */
+    public ComplexRange getFrameBounds(int frame)
+    {
+        if (frame == 0)
+            return from;
+        if (frame == frames-1)
+            return to;
+        double t = frame/(double)(frames-1);
+        BigComplex fromMin = from.getPreciseMin(), fromMax = from.getPreciseMax();
+        BigComplex toMin = to.getPreciseMin(), toMax = to.getPreciseMax();
+        BigDecimal[] real = interpolate(fromMin.getReal(), fromMax.getReal(), toMin.getReal(), toMax.getReal(), t);
+        BigDecimal[] imaginary = interpolate(fromMin.getImaginary(), fromMax.getImaginary(),
+                                             toMin.getImaginary(), toMax.getImaginary(), t);
+        return new ComplexRange(new BigComplex(real[0], imaginary[0]), new BigComplex(real[1], imaginary[1]));
+    }
+
+    /**
+     * works out one axis of a frame's bounds, t of the way (0 to 1) from the first frame to the last. Between the two,
+     * the span shrinks (or grows) by the same factor every step, and everything moves towards (or away from) the one
+     * point that is in the same place in both frames, so the zoom never seems to drift sideways.
+     * @return {min, max} along that axis.
+     */
+    private static BigDecimal[] interpolate(BigDecimal fromMin, BigDecimal fromMax, BigDecimal toMin, BigDecimal toMax,
+                                            double t)
+    {
+        BigDecimal fromSpan = fromMax.subtract(fromMin), toSpan = toMax.subtract(toMin);
+        MathContext mc = BigComplex.contextForPitch(Math.min(fromSpan.abs().doubleValue(),
+                                                             toSpan.abs().doubleValue()));
+        BigDecimal tDecimal = new BigDecimal(t);
+        if (fromSpan.compareTo(toSpan) == 0 || fromSpan.signum() == 0)
+        {
+            // no zoom, just a pan: move in a straight line.
+            return new BigDecimal[] {fromMin.add(toMin.subtract(fromMin).multiply(tDecimal, mc), mc),
+                                     fromMax.add(toMax.subtract(fromMax).multiply(tDecimal, mc), mc)};
+        }
+        BigDecimal ratio = toSpan.divide(fromSpan, mc);
+        // the point that stays put: fixed = (toMin - ratio*fromMin) / (1 - ratio).
+        BigDecimal fixed = toMin.subtract(ratio.multiply(fromMin, mc), mc).divide(BigDecimal.ONE.subtract(ratio), mc);
+        // (the scale only needs to be as precise as a double; its rounding moves the frame by a tiny fraction of its
+        // own size.)
+        BigDecimal scale = new BigDecimal(Math.pow(ratio.doubleValue(), t));
+        return new BigDecimal[] {fixed.add(fromMin.subtract(fixed).multiply(scale, mc), mc),
+                                 fixed.add(fromMax.subtract(fixed).multiply(scale, mc), mc)};
+    }
+
+    /**
+     * a scanner that takes whatever counts it can from the frame before, and only calculates the rest.
+     */
+    private static class SeededScanner extends FractalScanner
+    {
+        private final FrameReprojection seed;
+
+        public SeededScanner(FractalView view, EscapeCountBuffer counts, ForkJoinPool pool, FrameReprojection seed)
+        {
+            super(view, counts, pool);
+            this.seed = seed;
+        }
+
+        @Override
+        protected int countAt(int x, int y)
+        {
+            if (seed.isExact(x, y))
+                return seed.getCount(x, y);
+            return view.countAt(x, y);
+        }
+
+        @Override
+        protected void countPixels(int[] xs, int[] ys, int[] pixelCounts, int length)
+        {
+            // (the same as the panel's scanner: batch up the pixels we don't have yet.)
+            int[] needXs = new int[length];
+            int[] needYs = new int[length];
+            int[] needIndex = new int[length];
+            int needed = 0;
+            for (int i = 0; i < length; i++)
+            {
+                if (seed.isExact(xs[i], ys[i]))
+                    pixelCounts[i] = seed.getCount(xs[i], ys[i]);
+                else
+                {
+                    needXs[needed] = xs[i];
+                    needYs[needed] = ys[i];
+                    needIndex[needed] = i;
+                    needed++;
+                }
+            }
+            int[] neededCounts = new int[needed];
+            super.countPixels(needXs, needYs, neededCounts, needed);
+            for (int i = 0; i < needed; i++)
+                pixelCounts[needIndex[i]] = neededCounts[i];
+        }
+    }
+
+    /**
+     * calculates every frame, and hands each one (in order) to the output.
+     * @param pngPattern - the file name for each frame, as a String.format() pattern given the frame number (e.g.
+     *                   "zoom%05d.png"), or null to write raw frames to rawOut instead
+     * @param rawOut - where to write the raw frames (3 bytes per pixel, red, green, blue, row by row, one frame after
+     *               another), if pngPattern is null
+     */
+    public void render(String pngPattern, OutputStream rawOut) throws IOException
+    {
+        int[] colors = palette.buildTable(kernel.getMaxCount());
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ExecutorService writers = Executors.newFixedThreadPool(FRAMES_IN_FLIGHT);
+        ArrayDeque<Future<byte[]>> waiting = new ArrayDeque<Future<byte[]>>();
+        FractalView lastView = null;
+        EscapeCountBuffer lastCounts = null;
+        float[] lastErrors = null;
+        long start = System.currentTimeMillis(), reused = 0;
+        try
+        {
+            for (int frame = 0; frame < frames; frame++)
+            {
+                FractalView view = new FractalView(getFrameBounds(frame), width, height, kernel);
+                EscapeCountBuffer counts = new EscapeCountBuffer(width, height);
+                FrameReprojection seed = null;
+                if (lastView != null)
+                    seed = new FrameReprojection(lastView, lastCounts, lastErrors, scanMode, view, scanMode, maxError);
+                FractalScanner scanner = seed == null ? new FractalScanner(view, counts, pool)
+                                                      : new SeededScanner(view, counts, pool, seed);
+                scanner.scan(scanMode);
+                int reusedHere = seed == null ? 0 : seed.getExactCount();
+                reused += reusedHere;
+                lastView = view;
+                lastCounts = counts;
+                lastErrors = seed == null ? null : seed.getErrors();
+
+                // color and write it while we get on with the next one, but don't get too far ahead.
+                int number = frame;
+                waiting.add(writers.submit(() -> colorFrame(counts, colors, number, pngPattern)));
+                while (waiting.size() > FRAMES_IN_FLIGHT)
+                    writeRaw(waiting.poll().get(), rawOut);
+                System.err.println("Calculated frame "+(frame+1)+" of "+frames+" (reused "+
+                                   reusedHere*100L/((long)width*height)+"% of its pixels).");
+            }
+            while (!waiting.isEmpty())
+                writeRaw(waiting.poll().get(), rawOut);
+            if (rawOut != null)
+                rawOut.flush();
+            System.err.println("Rendered "+frames+" frames in "+(System.currentTimeMillis()-start)+" ms, reusing "+
+                               reused*100/((long)width*height*frames)+"% of the pixels.");
+        } catch (InterruptedException e)
+        {
+            throw new IOException("Rendering was interrupted.", e);
+        } catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Rendering failed.", e);
+        } finally
+        {
+            pool.shutdownNow();
+            writers.shutdownNow();
+        }
+    }
+
+    /**
+     * colors a finished frame, and either writes it as a PNG (returning null) or returns it as raw bytes.
+     */
+    private byte[] colorFrame(EscapeCountBuffer counts, int[] colors, int frame, String pngPattern)
+        throws IOException
+    {
+        int[] countArray = counts.getCounts();
+        if (pngPattern != null)
+        {
+            int[] rgb = new int[countArray.length];
+            for (int i = 0; i < rgb.length; i++)
+                rgb[i] = colors[countArray[i]];
+            PngStripWriter png = new PngStripWriter(new BufferedOutputStream(
+                new FileOutputStream(String.format(pngPattern, frame)), 1<<16), width, height);
+            png.writeRows(rgb, height);
+            png.finish();
+            return null;
+        }
+        byte[] raw = new byte[countArray.length*3];
+        for (int i = 0; i < countArray.length; i++)
+        {
+            int color = colors[countArray[i]];
+            raw[i*3] = (byte)(color >> 16);
+            raw[i*3 + 1] = (byte)(color >> 8);
+            raw[i*3 + 2] = (byte)color;
+        }
+        return raw;
+    }
+
+    private static void writeRaw(byte[] raw, OutputStream rawOut) throws IOException
+    {
+        if (raw != null)
+            rawOut.write(raw);
+    }
+
+    /**
+     * the animation's entry point: reads the settings from the command line (see the usage above), and renders
+     * every frame.
+     */
+    public static void main(String[] args)
+    {
+        System.setProperty("java.awt.headless", "true");
+        ComplexRange from = null, to = null;
+        int frames = 0, width = 640, height = 480, maxCount = 1024;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double maxError = 0;
+        Palette palette = Palette.getStandardPalettes()[0];
+        String pngPattern = null;
+        boolean raw = false;
+        int scanMode = FractalScanner.MODE_DIVIDE_AND_CONQUER;
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                switch (args[i])
+                {
+                    case "--animate":
+                        break;
+                    case "--from":
+                        from = HeadlessRenderer.parseBounds(args[++i]);
+                        break;
+                    case "--to":
+                        to = HeadlessRenderer.parseBounds(args[++i]);
+                        break;
+                    case "--frames":
+                        frames = Integer.parseInt(args[++i]);
+                        break;
+                    case "--size":
+                        String[] size = args[++i].toLowerCase().split("x");
+                        width = Integer.parseInt(size[0]);
+                        height = Integer.parseInt(size[1]);
+                        break;
+                    case "--max-count":
+                        maxCount = HeadlessRenderer.parseMaxCount(args[++i]);
+                        break;
+                    case "--palette":
+                        palette = Palette.forName(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--scan":
+                        scanMode = parseScanMode(args[++i]);
+                        break;
+                    case "--max-error":
+                        maxError = Double.parseDouble(args[++i]);
+                        break;
+                    case "--out":
+                        pngPattern = args[++i];
+                        break;
+                    case "--raw":
+                        raw = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: "+args[i]);
+                }
+            }
+            if (from == null || to == null)
+                throw new IllegalArgumentException("The animation needs the bounds to start --from and go --to.");
+            if ((pngPattern == null) == !raw)
+                throw new IllegalArgumentException("Give one of --out (a file name pattern) or --raw.");
+            if (pngPattern != null)
+                String.format(pngPattern, 0); // (check the pattern now, rather than after the first frame.)
+            AnimationRenderer renderer = new AnimationRenderer(from, to, frames, width, height, maxCount, palette,
+                                                               threads, maxError);
+            renderer.setScanMode(scanMode);
+            renderer.render(pngPattern, raw ? new BufferedOutputStream(System.out, 1<<16) : null);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e)
+        {
+            System.err.println("Problem with the command line: "+e.getMessage());
+            System.err.println("Usage: --animate --from minRe,minIm,maxRe,maxIm --to minRe,minIm,maxRe,maxIm " +
+                               "--frames N --size WIDTHxHEIGHT [--max-count N] [--palette NAME] [--threads N] " +
+                               "[--scan NAME] [--max-error PIXELS] (--out FRAME%05d.png | --raw)");
+            System.exit(1);
+        } catch (IOException ioExp)
+        {
+            System.err.println("Problem writing the animation.");
+            ioExp.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the MODE_ constant for a scan's name (as in FractalScanner.MODE_NAMES, with - or _ for the spaces if
+     * you like, in any case).
+     */
+    private static int parseScanMode(String name)
+    {
+        for (int mode = 0; mode < FractalScanner.MODE_NAMES.length; mode++)
+            if (FractalScanner.MODE_NAMES[mode].equalsIgnoreCase(name.replace('-', ' ').replace('_', ' ')))
+                return mode;
+        throw new IllegalArgumentException("Unknown scan: "+name);
+    }
+}
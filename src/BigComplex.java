@@ -0,0 +1,100 @@
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * A complex number whose parts are BigDecimals, for places where a double doesn't have enough digits - the bounds
+ * of a deep zoom, and the reference orbit that the deep-zoom renderer iterates.
+ */
+public class BigComplex
+{
+    private final BigDecimal real, imaginary;
+
+    public BigComplex(BigDecimal re, BigDecimal img)
+    {
+        real = re;
+        imaginary = img;
+    }
+
+    /**
+     * makes a BigComplex with exactly the same value as the given (double-based) Complex.
+     */
+    public BigComplex(Complex c)
+    {
+        this(new BigDecimal(c.getReal()), new BigDecimal(c.getImaginary()));
+    }
+
+    public BigDecimal getReal()
+    {
+        return real;
+    }
+
+    public BigDecimal getImaginary()
+    {
+        return imaginary;
+    }
+
+    /**
+     * @return the closest (double-based) Complex to this number.
+     */
+    public Complex toComplex()
+    {
+        return new Complex(real.doubleValue(), imaginary.doubleValue());
+    }
+
+    public String toString()
+    {
+        if (imaginary.signum() >= 0)
+            return "("+real.toString()+" + "+imaginary.toString()+"i)";
+        return "("+real.toString()+" - "+imaginary.abs().toString()+"i)";
+    }
+
+    public BigComplex plus(BigComplex other, MathContext mc)
+    {
+        return new BigComplex(real.add(other.real, mc), imaginary.add(other.imaginary, mc));
+    }
+
+    public BigComplex times(BigComplex other, MathContext mc)
+    {
+        return new BigComplex(real.multiply(other.real, mc).subtract(imaginary.multiply(other.imaginary, mc), mc),
+                              real.multiply(other.imaginary, mc).add(imaginary.multiply(other.real, mc), mc));
+    }
+
+    public BigComplex squared(MathContext mc)
+    {
+        return this.times(this, mc);
+    }
+
+    /**
+     * two BigComplex numbers are equal if they have the same value, even if they are written with different numbers
+     * of digits (so 1.50 equals 1.5).
+     */
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        BigComplex that = (BigComplex) o;
+        return real.compareTo(that.real) == 0 && imaginary.compareTo(that.imaginary) == 0;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31*real.stripTrailingZeros().hashCode() + imaginary.stripTrailingZeros().hashCode();
+    }
+
+    /**
+     * picks how many significant digits we need to work with for a view whose pixels are the given distance
+     * apart: enough to tell neighboring pixels apart, with plenty to spare for the rounding that builds up
+     * over many iterations.
+     * @param pixelPitch - the distance between neighboring pixels on the complex plane
+     * @return a MathContext with that many digits.
+     */
+    public static MathContext contextForPitch(double pixelPitch)
+    {
+        int digits = 20;
+        if (pixelPitch > 0)
+            digits += Math.max(0, (int)Math.ceil(-Math.log10(pixelPitch)));
+        return new MathContext(digits);
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * The escape-time calculation for the Burning Ship fractal: the Mandelbrot set, except that before each squaring
+ * both parts of z are made positive, z -> (|zr| + i|zi|)^2 + c. That one change turns the smooth bulbs into
+ * jagged flames, with a "ship" sitting on them near c = -1.75.
+ *
+ * The usual pictures of it have the imaginary axis pointing down the screen, which we don't, so we subtract ci
+ * rather than adding it; that flips the picture top to bottom, and the ship comes out the right way up.
+ * Otherwise this works just like MandelbrotKernel, with the periodicity check but no cardioid/bulb shortcut (the
+ * ship has no cardioid).
+ */
+public final class BurningShipKernel implements FractalKernel
+{
+    private final int maxCount;
+    private final double thresholdSquared;
+    private final boolean periodicityChecks;
+
+    /**
+     * @param maxCount - the most steps to take before deciding a point is in the set
+     * @param thresholdSquared - how far (squared) z must get from the origin to count as escaped
+     * @param periodicityChecks - whether to watch for z repeating itself (see MandelbrotKernel)
+     */
+    public BurningShipKernel(int maxCount, double thresholdSquared, boolean periodicityChecks)
+    {
+        this.maxCount = maxCount;
+        this.thresholdSquared = thresholdSquared;
+        this.periodicityChecks = periodicityChecks;
+    }
+
+    public String getName() {return "Burning Ship";}
+    public int getMaxCount() {return maxCount;}
+    public double getThresholdSquared() {return thresholdSquared;}
+
+    public int countStepsToExit(double cr, double ci)
+    {
+        return Math.max(iterate(cr, ci, null, 0, null, 0), 0);
+    }
+
+    public void countStepsToExit(double[] cr, double[] ci, int[] counts, int length)
+    {
+        for (int i = 0; i < length; i++)
+            counts[i] = Math.max(iterate(cr[i], ci[i], null, 0, null, i), 0);
+    }
+
+    public void countStepsToExit(double[] cr, double[] ci, int[] counts, float[] fractions, int length)
+    {
+        for (int i = 0; i < length; i++)
+            counts[i] = Math.max(iterate(cr[i], ci[i], null, 0, fractions, i), 0);
+    }
+
+    public int continueStepsToExit(double cr, double ci, double[] z, int fromCount)
+    {
+        return iterate(cr, ci, z, fromCount, null, 0);
+    }
+
+    public void continueStepsToExit(double[] cr, double[] ci, double[] zr, double[] zi, int fromCount, int[] results,
+                                    float[] fractions, int length)
+    {
+        double[] z = new double[2];
+        for (int i = 0; i < length; i++)
+        {
+            z[0] = zr[i];
+            z[1] = zi[i];
+            results[i] = iterate(cr[i], ci[i], z, fromCount, fractions, i);
+            zr[i] = z[0];
+            zi[i] = z[1];
+        }
+    }
+
+    /**
+     * no distance estimate here: taking the absolute values means z has no derivative with respect to c to follow.
+     */
+    public double estimateDistance(double cr, double ci) {return Double.NaN;}
+
+    /**
+     * the same normalized iteration count as MandelbrotKernel's; taking the absolute values doesn't change how
+     * fast |z| grows.
+     */
+    public float smoothFraction(double modulusSquared)
+    {
+        if (thresholdSquared <= 1)
+            return 0;
+        double fraction = 1 - Math.log(Math.log(modulusSquared) / Math.log(thresholdSquared)) / Math.log(2);
+        if (fraction < 0)
+            return 0;
+        return fraction < 1 ? (float)fraction : Math.nextDown(1f);
+    }
+
+    /**
+     * the loop behind all of the public methods: steps one point from fromCount up to maxCount.
+     * @param cr - the real part of c
+     * @param ci - the imaginary part of c
+     * @param z - {zr, zi} after fromCount steps (ignored if fromCount is zero); if the point is STILL_GOING, this
+     *          receives where it got to. May be null, if fromCount is zero and we don't need to know.
+     * @param fromCount - how many steps the point has already taken
+     * @param fractions - if not null, fractions[index] receives the point's smooth-coloring fraction if it escapes.
+     * @param index - where this point goes in fractions
+     * @return the count, if the point escaped, or else PROVEN_INSIDE or STILL_GOING.
+     */
+    private int iterate(double cr, double ci, double[] z, int fromCount, float[] fractions, int index)
+    {
+        double zr = 0, zi = 0;
+        if (fromCount > 0)
+        {
+            zr = z[0];
+            zi = z[1];
+        }
+        double zr2 = zr*zr, zi2 = zi*zi;
+        double savedR = zr, savedI = zi;
+        int stepsUntilSave = 1, saveInterval = 1;
+        for (int count = fromCount; count < maxCount; count++)
+        {
+            zi = 2*Math.abs(zr*zi) - ci;
+            zr = zr2 - zi2 + cr;
+            zr2 = zr*zr;
+            zi2 = zi*zi;
+            if (zr2 + zi2 > thresholdSquared)
+            {
+                if (fractions != null)
+                    fractions[index] = smoothFraction(zr2 + zi2);
+                return count;
+            }
+            if (periodicityChecks)
+            {
+                if (zr == savedR && zi == savedI)
+                    return PROVEN_INSIDE;
+                if (--stepsUntilSave == 0)
+                {
+                    savedR = zr;
+                    savedI = zi;
+                    saveInterval *= 2;
+                    stepsUntilSave = saveInterval;
+                }
+            }
+        }
+        if (z != null)
+        {
+            z[0] = zr;
+            z[1] = zi;
+        }
+        return STILL_GOING;
+    }
+}
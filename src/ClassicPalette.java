@@ -0,0 +1,23 @@
+/**
+ * The original coloring for this program: red, green and blue each bounce back and forth between 0 and 255, at
+ * different speeds, so neighboring counts get similar colors.
+ */
+public class ClassicPalette extends Palette
+{
+    public ClassicPalette()
+    {
+        super("Classic");
+    }
+
+    @Override
+    public int colorForCount(int count)
+    {
+        if (count == 0)
+            return packRGB(0, 0, 0);
+        int c1 = 5*count;
+        int c2 = count/8;
+        return packRGB((1-(count/256)%2)*(255-count%256)+(count/256)%2*(count%256),
+                       (1-(c1/256)%2)*(c1%256)+(c1/256)%2*(255-c1%256),
+                       (1-(c2/256)%2)*(c2%256)+(c2/256)%2*(255-c1%256));
+    }
+}
@@ -0,0 +1,229 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Everything about how a frame's escape counts become colors: the palette's lookup table, plus
+ * - color cycling: every count's color is shifted along the palette by cycleOffset, so stepping the offset makes
+ *   the colors flow through the picture, without calculating anything.
+ * - histogram equalization: rather than giving each count the palette's color for that count, we give it the
+ *   color for its rank among all the counts in the frame. The colors then get used evenly, even where nearly
+ *   every pixel has a count between, say, 200 and 230.
+ * - smooth coloring: each pixel's color is blended between the colors for its count and the next, by its
+ *   fraction (see EscapeCountBuffer), so there are no bands.
+ * A ColorMapping never changes; the with...() methods make a new one.
+ *
+ * Cycling and equalization both just say which palette entry each count gets, so for a given frame they roll up
+ * into a single lookup table (see buildFrameTable()); coloring a pixel is then one or two array lookups, however
+ * the colors are set up. That's quick enough to recolor a whole frame every time the colors change, rather than
+ * calculating it again.
+ */
+public class ColorMapping
+{
+    // colorFrame() gives each task at least this many rows.
+    private static final int ROWS_PER_TASK = 16;
+
+    private final int[] paletteTable;
+    private final int cycleOffset;
+    private final boolean equalized, smooth;
+
+    /**
+     * @param paletteTable - a palette's lookup table (see Palette.buildTable()), with one entry for each count from
+     *                     0 to maxCount.
+     */
+    public ColorMapping(int[] paletteTable)
+    {
+        this(paletteTable, 0, false, false);
+    }
+
+    private ColorMapping(int[] paletteTable, int cycleOffset, boolean equalized, boolean smooth)
+    {
+        this.paletteTable = paletteTable;
+        this.cycleOffset = cycleOffset;
+        this.equalized = equalized;
+        this.smooth = smooth;
+    }
+
+    public ColorMapping withPaletteTable(int[] table) {return new ColorMapping(table, cycleOffset, equalized, smooth);}
+    public ColorMapping withCycleOffset(int offset) {return new ColorMapping(paletteTable, offset, equalized, smooth);}
+    public ColorMapping withEqualization(boolean enable) {return new ColorMapping(paletteTable, cycleOffset, enable, smooth);}
+    public ColorMapping withSmoothing(boolean enable) {return new ColorMapping(paletteTable, cycleOffset, equalized, enable);}
+
+    public int[] getPaletteTable() {return paletteTable;}
+    public int getCycleOffset() {return cycleOffset;}
+    public boolean isEqualized() {return equalized;}
+    public boolean isSmooth() {return smooth;}
+
+    /**
+     * @return the largest count the palette table covers.
+     */
+    public int getMaxCount() {return paletteTable.length - 1;}
+
+    /**
+     * @return which palette entry the given palette position lands on, after cycling. Zero (inside the set) never
+     * moves; the other entries go round and round from 1 to maxCount.
+     */
+    private int cycle(int index)
+    {
+        int maxCount = getMaxCount();
+        if (index == 0 || maxCount < 1)
+            return index;
+        return 1 + Math.floorMod(index - 1 + cycleOffset, maxCount);
+    }
+
+    /**
+     * the color for a single count, with cycling but not equalization (which needs a whole frame to rank it in).
+     * @param count - a count from 0 to maxCount
+     * @return the packed RGB color for it.
+     */
+    public int colorForCount(int count)
+    {
+        return paletteTable[cycle(count)];
+    }
+
+    /**
+     * rolls cycling and (if it's on) equalization into one table: the color for each count, in this frame.
+     * @param counts - the frame's counts, to rank the counts in for equalization. If this is null (say, the frame
+     *               isn't finished yet, so the ranks would keep changing), we leave equalization out.
+     * @return an array of length maxCount+1, where table[count] is the color for that count.
+     */
+    public int[] buildFrameTable(EscapeCountBuffer counts)
+    {
+        int maxCount = getMaxCount();
+        int[] table = new int[maxCount+1];
+        if (!equalized || counts == null)
+        {
+            for (int count = 0; count <= maxCount; count++)
+                table[count] = colorForCount(count);
+            return table;
+        }
+        // count how many pixels have each count (zero is inside the set, so it doesn't get ranked), and then give
+        // each count the palette entry as far along the palette as it is along the pixels, ranked by count.
+        long[] cumulative = new long[maxCount+1];
+        // (this is the one part that isn't split among threads, but it's a single quick pass over the counts.)
+        for (int count : counts.getCounts())
+            if (count > 0 && count <= maxCount)
+                cumulative[count]++;
+        for (int count = 1; count <= maxCount; count++)
+            cumulative[count] += cumulative[count-1];
+        long escaped = cumulative[maxCount];
+        table[0] = colorForCount(0);
+        for (int count = 1; count <= maxCount; count++)
+        {
+            int index = escaped == 0 ? count : 1 + (int)((maxCount-1) * cumulative[count] / escaped);
+            table[count] = colorForCount(index);
+        }
+        return table;
+    }
+
+    /**
+     * @return the color for a pixel with the given count and fraction, using a table from buildFrameTable().
+     */
+    public int color(int[] frameTable, int count, float fraction)
+    {
+        if (!smooth || count <= 0 || count >= frameTable.length-1 || fraction <= 0)
+            return frameTable[count];
+        return blend(frameTable[count], frameTable[count+1], fraction);
+    }
+
+    /**
+     * @return the color the given fraction of the way from color a to color b. The fraction is turned into 256ths,
+     * so that red and blue can be blended together in one multiplication, and green in another.
+     */
+    private static int blend(int a, int b, float fraction)
+    {
+        int weight = (int)(fraction * 256);
+        int redBlue = ((a & 0xFF00FF)*(256-weight) + (b & 0xFF00FF)*weight) >>> 8;
+        int green = ((a & 0x00FF00)*(256-weight) + (b & 0x00FF00)*weight) >>> 8;
+        return 0xFF000000 | (redBlue & 0xFF00FF) | (green & 0x00FF00);
+    }
+
+    /**
+     * colors a block of counts.
+     * @param frameTable - the table from buildFrameTable()
+     * @param counts - the frame's count buffer, for the fractions (if any)
+     * @param left - x position of the left edge of the block
+     * @param top - y position of the top edge of the block
+     * @param width - the width of the block
+     * @param blockCounts - the block's counts, row by row, width counts to a row
+     * @param rgb - receives the block's colors, in the same order.
+     */
+    public void colorBlock(int[] frameTable, EscapeCountBuffer counts, int left, int top, int width,
+                           int[] blockCounts, int[] rgb)
+    {
+        boolean blending = smooth && counts.hasFractions();
+        for (int i = 0; i < blockCounts.length; i++)
+        {
+            int count = blockCounts[i];
+            if (!blending)
+                rgb[i] = frameTable[count];
+            else
+            {
+                // the fractions are only there for pixels inside the count buffer.
+                int x = left + i % width, y = top + i / width;
+                float fraction = x < counts.getWidth() && y < counts.getHeight() ? counts.getFraction(x, y) : 0;
+                rgb[i] = color(frameTable, count, fraction);
+            }
+        }
+    }
+
+    /**
+     * colors a whole frame of counts, splitting the rows among the pool's threads. Each pixel is just a lookup or
+     * two, so this goes about as fast as memory can be read and written.
+     * @param counts - the frame's counts
+     * @param rgb - receives the colors, row by row, like the counts; at least as long as the counts.
+     * @param pool - the threads to share the work among
+     */
+    public void colorFrame(EscapeCountBuffer counts, int[] rgb, ForkJoinPool pool)
+    {
+        int[] frameTable = buildFrameTable(counts);
+        pool.invoke(new ColorRowsTask(frameTable, counts, rgb, 0, counts.getHeight()));
+    }
+
+    /**
+     * colors the rows from top up to (but not including) bottom, splitting them in half while there are enough of
+     * them to share.
+     */
+    @SuppressWarnings("serial") // (tasks are never serialized.)
+    private class ColorRowsTask extends RecursiveAction
+    {
+        private final int[] frameTable;
+        private final EscapeCountBuffer counts;
+        private final int[] rgb;
+        private final int top, bottom;
+
+        public ColorRowsTask(int[] frameTable, EscapeCountBuffer counts, int[] rgb, int top, int bottom)
+        {
+            this.frameTable = frameTable;
+            this.counts = counts;
+            this.rgb = rgb;
+            this.top = top;
+            this.bottom = bottom;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (bottom - top > ROWS_PER_TASK)
+            {
+                int middle = (top + bottom) / 2;
+                invokeAll(new ColorRowsTask(frameTable, counts, rgb, top, middle),
+                          new ColorRowsTask(frameTable, counts, rgb, middle, bottom));
+                return;
+            }
+            int width = counts.getWidth();
+            int[] countArray = counts.getCounts();
+            float[] fractions = smooth ? counts.getFractions() : null;
+            int last = frameTable.length - 1;
+            if (fractions == null)
+                for (int i = top*width; i < bottom*width; i++)
+                    rgb[i] = frameTable[countArray[i]];
+            else
+                for (int i = top*width; i < bottom*width; i++)
+                {
+                    int count = countArray[i];
+                    rgb[i] = count > 0 && count < last ? blend(frameTable[count], frameTable[count+1], fractions[i])
+                                                       : frameTable[count];
+                }
+        }
+    }
+}
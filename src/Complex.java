@@ -77,4 +77,19 @@ public class Complex
     {
         return Math.sqrt(magnitude_squared());
     }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Complex that = (Complex) o;
+        return Double.compare(real, that.real) == 0 && Double.compare(imaginary, that.imaginary) == 0;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31*Double.hashCode(real) + Double.hashCode(imaginary);
+    }
 }
@@ -1,13 +1,28 @@
 import java.util.Objects;
 
+/**
+ * A rectangle on the complex plane, described by two opposite corners. The corners are kept as BigComplex values,
+ * so that deep zooms don't lose their position; getMin() and getMax() give the nearest doubles.
+ */
 public class ComplexRange
 {
     private Complex min, max;
+    private BigComplex preciseMin, preciseMax;
 
     public ComplexRange(Complex min, Complex max)
     {
         this.min = min;
         this.max = max;
+        this.preciseMin = new BigComplex(min);
+        this.preciseMax = new BigComplex(max);
+    }
+
+    public ComplexRange(BigComplex min, BigComplex max)
+    {
+        this.min = min.toComplex();
+        this.max = max.toComplex();
+        this.preciseMin = min;
+        this.preciseMax = max;
     }
 
     public String toString()
@@ -17,6 +32,8 @@ public class ComplexRange
 
     public Complex getMin() {return min;}
     public Complex getMax() {return max;}
+    public BigComplex getPreciseMin() {return preciseMin;}
+    public BigComplex getPreciseMax() {return preciseMax;}
 
     @Override
     public boolean equals(Object o)
@@ -24,7 +41,13 @@ public class ComplexRange
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         ComplexRange that = (ComplexRange) o;
-        return min.equals(that.min) && max.equals(that.max);
+        return preciseMin.equals(that.preciseMin) && preciseMax.equals(that.preciseMax);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(preciseMin, preciseMax);
     }
 
 }
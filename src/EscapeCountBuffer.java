@@ -0,0 +1,121 @@
+import java.util.Arrays;
+
+/**
+ * The escape count for every pixel of a frame, kept separately from the image, so that a finished frame can be
+ * saved and redrawn later (in any palette) without calculating it again.
+ * For smooth coloring, a buffer can also hold a fraction (from 0 up to 1) for each pixel that escaped, saying how
+ * far past the threshold z had got when it escaped; count + fraction then changes smoothly across the picture,
+ * rather than in steps. (See MandelbrotKernel.smoothFraction().)
+ * Different threads may write different pixels at the same time; nothing here is synchronized.
+ */
+public class EscapeCountBuffer
+{
+    private final int width, height;
+    private final int[] counts;
+    private final float[] fractions; // null, if this buffer doesn't keep them.
+
+    public EscapeCountBuffer(int width, int height)
+    {
+        this(width, height, false);
+    }
+
+    /**
+     * @param withFractions - whether to keep a smooth-coloring fraction for each pixel, as well as its count.
+     */
+    public EscapeCountBuffer(int width, int height, boolean withFractions)
+    {
+        this.width = width;
+        this.height = height;
+        counts = new int[width*height];
+        fractions = withFractions ? new float[width*height] : null;
+    }
+
+    public int getWidth() {return width;}
+    public int getHeight() {return height;}
+
+    /**
+     * @return the array of counts, row by row, width counts to a row.
+     */
+    public int[] getCounts() {return counts;}
+
+    public int get(int x, int y)
+    {
+        return counts[y*width + x];
+    }
+
+    public void set(int x, int y, int count)
+    {
+        counts[y*width + x] = count;
+    }
+
+    public boolean hasFractions() {return fractions != null;}
+
+    /**
+     * @return the array of fractions, laid out like the counts, or null if this buffer doesn't keep them.
+     */
+    public float[] getFractions() {return fractions;}
+
+    /**
+     * @return the given pixel's smooth-coloring fraction, or zero if this buffer doesn't keep them.
+     */
+    public float getFraction(int x, int y)
+    {
+        return fractions == null ? 0 : fractions[y*width + x];
+    }
+
+    /**
+     * sets the given pixel's smooth-coloring fraction; does nothing if this buffer doesn't keep them.
+     */
+    public void setFraction(int x, int y, float fraction)
+    {
+        if (fractions != null)
+            fractions[y*width + x] = fraction;
+    }
+
+    /**
+     * copies a block of counts into this buffer, clipping it to the buffer's edges.
+     * @param left - x position of the left edge of the block
+     * @param top - y position of the top edge of the block
+     * @param blockWidth - the width of the block
+     * @param blockHeight - the height of the block
+     * @param blockCounts - the counts for the block, row by row, blockWidth counts to a row.
+     */
+    public void setBlock(int left, int top, int blockWidth, int blockHeight, int[] blockCounts)
+    {
+        int copyWidth = Math.min(blockWidth, width - left);
+        int copyHeight = Math.min(blockHeight, height - top);
+        for (int row = 0; row < copyHeight && copyWidth > 0; row++)
+            System.arraycopy(blockCounts, row*blockWidth, counts, (top+row)*width + left, copyWidth);
+    }
+
+    /**
+     * sets every count in a block to the same value, clipping the block to the buffer's edges.
+     */
+    public void fill(int left, int top, int blockWidth, int blockHeight, int count)
+    {
+        int right = Math.min(left + blockWidth, width);
+        int bottom = Math.min(top + blockHeight, height);
+        for (int y = top; y < bottom && right > left; y++)
+            Arrays.fill(counts, y*width + left, y*width + right, count);
+    }
+
+    /**
+     * @return a new buffer with the same size, counts (and fractions, if any) as this one.
+     */
+    public EscapeCountBuffer copy()
+    {
+        EscapeCountBuffer result = new EscapeCountBuffer(width, height, fractions != null);
+        System.arraycopy(counts, 0, result.counts, 0, counts.length);
+        if (fractions != null)
+            System.arraycopy(fractions, 0, result.fractions, 0, fractions.length);
+        return result;
+    }
+
+    /**
+     * @return roughly how much memory this buffer takes up, in bytes.
+     */
+    public long getSizeInBytes()
+    {
+        return 4L*counts.length + (fractions == null ? 0 : 4L*fractions.length);
+    }
+}
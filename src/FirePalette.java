@@ -0,0 +1,23 @@
+/**
+ * A "hot metal" coloring that climbs from dark red through orange and yellow to white, and then starts over, every
+ * 192 counts.
+ */
+public class FirePalette extends Palette
+{
+    public FirePalette()
+    {
+        super("Fire");
+    }
+
+    @Override
+    public int colorForCount(int count)
+    {
+        if (count == 0)
+            return packRGB(0, 0, 0);
+        int step = (3*count) % 576; // 0-191 brings in red, 192-383 green, 384-575 blue.
+        int red = Math.min(255, 64 + step);
+        int green = Math.max(0, Math.min(255, step - 192));
+        int blue = Math.max(0, Math.min(255, step - 384));
+        return packRGB(red, green, blue);
+    }
+}
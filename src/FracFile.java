@@ -0,0 +1,359 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A frame's escape counts, kept in a file rather than in memory (a ".frac" file), so that a frame can be far
+ * bigger than the heap, can be picked up again after a crash, and can be colored again later, with any palette,
+ * without calculating anything.
+ *
+ * The counts are split into square tiles of tileSize x tileSize, and each tile is read and written through its own
+ * memory mapping, so only the tiles being worked on are ever in memory. (A single mapping can't go past 2GB, and a
+ * big poster is far more than that.) Each tile has a "done" flag, which is only set once the tile's counts are
+ * safely on disk; that's the checkpoint - after a crash, the tiles without the flag are the ones left to do.
+ *
+ * The layout, all little-endian:
+ * - header: "FRAC", version, width, height, maxCount, precision (a FractalView.PRECISION_ tier), tileSize, the
+ *   header's length, then the four bounds (minRe, minIm, maxRe, maxIm) as length-prefixed UTF-8 decimal strings,
+ *   so deep zooms keep every digit, and the formula's name (see FractalKernel.getName()) the same way. (Version 1
+ *   files have no formula; they are all Mandelbrot.)
+ * - one byte per tile: 1 once the tile is done,
+ * - the tiles, starting on a 4KB boundary, row by row of tiles. Every tile takes the full tileSize x tileSize
+ *   ints, even the ones hanging off the right or bottom edge, so finding a tile is just a multiplication.
+ */
+public class FracFile implements Closeable
+{
+    public static final String EXTENSION = "frac";
+    public static final int DEFAULT_TILE_SIZE = 256;
+    private static final int MAGIC = 0x43415246; // "FRAC", little-endian.
+    private static final int VERSION = 2;
+    private static final int FIXED_HEADER_BYTES = 32;
+    private static final int PAGE_BYTES = 4096;
+
+    private final File file;
+    private final FileChannel channel;
+    private final String formula;
+    private final ComplexRange bounds;
+    private final int width, height, maxCount, precision, tileSize;
+    private final int tilesAcross, tilesDown;
+    private final MappedByteBuffer doneFlags;
+    private final long dataStart;
+
+    private FracFile(File file, FileChannel channel, String formula, ComplexRange bounds, int width, int height,
+                     int maxCount, int precision, int tileSize, int headerBytes) throws IOException
+    {
+        this.file = file;
+        this.channel = channel;
+        this.formula = formula;
+        this.bounds = bounds;
+        this.width = width;
+        this.height = height;
+        this.maxCount = maxCount;
+        this.precision = precision;
+        this.tileSize = tileSize;
+        tilesAcross = (width + tileSize - 1) / tileSize;
+        tilesDown = (height + tileSize - 1) / tileSize;
+        doneFlags = channel.map(FileChannel.MapMode.READ_WRITE, headerBytes, getTileCount());
+        dataStart = (headerBytes + getTileCount() + PAGE_BYTES - 1) / PAGE_BYTES * PAGE_BYTES;
+    }
+
+    /**
+     * makes a new .frac file (replacing any file already there) for the given frame, with no tiles done yet.
+     * @param file - where to put it
+     * @param view - the frame it will hold the counts for
+     * @param tileSize - the width and height of each tile, in pixels
+     */
+    public static FracFile create(File file, FractalView view, int tileSize) throws IOException
+    {
+        if (tileSize < 1)
+            throw new IllegalArgumentException("Tiles must be at least one pixel across.");
+        ComplexRange bounds = view.getBounds();
+        // the corners, then the formula.
+        byte[][] strings = {bounds.getPreciseMin().getReal().toString().getBytes(StandardCharsets.UTF_8),
+                            bounds.getPreciseMin().getImaginary().toString().getBytes(StandardCharsets.UTF_8),
+                            bounds.getPreciseMax().getReal().toString().getBytes(StandardCharsets.UTF_8),
+                            bounds.getPreciseMax().getImaginary().toString().getBytes(StandardCharsets.UTF_8),
+                            view.getKernel().getName().getBytes(StandardCharsets.UTF_8)};
+        int headerBytes = FIXED_HEADER_BYTES;
+        for (byte[] string : strings)
+            headerBytes += 4 + string.length;
+
+        ByteBuffer header = ByteBuffer.allocate(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION);
+        header.putInt(view.getWidth()).putInt(view.getHeight());
+        header.putInt(view.getKernel().getMaxCount()).putInt(view.getPrecision());
+        header.putInt(tileSize).putInt(headerBytes);
+        for (byte[] string : strings)
+            header.putInt(string.length).put(string);
+        header.flip();
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try
+        {
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+            FracFile frac = new FracFile(file, channel, view.getKernel().getName(), bounds, view.getWidth(),
+                                         view.getHeight(), view.getKernel().getMaxCount(), view.getPrecision(),
+                                         tileSize, headerBytes);
+            // write the very last byte, so the file is its full size from the start. (On most file systems the
+            // space in between isn't actually used until the tiles are written.)
+            channel.write(ByteBuffer.allocate(1), frac.getFileSize() - 1);
+            return frac;
+        } catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * opens an existing .frac file, to carry on calculating it, or to read its counts.
+     */
+    public static FracFile open(File file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try
+        {
+            if (channel.size() < FIXED_HEADER_BYTES)
+                throw new IOException(file+" is too short to be a ."+EXTENSION+" file.");
+            ByteBuffer fixed = channel.map(FileChannel.MapMode.READ_ONLY, 0, FIXED_HEADER_BYTES)
+                                      .order(ByteOrder.LITTLE_ENDIAN);
+            if (fixed.getInt() != MAGIC)
+                throw new IOException(file+" is not a ."+EXTENSION+" file.");
+            int version = fixed.getInt();
+            if (version < 1 || version > VERSION)
+                throw new IOException(file+" is version "+version+"; we can only read up to version "+VERSION+".");
+            int width = fixed.getInt();
+            int height = fixed.getInt();
+            int maxCount = fixed.getInt();
+            int precision = fixed.getInt();
+            int tileSize = fixed.getInt();
+            int headerBytes = fixed.getInt();
+            if (width < 1 || height < 1 || maxCount < 1 || tileSize < 1 || headerBytes < FIXED_HEADER_BYTES ||
+                precision < 0 || precision >= FractalView.PRECISION_NAMES.length)
+                throw new IOException(file+" has a damaged header.");
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerBytes)
+                                       .order(ByteOrder.LITTLE_ENDIAN);
+            header.position(FIXED_HEADER_BYTES);
+            BigDecimal[] corners = new BigDecimal[4];
+            for (int i = 0; i < corners.length; i++)
+            {
+                byte[] text = new byte[header.getInt()];
+                header.get(text);
+                corners[i] = new BigDecimal(new String(text, StandardCharsets.UTF_8));
+            }
+            String formula = "Mandelbrot";
+            if (version >= 2)
+            {
+                byte[] text = new byte[header.getInt()];
+                header.get(text);
+                formula = new String(text, StandardCharsets.UTF_8);
+            }
+            ComplexRange bounds = new ComplexRange(new BigComplex(corners[0], corners[1]),
+                                                   new BigComplex(corners[2], corners[3]));
+            FracFile frac = new FracFile(file, channel, formula, bounds, width, height, maxCount, precision, tileSize,
+                                         headerBytes);
+            if (channel.size() < frac.getFileSize())
+                throw new IOException(file+" has been cut short.");
+            return frac;
+        } catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            if (e instanceof IOException)
+                throw (IOException) e;
+            throw new IOException(file+" has a damaged header.", e);
+        }
+    }
+
+    public String getFormula() {return formula;}
+    public ComplexRange getBounds() {return bounds;}
+    public int getWidth() {return width;}
+    public int getHeight() {return height;}
+    public int getMaxCount() {return maxCount;}
+    public int getPrecision() {return precision;}
+    public int getTileSize() {return tileSize;}
+    public int getTilesAcross() {return tilesAcross;}
+    public int getTilesDown() {return tilesDown;}
+    public int getTileCount() {return tilesAcross*tilesDown;}
+
+    public int getTileLeft(int tile) {return (tile % tilesAcross) * tileSize;}
+    public int getTileTop(int tile) {return (tile / tilesAcross) * tileSize;}
+    public int getTileWidth(int tile) {return Math.min(tileSize, width - getTileLeft(tile));}
+    public int getTileHeight(int tile) {return Math.min(tileSize, height - getTileTop(tile));}
+
+    /**
+     * @return how long the file should be, with all its tiles.
+     */
+    private long getFileSize()
+    {
+        return dataStart + (long)getTileCount() * tileSize * tileSize * 4;
+    }
+
+    /**
+     * @return whether this file holds the counts for the given frame - same formula, bounds, size, maxCount and
+     * precision.
+     */
+    public boolean matches(FractalView view)
+    {
+        return view.getKernel().getName().equals(formula) && view.getBounds().equals(bounds) &&
+               view.getWidth() == width && view.getHeight() == height &&
+               view.getKernel().getMaxCount() == maxCount && view.getPrecision() == precision;
+    }
+
+    public synchronized boolean isTileDone(int tile)
+    {
+        return doneFlags.get(tile) != 0;
+    }
+
+    /**
+     * @return how many tiles are done.
+     */
+    public synchronized int getTilesDone()
+    {
+        int done = 0;
+        for (int tile = 0; tile < getTileCount(); tile++)
+            if (doneFlags.get(tile) != 0)
+                done++;
+        return done;
+    }
+
+    /**
+     * @return whether every tile is done.
+     */
+    public boolean isComplete()
+    {
+        return getTilesDone() == getTileCount();
+    }
+
+    /**
+     * marks a tile as done, and makes sure the mark is on disk. Only do this after writeTile(), which makes sure the
+     * counts are on disk first, so that a crash can never leave a tile marked done without its counts.
+     */
+    public synchronized void markTileDone(int tile)
+    {
+        doneFlags.put(tile, (byte)1);
+        doneFlags.force();
+    }
+
+    /**
+     * @return a mapping of the given tile's counts.
+     */
+    private MappedByteBuffer mapTile(int tile, FileChannel.MapMode mode) throws IOException
+    {
+        long tileBytes = (long)tileSize * tileSize * 4;
+        MappedByteBuffer mapping = channel.map(mode, dataStart + tile*tileBytes, tileBytes);
+        mapping.order(ByteOrder.LITTLE_ENDIAN);
+        return mapping;
+    }
+
+    /**
+     * saves a tile's counts, and makes sure they're on disk. (Different tiles may be written from different threads
+     * at once.)
+     * @param tile - which tile, counting across each row of tiles, top row first
+     * @param counts - the tile's counts, row by row, getTileWidth(tile) counts to a row
+     */
+    public void writeTile(int tile, int[] counts) throws IOException
+    {
+        MappedByteBuffer mapping = mapTile(tile, FileChannel.MapMode.READ_WRITE);
+        IntBuffer ints = mapping.asIntBuffer();
+        int tileWidth = getTileWidth(tile);
+        for (int row = 0; row < getTileHeight(tile); row++)
+        {
+            ints.position(row*tileSize);
+            ints.put(counts, row*tileWidth, tileWidth);
+        }
+        mapping.force();
+    }
+
+    /**
+     * reads a tile's counts.
+     * @param tile - which tile, counting across each row of tiles, top row first
+     * @param counts - receives the tile's counts, row by row, getTileWidth(tile) counts to a row
+     * @throws IOException if the file can't be read, or any of the counts couldn't be right (see checkCounts()).
+     */
+    public void readTile(int tile, int[] counts) throws IOException
+    {
+        IntBuffer ints = mapTile(tile, FileChannel.MapMode.READ_ONLY).asIntBuffer();
+        int tileWidth = getTileWidth(tile);
+        for (int row = 0; row < getTileHeight(tile); row++)
+        {
+            ints.position(row*tileSize);
+            ints.get(counts, row*tileWidth, tileWidth);
+        }
+        checkCounts(counts, tileWidth*getTileHeight(tile));
+    }
+
+    /**
+     * reads a whole row of tiles - a strip of the frame, the full width across.
+     * @param tileRow - which row of tiles, from 0 at the top
+     * @param counts - receives the strip's counts, row by row, width counts to a row; at least width*tileSize long.
+     * @return how many rows of pixels the strip has (tileSize, except perhaps for the bottom strip).
+     * @throws IOException if the file can't be read, or any of the counts couldn't be right (see checkCounts()).
+     */
+    public int readTileRow(int tileRow, int[] counts) throws IOException
+    {
+        int rows = Math.min(tileSize, height - tileRow*tileSize);
+        for (int column = 0; column < tilesAcross; column++)
+        {
+            IntBuffer ints = mapTile(tileRow*tilesAcross + column, FileChannel.MapMode.READ_ONLY).asIntBuffer();
+            int left = column*tileSize;
+            int tileWidth = Math.min(tileSize, width - left);
+            for (int row = 0; row < rows; row++)
+            {
+                ints.position(row*tileSize);
+                ints.get(counts, row*width + left, tileWidth);
+            }
+        }
+        checkCounts(counts, rows*width);
+        return rows;
+    }
+
+    /**
+     * makes sure counts we've read are all between 0 and maxCount, so that a damaged (or edited) file is reported as
+     * such, rather than sending whoever colors the counts off the end of their palette table.
+     */
+    private void checkCounts(int[] counts, int length) throws IOException
+    {
+        for (int i = 0; i < length; i++)
+            if (counts[i] < 0 || counts[i] > maxCount)
+                throw new IOException(file+" is damaged: it has a count of "+counts[i]+", with a max count of "+
+                                      maxCount+".");
+    }
+
+    /**
+     * saves a whole frame's counts, tile by tile.
+     * @param counts - the frame's counts; the same size as this file.
+     * @param finished - whether the counts are all there; if not (say, the frame was still being calculated), the
+     *                 tiles aren't marked done, and can be calculated again later.
+     */
+    public void writeCounts(EscapeCountBuffer counts, boolean finished) throws IOException
+    {
+        int[] tileCounts = new int[tileSize*tileSize];
+        for (int tile = 0; tile < getTileCount(); tile++)
+        {
+            int left = getTileLeft(tile), top = getTileTop(tile);
+            int tileWidth = getTileWidth(tile);
+            for (int row = 0; row < getTileHeight(tile); row++)
+                System.arraycopy(counts.getCounts(), (top+row)*width + left, tileCounts, row*tileWidth, tileWidth);
+            writeTile(tile, tileCounts);
+            if (finished)
+                markTileDone(tile);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * An escape-time formula: something that takes each pixel's point on the complex plane, steps a z along from it
+ * until z gets further than the threshold from the origin (or maxCount steps run out), and reports how many steps
+ * that took. MandelbrotKernel is the usual one; JuliaKernel, MultibrotKernel and BurningShipKernel are the others.
+ *
+ * Each kernel is its own final class with its own loops, rather than sharing loops that call back into a
+ * formula, so that each loop only ever calls one kind of step, which the JIT can build right into it. Adding a
+ * formula that way never slows down the others.
+ *
+ * Every kernel counts the same way: a point's count is below maxCount, and is zero if it never escaped (or ran
+ * out of steps). Only the Mandelbrot kernel has float, double-double and deep-zoom (perturbation) versions;
+ * FractalView uses plain doubles for the others, however far in we zoom.
+ */
+public interface FractalKernel
+{
+    // what continueStepsToExit() reports for points that don't escape: either we know they never will, or they
+    // simply ran out of steps, and might yet escape if we gave them more.
+    int PROVEN_INSIDE = -1;
+    int STILL_GOING = -2;
+
+    /**
+     * @return the formula's name, with any settings that change the picture (e.g. a Julia set's c), so that two
+     * kernels with the same name give the same counts. (The caches use this to tell frames apart.)
+     */
+    String getName();
+
+    int getMaxCount();
+    double getThresholdSquared();
+
+    /**
+     * @param x - the real part of the pixel's point
+     * @param y - the imaginary part of the pixel's point
+     * @return the number of steps it took for z to escape, or zero if it never did in maxCount steps.
+     */
+    int countStepsToExit(double x, double y);
+
+    /**
+     * works out the escape counts for a whole batch of points at once, giving the same counts as calling
+     * countStepsToExit() on each of them.
+     * @param xs - the real parts of the points
+     * @param ys - the imaginary parts of the points
+     * @param counts - receives the count for each point
+     * @param length - how many points there are
+     */
+    void countStepsToExit(double[] xs, double[] ys, int[] counts, int length);
+
+    /**
+     * the same as the batch version of countStepsToExit() above, but also works out each escaping point's
+     * smooth-coloring fraction (see smoothFraction()).
+     * @param fractions - receives the fraction for each point that escapes (the others are left alone).
+     */
+    void countStepsToExit(double[] xs, double[] ys, int[] counts, float[] fractions, int length);
+
+    /**
+     * picks up a point after fromCount steps and carries on to maxCount.
+     * @param x - the real part of the pixel's point
+     * @param y - the imaginary part of the pixel's point
+     * @param z - {zr, zi} after fromCount steps (ignored if fromCount is zero); if the point is STILL_GOING, this
+     *          receives where it got to.
+     * @param fromCount - how many steps the point has already taken
+     * @return the count, if the point escaped, or else PROVEN_INSIDE or STILL_GOING.
+     */
+    int continueStepsToExit(double x, double y, double[] z, int fromCount);
+
+    /**
+     * the batch version of continueStepsToExit(), giving the same results as calling the one-point version on each.
+     * @param xs - the real parts of the points
+     * @param ys - the imaginary parts of the points
+     * @param zr - the real parts of z after fromCount steps (or anything at all, if fromCount is zero), and then
+     *           where each STILL_GOING point got to
+     * @param zi - the imaginary parts of z, likewise
+     * @param fromCount - how many steps the points have already taken
+     * @param results - receives the count for each point, or PROVEN_INSIDE or STILL_GOING
+     * @param fractions - if not null, receives the smooth-coloring fraction of each point that escapes.
+     * @param length - how many points there are
+     */
+    void continueStepsToExit(double[] xs, double[] ys, double[] zr, double[] zi, int fromCount, int[] results,
+                             float[] fractions, int length);
+
+    /**
+     * works out how close the point is to the edge of the set: for a point that escapes, from how fast z (and its
+     * derivative) grows, and for a point inside, from the cycle z settles into. The estimate is a lower bound - the
+     * edge is certainly no closer than this - so a disk of that radius around the point is all on the same side.
+     * (See MandelbrotKernel.distanceBound() and interiorDistanceBound().)
+     * @param x - the real part of the pixel's point
+     * @param y - the imaginary part of the pixel's point
+     * @return the distance, or 0 if we couldn't pin it down (e.g. the point ran out of steps before either escaping
+     * or settling into a cycle), or NaN if this formula has no distance estimate for points like this one.
+     */
+    double estimateDistance(double x, double y);
+
+    /**
+     * works out how far between this count and the next an escaping point is, for smooth coloring.
+     * @param modulusSquared - |z|^2 at the step z escaped
+     * @return the fraction, from 0 up to (but not including) 1.
+     */
+    float smoothFraction(double modulusSquared);
+}
@@ -0,0 +1,1048 @@
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The different orders in which we can fill in a frame (the "scans"), calculating escape counts with a FractalView
+ * and recording them in an EscapeCountBuffer. The scans don't know anything about windows: the panel subclasses
+ * this to also color the counts into its image, and the benchmarks use it as-is to render off-screen.
+ *
+ * Subclasses can override:
+ * - countAt() and countPixels(), to find pixels' counts some other way (e.g. reusing the previous frame),
+ * - publishCounts() and fillCount(), which receive every block of counts as it is finished,
+ * - isInterrupted(), which the scans check often, so that they can stop as soon as the frame isn't wanted,
+ * - getFocus(), the pixel the nearest-first scan should draw out from (e.g. wherever the mouse is).
+ * If it is given a RenderMetrics, the scans also report how many pixels they calculated or filled in; they add these
+ * up a row or rectangle at a time, so the per-pixel loops stay as they were.
+ *
+ * The scans ask for their counts a line (or small box) at a time, through countPixels(). With lane batching on,
+ * each batch goes to the kernel in one go, so it can work on several pixels side by side (see
+ * MandelbrotKernel.countStepsToExit(double[], double[], int[], int)); with it off, the pixels are done one at a time.
+ * Either way the counts are the same. (With a high maxCount, the batches are cut into smaller ones, so that the scan
+ * still notices isInterrupted() within a few milliseconds.)
+ *
+ * If the count buffer keeps smooth-coloring fractions, the scans work those out too, and write them straight into
+ * the buffer as each batch is counted, before the counts are published.
+ */
+public class FractalScanner
+{
+    public static final int MODE_TRADITIONAL = 0;
+    public static final int MODE_PIXELATED = 1;
+    public static final int MODE_DIVIDE_AND_CONQUER = 2;
+    public static final int MODE_BOUNDARY_TRACE = 3;
+    public static final int MODE_DISTANCE_GUIDED = 4;
+    public static final int MODE_NEAREST_FIRST = 5;
+    public static final String[] MODE_NAMES = {"Traditional", "Pixelated", "Divide and Conquer", "Boundary Trace",
+                                               "Distance Guided", "Nearest First"};
+
+    // rectangles narrower or shorter than this are calculated pixel by pixel, rather than subdivided.
+    private static final int MIN_SUBDIVIDE_SIZE = 4;
+    // countPixels() checks isInterrupted() at least every time the kernel might have taken this many steps (taking
+    // a few milliseconds), however high maxCount is.
+    private static final int STEPS_BETWEEN_CHECKS = 1<<22;
+
+    // the boundary trace hands its pixels out to the pool in pieces of this many.
+    private static final int TRACE_CHUNK_SIZE = 1024;
+    // what the boundary trace knows about each pixel: whether it has been calculated, and whether it has been put
+    // in line to have its neighbors looked at.
+    private static final byte TRACE_CALCULATED = 1;
+    private static final byte TRACE_QUEUED = 2;
+    // the distance-guided scan only fills a rectangle if the disks its distance estimates clear along the border
+    // overlap by at least this much, to leave some room for rounding.
+    private static final double DISTANCE_MARGIN_PIXELS = 1.0;
+    // the nearest-first scan splits the divide-and-conquer scan's rectangles until they are at most this many pixels
+    // across (its "tiles"), and then finishes them nearest the focus first. Smaller tiles follow the focus more
+    // closely, but leave more of the frame to be split up before any of them can start.
+    private static final int TILE_SIZE = 64;
+    // the tiles still to do are only put back in order once the focus has moved by more than this many pixels.
+    private static final int REFOCUS_DISTANCE = TILE_SIZE/2;
+
+    protected final FractalView view;
+    protected final EscapeCountBuffer counts;
+    private final ForkJoinPool pool;
+    private final int maxCount;
+    private RenderMetrics metrics; // may be null, if nobody is keeping score.
+    private boolean laneBatching = true;
+    private IterationState resumeFrom, record; // either may be null; see setIterationStates().
+
+    /**
+     * @param view - the frame to calculate
+     * @param counts - where to record the counts; must be the same size as the view.
+     * @param pool - the threads for the divide-and-conquer scan to share its rectangles among.
+     */
+    public FractalScanner(FractalView view, EscapeCountBuffer counts, ForkJoinPool pool)
+    {
+        this.view = view;
+        this.counts = counts;
+        this.pool = pool;
+        this.maxCount = view.getKernel().getMaxCount();
+    }
+
+    public FractalView getView() {return view;}
+    public EscapeCountBuffer getCounts() {return counts;}
+
+    /**
+     * @param metrics - where to report the work done by the scans, or null for nowhere.
+     */
+    public void setMetrics(RenderMetrics metrics) {this.metrics = metrics;}
+
+    /**
+     * @param laneBatching - whether to hand the kernel whole lines of pixels at once (faster), rather than one pixel
+     *                     at a time.
+     */
+    public void setLaneBatching(boolean laneBatching) {this.laneBatching = laneBatching;}
+
+    /**
+     * has the scans keep track of where the pixels that don't escape got to, and/or carry on from an earlier frame
+     * that did, rather than starting every pixel from scratch (see IterationState). Only double precision frames
+     * do either.
+     * @param resumeFrom - a finished state to carry on from, or null. Its canResume() must be true for our view.
+     * @param record - where to record this frame's state, or null.
+     */
+    public void setIterationStates(IterationState resumeFrom, IterationState record)
+    {
+        this.resumeFrom = resumeFrom;
+        this.record = record;
+    }
+
+    /**
+     * reports the given counts (all freshly calculated) to the metrics, if there are any.
+     */
+    private void recordCalculated(int[] calculated, int length)
+    {
+        if (metrics == null)
+            return;
+        long iterations = 0, interior = 0;
+        for (int i = 0; i < length; i++)
+        {
+            iterations += RenderMetrics.iterationsFor(calculated[i], maxCount);
+            if (calculated[i] == 0)
+                interior++;
+        }
+        metrics.recordCalculated(length, iterations, interior);
+    }
+
+    /**
+     * fills in the whole frame with the given scan.
+     * @param mode - one of the MODE_ constants
+     * @return whether the scan finished; false if it was interrupted.
+     */
+    public boolean scan(int mode)
+    {
+        switch (mode)
+        {
+            case MODE_TRADITIONAL:
+                performTraditionalScan();
+                break;
+            case MODE_PIXELATED:
+                performPixelatedScan();
+                break;
+            case MODE_BOUNDARY_TRACE:
+                performBoundaryTraceScan();
+                break;
+            case MODE_DISTANCE_GUIDED:
+                performDistanceGuidedScan();
+                break;
+            case MODE_NEAREST_FIRST:
+                performNearestFirstScan();
+                break;
+            case MODE_DIVIDE_AND_CONQUER:
+            default:
+                performDivideAndConquerScan();
+        }
+        return !isInterrupted();
+    }
+
+    /**
+     * @return whether a finished frame drawn with the given scan has every pixel's count calculated, rather than some
+     * of them filled in from the counts around them. (Only then can a frame drawn with another scan reuse its counts
+     * as if it had calculated them itself.)
+     */
+    public static boolean calculatesEveryPixel(int mode)
+    {
+        return mode == MODE_TRADITIONAL || mode == MODE_PIXELATED;
+    }
+
+    /**
+     * @return the escape count for the given pixel.
+     */
+    protected int countAt(int x, int y)
+    {
+        return view.countAt(x, y);
+    }
+
+    /**
+     * finds the escape counts for a batch of pixels, all at once if lane batching is on. If the scan is interrupted
+     * part way, some of the counts may be left unfilled, so callers should check isInterrupted() before using them.
+     * @param xs - the x coordinates of the pixels
+     * @param ys - the y coordinates of the pixels
+     * @param pixelCounts - receives the count for each pixel
+     * @param length - how many pixels there are
+     */
+    protected void countPixels(int[] xs, int[] ys, int[] pixelCounts, int length)
+    {
+        if (!laneBatching && resumeFrom == null && record == null && !counts.hasFractions())
+        {
+            for (int i = 0; i < length; i++)
+            {
+                if (isInterrupted())
+                    return;
+                pixelCounts[i] = countAt(xs[i], ys[i]);
+            }
+            return;
+        }
+        // the kernel can't be stopped part way through a batch, so with a high maxCount we hand it the pixels a few
+        // at a time (as few as one per lane), and check in between whether we should stop.
+        int batchLength = Math.max(MandelbrotKernel.LANES, STEPS_BETWEEN_CHECKS/maxCount);
+        if (length <= batchLength)
+        {
+            countBatch(xs, ys, pixelCounts, length);
+            return;
+        }
+        int[] batchCounts = new int[batchLength];
+        for (int from = 0; from < length; from += batchLength)
+        {
+            if (isInterrupted())
+                return;
+            int to = Math.min(from + batchLength, length);
+            countBatch(Arrays.copyOfRange(xs, from, to), Arrays.copyOfRange(ys, from, to), batchCounts, to-from);
+            System.arraycopy(batchCounts, 0, pixelCounts, from, to-from);
+        }
+    }
+
+    /**
+     * hands one batch of pixels to the view, for countPixels().
+     */
+    private void countBatch(int[] xs, int[] ys, int[] pixelCounts, int length)
+    {
+        if (resumeFrom != null || record != null || counts.hasFractions())
+        {
+            float[] fractions = counts.hasFractions() ? new float[length] : null;
+            view.countPixels(xs, ys, pixelCounts, fractions, length, resumeFrom, record, laneBatching);
+            if (fractions != null)
+                for (int i = 0; i < length; i++)
+                    counts.setFraction(xs[i], ys[i], fractions[i]);
+            return;
+        }
+        view.countPixels(xs, ys, pixelCounts, length);
+    }
+
+    /**
+     * records a finished block of counts.
+     * @param left - x position of the left edge of the block
+     * @param top - y position of the top edge of the block
+     * @param width - the width of the block
+     * @param height - the height of the block
+     * @param blockCounts - the counts for the block, row by row, width counts to a row.
+     */
+    protected void publishCounts(int left, int top, int width, int height, int[] blockCounts)
+    {
+        counts.setBlock(left, top, width, height, blockCounts);
+    }
+
+    /**
+     * records the same count for a whole block.
+     */
+    protected void fillCount(int left, int top, int width, int height, int count)
+    {
+        counts.fill(left, top, width, height, count);
+    }
+
+    /**
+     * @return whether the scan should stop as soon as it can.
+     */
+    protected boolean isInterrupted()
+    {
+        return false;
+    }
+
+    /**
+     * @return the pixel the user is most likely looking at, or null for the middle of the frame (where a zoom has
+     * just put whatever they zoomed in on). The nearest-first scan asks again every time it starts a tile, so this
+     * can move while it runs.
+     */
+    protected Point getFocus()
+    {
+        return null;
+    }
+
+    // draws the fractal by doing a typical line-by-line scan down the page.
+    public void performTraditionalScan()
+    {
+        int width = view.getWidth();
+        int[] row = new int[width];
+        int[] xs = new int[width];
+        int[] ys = new int[width];
+        for (int x = 0; x < width; x++)
+            xs[x] = x;
+        for (int y=0; y<view.getHeight(); y++)
+        {
+            Arrays.fill(ys, y);
+            countPixels(xs, ys, row, width);
+            if (isInterrupted())
+                return;
+            // the whole row is published at once.
+            publishCounts(0, y, width, 1, row);
+            recordCalculated(row, width);
+        }
+    }
+
+    /**
+     * draws the fractal by dividing up the screen into blocks, filling the blocks up with the
+     * color for the point at the upper-left corner. After we draw the big blocks, we break them into smaller
+     * blocks and repeat until we have made 1x1 pixel blocks.
+     * Each band of blocks is built up in a local array and then published in one go.
+     */
+    public void performPixelatedScan()
+    {
+        int width = view.getWidth();
+        int height = view.getHeight();
+        int resolution = Math.min(width, height);
+        int previous_resolution = resolution*2;
+        int[] first = new int[1];
+        countPixels(new int[] {0}, new int[] {0}, first, 1);
+        int firstCount = first[0];
+        fillCount(0, 0, resolution, resolution, firstCount);
+        if (metrics != null)
+            metrics.recordCalculated(1, RenderMetrics.iterationsFor(firstCount, maxCount), firstCount == 0 ? 1 : 0);
+        while (resolution > 0)
+        {
+            int[] band = new int[width*resolution];
+            int blocksPerBand = (width+resolution-1)/resolution;
+            int[] xs = new int[blocksPerBand];
+            int[] ys = new int[blocksPerBand];
+            int[] calculated = new int[blocksPerBand]; // the counts we work out in each band.
+            for (int y=0; y<height; y+= resolution)
+            {
+                int bandHeight = Math.min(resolution, height-y);
+                // blocks left over from the previous pass keep the count they already have; we work out the
+                // others all together.
+                int calculatedCount = 0;
+                for (int x=0; x<width; x+= resolution)
+                    if (!(x%(previous_resolution)==0 && y%(previous_resolution)==0))
+                    {
+                        xs[calculatedCount] = x;
+                        ys[calculatedCount] = y;
+                        calculatedCount++;
+                    }
+                countPixels(xs, ys, calculated, calculatedCount);
+                if (isInterrupted())
+                    return;
+                int nextCalculated = 0;
+                for (int x=0; x<width; x+= resolution)
+                {
+                    int count;
+                    if (x%(previous_resolution)==0 && y%(previous_resolution)==0)
+                        count = counts.get(x, y);
+                    else
+                        count = calculated[nextCalculated++];
+                    int blockWidth = Math.min(resolution, width-x);
+                    for (int row = 0; row < bandHeight; row++)
+                        Arrays.fill(band, row*width+x, row*width+x+blockWidth, count);
+                }
+                publishCounts(0, y, width, bandHeight, band);
+                recordCalculated(calculated, calculatedCount);
+            }
+            previous_resolution = resolution;
+            resolution /=2;
+
+        }
+    }
+
+    /**
+     * wrapper method to call the recursive divide-and-conquer scan for the whole frame.
+     */
+    public void performDivideAndConquerScan()
+    {
+        performDivideAndConquerScan(0,0,view.getWidth()-1,view.getHeight()-1);
+    }
+
+    /**
+     * draws the fractal for the box from (left, top) to (right, bottom), inclusive, by handing it to the
+     * pool as a DivideAndConquerTask (see below), and waits for the whole box to finish (or for the
+     * scan to be interrupted).
+     * @param left - x position of the top left corner of the region to draw, inclusive.
+     * @param top - y position of the top left corner of the region to draw, inclusive.
+     * @param right - x position of the bottom right corner of the region to draw, inclusive.
+     * @param bottom - y position of the bottom right corner of the region to draw, inclusive.
+     * @return the number of pixels that were calculated, rather than filled in.
+     */
+    public long performDivideAndConquerScan(int left, int top, int right, int bottom)
+    {
+        return pool.invoke(new DivideAndConquerTask(left, top, right, bottom, false, null));
+    }
+
+    /**
+     * draws the fractal with the divide-and-conquer scan, but only trusting a uniform border once the distance
+     * estimate says the edge of the set doesn't come near it (see DivideAndConquerTask.farFromEdge()). Where there is
+     * no estimate to go on (formulas without one, points inside a Multibrot set, or zooms past double precision),
+     * nothing is filled, so this calculates every pixel there.
+     * @return the number of pixels that were calculated, rather than filled in.
+     */
+    public long performDistanceGuidedScan()
+    {
+        return pool.invoke(new DivideAndConquerTask(0, 0, view.getWidth()-1, view.getHeight()-1, true, null));
+    }
+
+    /**
+     * draws the fractal with the divide-and-conquer scan, but finishing the parts nearest the focus (see getFocus())
+     * first, so that whatever the user is looking at shows up soonest. The rectangles are exactly the ones the
+     * divide-and-conquer scan would use, so the picture is exactly the same too; only the order changes.
+     *
+     * First the rectangles bigger than TILE_SIZE are split, a size at a time, with all of each size's borders
+     * calculated across the pool at once - which only takes a small part of the frame (the lines between them), or
+     * fills in big patches of one count. Then each thread in the pool takes the tile nearest the focus whenever it
+     * finishes one, so they are all kept busy until the last few tiles - and then the idle ones steal pieces of the
+     * rectangles those are split into, just as they do in the divide-and-conquer scan.
+     * @return the number of pixels that were calculated, rather than filled in.
+     */
+    public long performNearestFirstScan()
+    {
+        long calculated = 0;
+        List<DivideAndConquerTask> large = new ArrayList<DivideAndConquerTask>();
+        List<DivideAndConquerTask> tiles = new ArrayList<DivideAndConquerTask>();
+        large.add(new DivideAndConquerTask(0, 0, view.getWidth()-1, view.getHeight()-1, false, null));
+        while (!large.isEmpty() && !isInterrupted())
+        {
+            List<DivideAndConquerTask> splitting = new ArrayList<DivideAndConquerTask>();
+            List<ForkJoinTask<DivideAndConquerTask[]>> splits = new ArrayList<ForkJoinTask<DivideAndConquerTask[]>>();
+            for (DivideAndConquerTask rectangle : large)
+            {
+                if (rectangle.getWidth() <= TILE_SIZE && rectangle.getHeight() <= TILE_SIZE)
+                    tiles.add(rectangle);
+                else
+                {
+                    splitting.add(rectangle);
+                    splits.add(ForkJoinTask.adapt(rectangle::drawBorder));
+                }
+            }
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(splits)));
+            large.clear();
+            for (int i = 0; i < splits.size(); i++)
+            {
+                calculated += splitting.get(i).getBorderCalculated();
+                if (splits.get(i).getRawResult() != null)
+                    large.addAll(Arrays.asList(splits.get(i).getRawResult()));
+            }
+        }
+
+        TileQueue queue = new TileQueue(tiles);
+        AtomicLong tileCalculated = new AtomicLong();
+        List<ForkJoinTask<?>> workers = new ArrayList<ForkJoinTask<?>>();
+        for (int i = 0; i < pool.getParallelism(); i++)
+            workers.add(ForkJoinTask.adapt(() ->
+            {
+                DivideAndConquerTask tile;
+                while (!isInterrupted() && (tile = queue.next()) != null)
+                    // (calling compute() ourselves runs the tile's top rectangle in this worker; the quarters it
+                    // splits into are forked, so idle workers can help.)
+                    tileCalculated.addAndGet(tile.compute());
+            }));
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(workers)));
+        return calculated + tileCalculated.get();
+    }
+
+    /**
+     * The tiles the nearest-first scan hasn't started yet, nearest the focus first. Whenever a tile is taken, we look
+     * at where the focus is now, and if it has moved far enough since the tiles were put in order, we put them back
+     * in order around the new one. (There are only a few hundred tiles, so that's quick.)
+     */
+    private class TileQueue
+    {
+        private final int width, height;
+        private PriorityQueue<DivideAndConquerTask> waiting;
+        private int focusX, focusY; // where the focus was when the tiles were put in order.
+
+        public TileQueue(List<DivideAndConquerTask> tiles)
+        {
+            this.width = view.getWidth();
+            this.height = view.getHeight();
+            Point focus = currentFocus();
+            waiting = makeQueue(focus.x, focus.y);
+            waiting.addAll(tiles);
+        }
+
+        /**
+         * @return getFocus(), or the middle of the frame if that's null.
+         */
+        private Point currentFocus()
+        {
+            Point focus = getFocus();
+            return focus != null ? focus : new Point(width/2, height/2);
+        }
+
+        /**
+         * @return an empty queue that puts the tiles whose middles are nearest (x, y) first.
+         */
+        private PriorityQueue<DivideAndConquerTask> makeQueue(int x, int y)
+        {
+            focusX = x;
+            focusY = y;
+            return new PriorityQueue<DivideAndConquerTask>(64, (a, b) -> Long.compare(distanceSquared(a, x, y),
+                                                                                      distanceSquared(b, x, y)));
+        }
+
+        /**
+         * @return the square of twice the distance from the middle of a tile to (x, y). (Twice, so it stays whole.)
+         */
+        private long distanceSquared(DivideAndConquerTask tile, int x, int y)
+        {
+            long dx = tile.left + tile.right - 2L*x;
+            long dy = tile.top + tile.bottom - 2L*y;
+            return dx*dx + dy*dy;
+        }
+
+        /**
+         * @return the tile nearest the focus, taking it out of the queue, or null if there are none left.
+         */
+        public synchronized DivideAndConquerTask next()
+        {
+            Point focus = currentFocus();
+            if (Math.max(Math.abs(focus.x - focusX), Math.abs(focus.y - focusY)) > REFOCUS_DISTANCE)
+            {
+                PriorityQueue<DivideAndConquerTask> reordered = makeQueue(focus.x, focus.y);
+                reordered.addAll(waiting);
+                waiting = reordered;
+            }
+            return waiting.poll();
+        }
+    }
+
+    /**
+     * finds the counts for a batch of pixels with countPixels(), and reports them to the metrics - except for any
+     * that are already known, which are just copied over.
+     * @param known - the counts already worked out, by y*width + x, with -1 for the pixels that haven't been; or null
+     *              if there aren't any.
+     * @return how many of the pixels were calculated (if the scan wasn't interrupted).
+     */
+    private int countNewPixels(int[] xs, int[] ys, int[] pixelCounts, int length, int[] known)
+    {
+        if (known == null)
+        {
+            countPixels(xs, ys, pixelCounts, length);
+            if (!isInterrupted())
+                recordCalculated(pixelCounts, length);
+            return length;
+        }
+        int width = view.getWidth();
+        int[] needXs = new int[length];
+        int[] needYs = new int[length];
+        int[] needIndex = new int[length];
+        int needed = 0;
+        for (int i = 0; i < length; i++)
+        {
+            int count = known[ys[i]*width + xs[i]];
+            if (count >= 0)
+                pixelCounts[i] = count;
+            else
+            {
+                needXs[needed] = xs[i];
+                needYs[needed] = ys[i];
+                needIndex[needed] = i;
+                needed++;
+            }
+        }
+        if (needed == 0)
+            return 0;
+        int[] neededCounts = new int[needed];
+        countPixels(needXs, needYs, neededCounts, needed);
+        if (isInterrupted())
+            return needed;
+        for (int i = 0; i < needed; i++)
+            pixelCounts[needIndex[i]] = neededCounts[i];
+        recordCalculated(neededCounts, needed);
+        return needed;
+    }
+
+    /**
+     * finds the escape counts for a horizontal or vertical line of pixels, starting at (x, y) and stepping by
+     * (dx, dy), and publishes them as a single 1-pixel-thick strip.
+     * @param lineCounts - receives the count for each pixel on the line; its length is the length of the line.
+     * @param known - the counts already worked out (see countNewPixels()), or null
+     * @return how many pixels on the line were calculated, or -1 if the scan was interrupted part way.
+     */
+    private int calculateLine(int x, int y, int dx, int dy, int[] lineCounts, int[] known)
+    {
+        int[] xs = new int[lineCounts.length];
+        int[] ys = new int[lineCounts.length];
+        for (int i = 0; i < lineCounts.length; i++)
+        {
+            xs[i] = x+i*dx;
+            ys[i] = y+i*dy;
+        }
+        int calculated = countNewPixels(xs, ys, lineCounts, lineCounts.length, known);
+        if (isInterrupted())
+            return -1;
+        if (dx != 0)
+            publishCounts(x, y, lineCounts.length, 1, lineCounts);
+        else
+            publishCounts(x, y, 1, lineCounts.length, lineCounts);
+        return calculated;
+    }
+
+    /**
+     * draws the fractal by following the edges between areas of different counts, and then filling in the areas
+     * between them without calculating them at all.
+     *
+     * We start with every pixel around the edge of the frame in line. Taking a pixel from the line, we calculate its
+     * four neighbors (if they haven't been already), and any neighbor with a different count from it is on an edge, so
+     * it goes in line too (along with the diagonal neighbors next to it). So the calculation creeps along every edge
+     * that touches the ones we already know about, and never wanders into the middle of a patch of one count.
+     *
+     * An edge that never touches the sides of the frame would be missed - but for the Mandelbrot set (and the others,
+     * mostly), every such edge goes round the origin, since the set is all in one piece and has the origin in it. So
+     * if the origin is in the frame, the row of pixels from it out to the left side goes in line at the start, too,
+     * and crosses every one of those edges.
+     *
+     * When the line runs out, every pixel we never calculated is inside a patch whose edge we have traced all the way
+     * round. Outside the set, the counts only change in bands that we have just traced, so there each of them has the
+     * same count as the pixel to its left. Inside the set, though, there can be single pixels that escape, with
+     * nothing but the set around them, which no tracing would ever reach. So the patches inside the set are left to
+     * the divide-and-conquer scan, which takes what we traced as it is and only calculates the rest of its borders,
+     * and won't fill a rectangle with anything we traced disagreeing inside it. That way this scan is never wrong
+     * about a pixel that the divide-and-conquer scan would have got right.
+     *
+     * The pixels are taken from the line a "wave" at a time: all the neighbors a wave needs are calculated together,
+     * in pieces spread across the pool, and published as runs along each row.
+     */
+    public void performBoundaryTraceScan()
+    {
+        int width = view.getWidth();
+        int height = view.getHeight();
+        int[] traced = new int[width*height]; // the counts we have calculated, by y*width + x, and -1 for the rest.
+        Arrays.fill(traced, -1);
+        byte[] state = new byte[width*height];
+        int[] wave = new int[width*height];
+        int[] nextWave = new int[width*height];
+        int[] toCalculate = new int[width*height];
+
+        int waveLength = 0;
+        for (int x = 0; x < width; x++)
+        {
+            waveLength = enqueue(x, state, wave, waveLength);
+            waveLength = enqueue((height-1)*width + x, state, wave, waveLength);
+        }
+        for (int y = 1; y < height-1; y++)
+        {
+            waveLength = enqueue(y*width, state, wave, waveLength);
+            waveLength = enqueue(y*width + width-1, state, wave, waveLength);
+        }
+        if (view.pixelX2MathX(0) <= 0 && view.pixelX2MathX(width-1) >= 0 &&
+            view.pixelY2MathY(0) >= 0 && view.pixelY2MathY(height-1) <= 0)
+        {
+            int originX = 0, originY = 0;
+            while (originX < width-1 && view.pixelX2MathX(originX+1) <= 0)
+                originX++;
+            while (originY < height-1 && view.pixelY2MathY(originY+1) >= 0)
+                originY++;
+            for (int x = 0; x <= originX; x++)
+                waveLength = enqueue(originY*width + x, state, wave, waveLength);
+        }
+
+        while (waveLength > 0)
+        {
+            // calculate every pixel in this wave, and their neighbors, that we don't know yet...
+            int calculateLength = 0;
+            for (int i = 0; i < waveLength; i++)
+            {
+                int p = wave[i];
+                int x = p % width, y = p / width;
+                calculateLength = needCalculating(p, state, toCalculate, calculateLength);
+                if (x > 0)
+                    calculateLength = needCalculating(p-1, state, toCalculate, calculateLength);
+                if (x < width-1)
+                    calculateLength = needCalculating(p+1, state, toCalculate, calculateLength);
+                if (y > 0)
+                    calculateLength = needCalculating(p-width, state, toCalculate, calculateLength);
+                if (y < height-1)
+                    calculateLength = needCalculating(p+width, state, toCalculate, calculateLength);
+            }
+            if (!calculateTraced(toCalculate, calculateLength, traced))
+                return;
+
+            // ... then put the neighbors that are across an edge from them in line for the next wave.
+            int nextLength = 0;
+            for (int i = 0; i < waveLength; i++)
+            {
+                int p = wave[i];
+                int x = p % width, y = p / width;
+                int count = traced[p];
+                boolean left = x > 0 && traced[p-1] != count;
+                boolean right = x < width-1 && traced[p+1] != count;
+                boolean up = y > 0 && traced[p-width] != count;
+                boolean down = y < height-1 && traced[p+width] != count;
+                if (left)
+                    nextLength = enqueue(p-1, state, nextWave, nextLength);
+                if (right)
+                    nextLength = enqueue(p+1, state, nextWave, nextLength);
+                if (up)
+                    nextLength = enqueue(p-width, state, nextWave, nextLength);
+                if (down)
+                    nextLength = enqueue(p+width, state, nextWave, nextLength);
+                if ((up || left) && x > 0 && y > 0)
+                    nextLength = enqueue(p-width-1, state, nextWave, nextLength);
+                if ((up || right) && x < width-1 && y > 0)
+                    nextLength = enqueue(p-width+1, state, nextWave, nextLength);
+                if ((down || left) && x > 0 && y < height-1)
+                    nextLength = enqueue(p+width-1, state, nextWave, nextLength);
+                if ((down || right) && x < width-1 && y < height-1)
+                    nextLength = enqueue(p+width+1, state, nextWave, nextLength);
+            }
+            int[] swap = wave;
+            wave = nextWave;
+            nextWave = swap;
+            waveLength = nextLength;
+        }
+
+        // fill in the runs outside the set from the left (the left column was all calculated, so every run has a
+        // pixel to its left)... With smooth coloring, the fractions change across a patch even where the counts
+        // don't, so then we leave those to be calculated too.
+        long filled = 0;
+        for (int y = 0; y < height && !counts.hasFractions(); y++)
+        {
+            int x = 0;
+            while (x < width)
+            {
+                if (traced[y*width + x] >= 0)
+                {
+                    x++;
+                    continue;
+                }
+                int count = traced[y*width + x-1];
+                int runStart = x;
+                while (x < width && traced[y*width + x] < 0)
+                    x++;
+                if (count == 0)
+                    continue;
+                fillCount(runStart, y, x-runStart, 1, count);
+                Arrays.fill(traced, y*width + runStart, y*width + x, count);
+                filled += x-runStart;
+            }
+        }
+        if (metrics != null)
+            metrics.recordFilled(filled);
+        // ... and the rest with the divide-and-conquer scan, handing it everything we know so far (see
+        // DivideAndConquerTask), so it only calculates the parts of its borders that are inside the set.
+        if (!isInterrupted())
+            pool.invoke(new DivideAndConquerTask(0, 0, width-1, height-1, false, traced));
+    }
+
+    /**
+     * puts a pixel in line for the boundary trace, unless it has been in line before.
+     * @param p - the pixel, as y*width + x
+     * @param state - what the trace knows about each pixel
+     * @param queue - the line to add it to
+     * @param length - how many pixels are in the line already
+     * @return how many pixels are in the line now.
+     */
+    private static int enqueue(int p, byte[] state, int[] queue, int length)
+    {
+        if ((state[p] & TRACE_QUEUED) != 0)
+            return length;
+        state[p] |= TRACE_QUEUED;
+        queue[length] = p;
+        return length+1;
+    }
+
+    /**
+     * adds a pixel to the list the boundary trace is about to calculate, unless it is already calculated (or listed).
+     * @return how many pixels are in the list now.
+     */
+    private static int needCalculating(int p, byte[] state, int[] list, int length)
+    {
+        if ((state[p] & TRACE_CALCULATED) != 0)
+            return length;
+        state[p] |= TRACE_CALCULATED;
+        list[length] = p;
+        return length+1;
+    }
+
+    /**
+     * calculates a list of pixels for the boundary trace, in pieces spread across the pool, records their counts in
+     * traced, and publishes them as runs along each row. (The list is sorted along the way.)
+     * @param pixels - the pixels, each as y*width + x
+     * @param length - how many pixels there are
+     * @param traced - receives the count for each pixel, by y*width + x
+     * @return whether they were all calculated; false if the scan was interrupted.
+     */
+    private boolean calculateTraced(int[] pixels, int length, int[] traced)
+    {
+        if (length == 0)
+            return !isInterrupted();
+        int width = view.getWidth();
+        Arrays.sort(pixels, 0, length);
+        int[] xs = new int[length];
+        int[] ys = new int[length];
+        int[] pixelCounts = new int[length];
+        for (int i = 0; i < length; i++)
+        {
+            xs[i] = pixels[i] % width;
+            ys[i] = pixels[i] / width;
+        }
+        if (length <= TRACE_CHUNK_SIZE)
+            countPixels(xs, ys, pixelCounts, length);
+        else
+        {
+            List<ForkJoinTask<?>> chunks = new ArrayList<ForkJoinTask<?>>();
+            for (int start = 0; start < length; start += TRACE_CHUNK_SIZE)
+            {
+                int from = start;
+                int to = Math.min(start + TRACE_CHUNK_SIZE, length);
+                chunks.add(ForkJoinTask.adapt(() ->
+                {
+                    int[] chunkCounts = new int[to-from];
+                    countPixels(Arrays.copyOfRange(xs, from, to), Arrays.copyOfRange(ys, from, to), chunkCounts,
+                                to-from);
+                    System.arraycopy(chunkCounts, 0, pixelCounts, from, to-from);
+                }));
+            }
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(chunks)));
+        }
+        if (isInterrupted())
+            return false;
+        for (int i = 0; i < length; i++)
+            traced[pixels[i]] = pixelCounts[i];
+        recordCalculated(pixelCounts, length);
+
+        // publish each run of neighboring pixels along a row together.
+        int runStart = 0;
+        for (int i = 1; i <= length; i++)
+            if (i == length || pixels[i] != pixels[i-1]+1 || ys[i] != ys[runStart])
+            {
+                publishCounts(xs[runStart], ys[runStart], i-runStart, 1,
+                              Arrays.copyOfRange(pixelCounts, runStart, i));
+                runStart = i;
+            }
+        return true;
+    }
+
+    /**
+     * One rectangle of the divide-and-conquer (Mariani-Silver) scan. Calculates (and publishes) all the points on
+     * the border of the rectangle. If these all have the same count, saves time by filling in the rectangle with
+     * that count. Otherwise, insets the rectangle by 1 pixel inwards, divides it up into quarters, and forks a
+     * task for each quarter, so that idle threads in the pool can steal them.
+     * The result is the number of pixels that were actually calculated, rather than filled.
+     *
+     * A uniform border is only a guess that nothing different is inside: a filament of the set thinner than a pixel
+     * can slip in between two border pixels and out again (or a thin channel of escaping points can, into the set).
+     * With distance guiding on, we check that guess before filling, with the distance estimate of each pixel on it.
+     *
+     * The boundary trace finishes with this scan, handing it the counts it has traced so far ("known"). Those are
+     * used rather than calculated again, and a rectangle is only filled if none of them inside it disagree.
+     */
+    @SuppressWarnings("serial") // (tasks are never serialized.)
+    private class DivideAndConquerTask extends RecursiveTask<Long>
+    {
+        private final int left, top, right, bottom;
+        private final boolean distanceGuided;
+        private final int[] known; // counts already worked out, by y*width + x, -1 where not; or null.
+        private long borderCalculated; // set by drawBorder().
+
+        public DivideAndConquerTask(int left, int top, int right, int bottom, boolean distanceGuided, int[] known)
+        {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.distanceGuided = distanceGuided;
+            this.known = known;
+        }
+
+        /**
+         * @return how many pixels in the rectangle from (left, top) to (right, bottom) aren't known yet, or -1 if any
+         * that are known have a count other than the given one.
+         */
+        private long countUnknown(int left, int top, int right, int bottom, int count)
+        {
+            int width = view.getWidth();
+            long unknown = 0;
+            for (int y = top; y <= bottom; y++)
+                for (int x = left; x <= right; x++)
+                {
+                    int knownCount = known[y*width + x];
+                    if (knownCount < 0)
+                        unknown++;
+                    else if (knownCount != count)
+                        return -1;
+                }
+            return unknown;
+        }
+
+        /**
+         * @return whether the rectangle of pixels from (left, top) to (right, bottom) goes all the way round the
+         * origin of the complex plane. The set has the origin in it, for every formula we draw (or, for a Julia
+         * set that has broken up into dust, has bits all around it), and a rectangle around the whole set can have
+         * a border that all escapes on the same step, with higher counts in the middle. That happens in the
+         * default view of the Multibrot sets, for instance. Rectangles that don't go round the origin can't have
+         * the whole set inside them, so a uniform border means what it always did.
+         */
+        private boolean enclosesOrigin(int left, int top, int right, int bottom)
+        {
+            return view.pixelX2MathX(left) < 0 && view.pixelX2MathX(right) > 0 &&
+                   view.pixelY2MathY(bottom) < 0 && view.pixelY2MathY(top) > 0;
+        }
+
+        /**
+         * checks the border of a rectangle against the distance estimate. Each pixel's estimate clears a disk around
+         * it of the edge of the set; if those disks cover the whole border, the edge can't cross it anywhere, so the
+         * border is all inside the set or all outside it.
+         * - Inside: the set has no holes, so the whole rectangle is in the set.
+         * - Outside: the set is all in one piece, and the rectangle doesn't go round the origin, so none of the set
+         *   is inside the rectangle either. The edges between counts only get finer than a pixel right up against
+         *   the set, so then a uniform border really does mean a uniform inside.
+         * @return whether the border is far enough from the edge to trust; false if any pixel we look at has no
+         * estimate, since then we can't tell.
+         */
+        private boolean farFromEdge(int left, int top, int right, int bottom)
+        {
+            return farFromEdge(left, top, 1, 0, right-left+1) && farFromEdge(left, bottom, 1, 0, right-left+1) &&
+                   farFromEdge(left, top, 0, 1, bottom-top+1) && farFromEdge(right, top, 0, 1, bottom-top+1);
+        }
+
+        /**
+         * checks one side of a rectangle, starting at (x, y) and stepping by (dx, dy). Rather than asking every pixel
+         * for its estimate, we jump along by as far as each one has cleared, backing up to the very next pixel if the
+         * one we land on doesn't clear enough to meet it.
+         * @param length - how many pixels long the side is
+         * @return whether the disks cover the whole side. (A missing estimate, NaN, never covers anything: the
+         * comparisons are written so that NaN fails them.)
+         */
+        private boolean farFromEdge(int x, int y, int dx, int dy, int length)
+        {
+            int i = 0;
+            double distance = view.estimateDistance(x, y);
+            if (Double.isNaN(distance))
+                return false;
+            while (i < length-1)
+            {
+                int j = Math.min(length-1, i + Math.max(1, (int)distance));
+                double next = view.estimateDistance(x + j*dx, y + j*dy);
+                if (!(distance + next >= j - i + DISTANCE_MARGIN_PIXELS) && j > i+1)
+                {
+                    j = i+1;
+                    next = view.estimateDistance(x + j*dx, y + j*dy);
+                }
+                if (!(distance + next >= j - i + DISTANCE_MARGIN_PIXELS))
+                    return false;
+                i = j;
+                distance = next;
+            }
+            return true;
+        }
+
+        public int getWidth() {return right - left + 1;}
+        public int getHeight() {return bottom - top + 1;}
+
+        /**
+         * @return how many pixels drawBorder() calculated.
+         */
+        public long getBorderCalculated() {return borderCalculated;}
+
+        @Override
+        protected Long compute()
+        {
+            DivideAndConquerTask[] quarters = drawBorder();
+            if (quarters == null)
+                return borderCalculated;
+            invokeAll(quarters);
+            long calculated = borderCalculated;
+            for (DivideAndConquerTask quarter : quarters)
+                calculated += quarter.join();
+            return calculated;
+        }
+
+        /**
+         * does this rectangle's own part of the scan: calculates its border (or every pixel, if it's small), and fills
+         * in the inside if it can. The number of pixels calculated is left in borderCalculated.
+         * @return the quarters of the inside still to be drawn, or null if there are none (or the scan was
+         * interrupted).
+         */
+        public DivideAndConquerTask[] drawBorder()
+        {
+            // base case: the rectangle is "inside out," so there is nothing to draw.
+            if (left > right || top > bottom || isInterrupted())
+                return null;
+
+            int width = right - left + 1;
+            int height = bottom - top + 1;
+
+            // small boxes aren't worth subdividing - just calculate every pixel, and publish them together.
+            if (width <= MIN_SUBDIVIDE_SIZE || height <= MIN_SUBDIVIDE_SIZE)
+            {
+                int[] boxCounts = new int[width*height];
+                int[] xs = new int[width*height];
+                int[] ys = new int[width*height];
+                for (int y = top; y <= bottom; y++)
+                    for (int x = left; x <= right; x++)
+                    {
+                        xs[(y-top)*width + x-left] = x;
+                        ys[(y-top)*width + x-left] = y;
+                    }
+                int calculated = countNewPixels(xs, ys, boxCounts, boxCounts.length, known);
+                if (isInterrupted())
+                    return null;
+                publishCounts(left, top, width, height, boxCounts);
+                borderCalculated = calculated;
+                return null;
+            }
+
+            // calculate the border, then check whether every pixel on it has the same count.
+            int[] topRow = new int[width];
+            int[] bottomRow = new int[width];
+            int[] leftColumn = new int[height-2];
+            int[] rightColumn = new int[height-2];
+            int topCalculated = calculateLine(left, top, 1, 0, topRow, known);
+            int bottomCalculated = topCalculated < 0 ? -1 : calculateLine(left, bottom, 1, 0, bottomRow, known);
+            int leftCalculated = bottomCalculated < 0 ? -1 : calculateLine(left, top+1, 0, 1, leftColumn, known);
+            int rightCalculated = leftCalculated < 0 ? -1 : calculateLine(right, top+1, 0, 1, rightColumn, known);
+            if (rightCalculated < 0)
+                return null;
+            borderCalculated = (long)topCalculated + bottomCalculated + leftCalculated + rightCalculated;
+
+            int borderCount = topRow[0];
+            boolean uniform = true;
+            for (int i = 0; i < width && uniform; i++)
+                uniform = topRow[i] == borderCount && bottomRow[i] == borderCount;
+            for (int i = 0; i < height-2 && uniform; i++)
+                uniform = leftColumn[i] == borderCount && rightColumn[i] == borderCount;
+
+            // (with smooth coloring, the fractions change across a rectangle even where the counts don't, so then we
+            // only fill in rectangles that are inside the set. And a border of escaping pixels that goes all the way
+            // round the origin may have the whole set inside it - see enclosesOrigin(). With distance guiding on, the
+            // border has to pass farFromEdge() too.)
+            boolean fill = uniform &&
+                           (borderCount == 0 || (!counts.hasFractions() && !enclosesOrigin(left, top, right, bottom)));
+            long filled = (long)(width-2)*(height-2);
+            if (fill && known != null)
+            {
+                filled = countUnknown(left+1, top+1, right-1, bottom-1, borderCount);
+                fill = filled >= 0;
+            }
+            if (fill && (!distanceGuided || farFromEdge(left, top, right, bottom)))
+            {
+                fillCount(left+1, top+1, width-2, height-2, borderCount);
+                if (metrics != null)
+                    metrics.recordFilled(filled);
+                return null;
+            }
+
+            // inset by one pixel and split what's left into quarters.
+            int midX = (left + right) / 2;
+            int midY = (top + bottom) / 2;
+            DivideAndConquerTask topLeft = new DivideAndConquerTask(left+1, top+1, midX, midY, distanceGuided, known);
+            DivideAndConquerTask topRight = new DivideAndConquerTask(midX+1, top+1, right-1, midY, distanceGuided,
+                                                                     known);
+            DivideAndConquerTask bottomLeft = new DivideAndConquerTask(left+1, midY+1, midX, bottom-1, distanceGuided,
+                                                                       known);
+            DivideAndConquerTask bottomRight = new DivideAndConquerTask(midX+1, midY+1, right-1, bottom-1,
+                                                                        distanceGuided, known);
+            return new DivideAndConquerTask[] {topLeft, topRight, bottomLeft, bottomRight};
+        }
+    }
+}
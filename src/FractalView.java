@@ -0,0 +1,490 @@
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A snapshot of everything needed to calculate one frame: the bounds on the complex plane, the size in pixels and
+ * the kernel. The render thread makes a new one for each frame, so the scans never see the bounds change part way
+ * through.
+ *
+ * The view picks the cheapest arithmetic that can still tell neighboring pixels apart, from the distance between
+ * them (the pixel pitch):
+ * - PRECISION_FLOAT, when zoomed well out, if allowed. This is a little off along the edge of the set (a pixel
+ *   or so in a thousand there gets a different count), so it is only used when asked for,
+ * - PRECISION_DOUBLE, the usual case,
+ * - PRECISION_DOUBLE_DOUBLE, once doubles give out (DOUBLE_PITCH),
+ * - PRECISION_PERTURBATION, past what double-doubles can hold (DOUBLE_DOUBLE_PITCH). Here it calculates a
+ *   ReferenceOrbit at full (BigDecimal) precision and finds every pixel's count as a double-precision offset from
+ *   it. Pixels where the offset can't be trusted ("glitches") are retried against other references, and new
+ *   references are added where needed, up to MAX_REFERENCES.
+ * Only MandelbrotKernel has the float, double-double and perturbation versions, so with any other FractalKernel
+ * the view always uses PRECISION_DOUBLE (and deep zooms eventually turn into blocks).
+ */
+public class FractalView
+{
+    public static final int PRECISION_FLOAT = 0;
+    public static final int PRECISION_DOUBLE = 1;
+    public static final int PRECISION_DOUBLE_DOUBLE = 2;
+    public static final int PRECISION_PERTURBATION = 3;
+    public static final String[] PRECISION_NAMES = {"float", "double", "double-double", "perturbation"};
+
+    // floats are only used when the pixels are at least this far apart.
+    public static final double FLOAT_PITCH = 1e-3;
+    // below this distance between pixels, plain doubles turn the picture into blocks.
+    public static final double DOUBLE_PITCH = 1e-13;
+    // below this, double-doubles (about 32 digits) run out too, and we switch to perturbation.
+    public static final double DOUBLE_DOUBLE_PITCH = 1e-28;
+    // past this, even the offsets from the reference would underflow a double.
+    public static final double MIN_PIXEL_PITCH = 1e-290;
+    // the most reference orbits a single frame may use to fix glitches.
+    private static final int MAX_REFERENCES = 32;
+
+    private final ComplexRange bounds;
+    private final int width, height;
+    private final FractalKernel kernel;
+    private final MandelbrotKernel mandelbrot; // the same kernel, if it is the Mandelbrot one; otherwise null.
+    private final double minMathX, minMathY, maxMathX, maxMathY;
+    // the width and height of the bounds, worked out at full precision (at a deep zoom, maxMathX-minMathX may be 0).
+    private final double spanX, spanY;
+    private final int precision;
+    // for the double-double tier: the corner (minX, maxY) and the step between pixels, each split into hi + lo.
+    private double minXHi, minXLo, maxYHi, maxYLo, stepXHi, stepXLo, stepYHi, stepYLo;
+    private final List<ReferenceOrbit> references; // only used for deep zooms; the first is at the center.
+    private MathContext mathContext;
+
+    public FractalView(ComplexRange bounds, int width, int height, FractalKernel kernel)
+    {
+        this(bounds, width, height, kernel, false);
+    }
+
+    /**
+     * @param bounds - the part of the complex plane to draw
+     * @param width - the width of the frame, in pixels
+     * @param height - the height of the frame, in pixels
+     * @param kernel - the kernel to find escape counts with
+     * @param allowFloat - whether single precision may be used when zoomed well out
+     */
+    public FractalView(ComplexRange bounds, int width, int height, FractalKernel kernel, boolean allowFloat)
+    {
+        this.bounds = bounds;
+        this.width = width;
+        this.height = height;
+        this.kernel = kernel;
+        mandelbrot = kernel instanceof MandelbrotKernel ? (MandelbrotKernel) kernel : null;
+        minMathX = bounds.getMin().getReal();
+        minMathY = bounds.getMin().getImaginary();
+        maxMathX = bounds.getMax().getReal();
+        maxMathY = bounds.getMax().getImaginary();
+        spanX = bounds.getPreciseMax().getReal().subtract(bounds.getPreciseMin().getReal()).doubleValue();
+        spanY = bounds.getPreciseMax().getImaginary().subtract(bounds.getPreciseMin().getImaginary()).doubleValue();
+        if (mandelbrot == null)
+            precision = PRECISION_DOUBLE;
+        else
+            precision = choosePrecision(width > 0 && height > 0 ? getPixelPitch() : 1, allowFloat);
+        if (precision == PRECISION_DOUBLE_DOUBLE)
+            splitForDoubleDouble();
+        references = new ArrayList<ReferenceOrbit>();
+    }
+
+    /**
+     * @return the cheapest PRECISION_ tier that can tell pixels this far apart from each other.
+     */
+    public static int choosePrecision(double pixelPitch, boolean allowFloat)
+    {
+        if (pixelPitch >= FLOAT_PITCH && allowFloat)
+            return PRECISION_FLOAT;
+        if (pixelPitch >= DOUBLE_PITCH)
+            return PRECISION_DOUBLE;
+        if (pixelPitch >= DOUBLE_DOUBLE_PITCH)
+            return PRECISION_DOUBLE_DOUBLE;
+        return PRECISION_PERTURBATION;
+    }
+
+    /**
+     * works out the hi + lo parts of the corner and pixel steps, from the full-precision bounds.
+     */
+    private void splitForDoubleDouble()
+    {
+        MathContext mc = BigComplex.contextForPitch(getPixelPitch());
+        BigDecimal minX = bounds.getPreciseMin().getReal();
+        BigDecimal maxY = bounds.getPreciseMax().getImaginary();
+        BigDecimal stepX = bounds.getPreciseMax().getReal().subtract(minX).divide(new BigDecimal(width), mc);
+        BigDecimal stepY = maxY.subtract(bounds.getPreciseMin().getImaginary()).divide(new BigDecimal(height), mc);
+        minXHi = minX.doubleValue();
+        minXLo = minX.subtract(new BigDecimal(minXHi)).doubleValue();
+        maxYHi = maxY.doubleValue();
+        maxYLo = maxY.subtract(new BigDecimal(maxYHi)).doubleValue();
+        stepXHi = stepX.doubleValue();
+        stepXLo = stepX.subtract(new BigDecimal(stepXHi)).doubleValue();
+        stepYHi = stepY.doubleValue();
+        stepYLo = stepY.subtract(new BigDecimal(stepYHi)).doubleValue();
+    }
+
+    public ComplexRange getBounds() {return bounds;}
+    public int getWidth() {return width;}
+    public int getHeight() {return height;}
+    public FractalKernel getKernel() {return kernel;}
+    public boolean isDeepZoom() {return precision == PRECISION_PERTURBATION;}
+    public int getPrecision() {return precision;}
+
+    /**
+     * @return the smaller of the horizontal and vertical distances between neighboring pixels on the complex plane.
+     */
+    public double getPixelPitch()
+    {
+        return Math.min(spanX/width, spanY/height);
+    }
+
+    /**
+     * Converts a given horizontal pixel value into the mathematical x-coordinate that this pixel represents.
+     * (Same as RecursiveFractalPanel.pixelX2MathX(), but for this frame's bounds and size.)
+     */
+    public double pixelX2MathX(int x)
+    {
+        if (minMathX == maxMathX)
+            return minMathX;
+        double frac = ((double)x)/width;
+        return minMathX + frac*(maxMathX-minMathX);
+    }
+
+    /**
+     * Converts a given vertical pixel value into the mathematical y-coordinate that this pixel represents.
+     * (Same as RecursiveFractalPanel.pixelY2MathY(), but for this frame's bounds and size.)
+     */
+    public double pixelY2MathY(int y)
+    {
+        if (minMathY == maxMathY)
+            return minMathY;
+        double frac = 1 - ((double)y)/height; // used 1-y/H because screen is inverted in y.
+        return minMathY + frac*(maxMathY-minMathY);
+    }
+
+    /**
+     * finds the escape counts for a batch of pixels, giving the same counts as calling countAt() on each. In double
+     * precision (by far the most common case) and in single precision, the batch is handed to the kernel all at once,
+     * so that it can work on several pixels side by side; the deeper precisions just go one pixel at a time.
+     * @param xs - the x coordinates of the pixels
+     * @param ys - the y coordinates of the pixels
+     * @param counts - receives the count for each pixel
+     * @param length - how many pixels there are
+     */
+    public void countPixels(int[] xs, int[] ys, int[] counts, int length)
+    {
+        if (precision == PRECISION_FLOAT)
+        {
+            float[] floatCr = new float[length];
+            float[] floatCi = new float[length];
+            for (int i = 0; i < length; i++)
+            {
+                floatCr[i] = (float)pixelX2MathX(xs[i]);
+                floatCi[i] = (float)pixelY2MathY(ys[i]);
+            }
+            mandelbrot.countStepsToExitFloat(floatCr, floatCi, counts, length);
+            return;
+        }
+        if (precision != PRECISION_DOUBLE)
+        {
+            for (int i = 0; i < length; i++)
+                counts[i] = countAt(xs[i], ys[i]);
+            return;
+        }
+        double[] cr = new double[length];
+        double[] ci = new double[length];
+        for (int i = 0; i < length; i++)
+        {
+            cr[i] = pixelX2MathX(xs[i]);
+            ci[i] = pixelY2MathY(ys[i]);
+        }
+        kernel.countStepsToExit(cr, ci, counts, length);
+    }
+
+    /**
+     * like countPixels(), but keeping track of where the pixels that don't escape got to (see IterationState),
+     * perhaps carrying on from an earlier frame's state rather than starting from scratch, and perhaps working out
+     * smooth-coloring fractions too. Pixels that escaped in the earlier frame keep their counts (and fractions),
+     * pixels it proved are in the set stay at zero, pixels that ran out of steps carry on from where they stopped,
+     * and the rest (e.g. ones that frame filled in without calculating) start from the beginning. Every pixel ends
+     * up with the same count it would have had anyway.
+     * This only applies in double precision; the other precisions just go through countAt(), and record nothing
+     * (and their fractions are left at zero).
+     * @param xs - the x coordinates of the pixels
+     * @param ys - the y coordinates of the pixels
+     * @param counts - receives the count for each pixel
+     * @param fractions - receives the smooth-coloring fraction for each pixel, or null if we don't want them
+     * @param length - how many pixels there are
+     * @param resumeFrom - the finished state to carry on from, or null. Its canResume() must be true for this view.
+     * @param record - where to record this frame's state, or null.
+     * @param batched - whether to hand the kernel all the pixels at once (see countPixels()), rather than one at a
+     *                time. The fractions only come from the batch kernel, so if we want them, this is ignored.
+     */
+    public void countPixels(int[] xs, int[] ys, int[] counts, float[] fractions, int length,
+                            IterationState resumeFrom, IterationState record, boolean batched)
+    {
+        if (precision != PRECISION_DOUBLE)
+        {
+            for (int i = 0; i < length; i++)
+                counts[i] = countAt(xs[i], ys[i]);
+            return;
+        }
+        // sort the pixels into the ones carrying on from the earlier frame, and the ones starting afresh, each with
+        // a list of where they are in the batch. (We know the rest already.)
+        int fromCount = resumeFrom == null ? 0 : resumeFrom.getMaxCount();
+        int[] carryOn = new int[length], fresh = new int[length];
+        int carryOnLength = 0, freshLength = 0;
+        double[] z = new double[2];
+        double[] carryZr = new double[length], carryZi = new double[length];
+        for (int i = 0; i < length; i++)
+        {
+            if (resumeFrom == null)
+                fresh[freshLength++] = i;
+            else if (resumeFrom.loadStillGoing(xs[i], ys[i], z))
+            {
+                carryZr[carryOnLength] = z[0];
+                carryZi[carryOnLength] = z[1];
+                carryOn[carryOnLength++] = i;
+            }
+            else if (resumeFrom.isInside(xs[i], ys[i]))
+            {
+                counts[i] = 0;
+                if (record != null)
+                    record.recordInside(xs[i], ys[i]);
+            }
+            else if (resumeFrom.getCount(xs[i], ys[i]) != 0)
+            {
+                counts[i] = resumeFrom.getCount(xs[i], ys[i]);
+                if (fractions != null)
+                    fractions[i] = resumeFrom.getFraction(xs[i], ys[i]);
+            }
+            else
+                fresh[freshLength++] = i;
+        }
+        boolean useBatch = batched || fractions != null;
+        continuePixels(xs, ys, counts, fractions, carryOn, carryOnLength, carryZr, carryZi, fromCount, record,
+                       useBatch);
+        continuePixels(xs, ys, counts, fractions, fresh, freshLength, new double[freshLength],
+                       new double[freshLength], 0, record, useBatch);
+    }
+
+    /**
+     * carries some of the pixels in a batch on from the given number of steps, and records how they finished.
+     * @param which - the positions (in xs, ys, counts and fractions) of the pixels to carry on
+     * @param whichLength - how many of them there are
+     * @param zr - the real parts of their z values after fromCount steps
+     * @param zi - the imaginary parts of their z values
+     */
+    private void continuePixels(int[] xs, int[] ys, int[] counts, float[] fractions, int[] which, int whichLength,
+                                double[] zr, double[] zi, int fromCount, IterationState record, boolean batched)
+    {
+        if (whichLength == 0)
+            return;
+        double[] cr = new double[whichLength];
+        double[] ci = new double[whichLength];
+        for (int j = 0; j < whichLength; j++)
+        {
+            cr[j] = pixelX2MathX(xs[which[j]]);
+            ci[j] = pixelY2MathY(ys[which[j]]);
+        }
+        int[] results = new int[whichLength];
+        float[] whichFractions = fractions == null ? null : new float[whichLength];
+        if (batched)
+            kernel.continueStepsToExit(cr, ci, zr, zi, fromCount, results, whichFractions, whichLength);
+        else
+        {
+            double[] z = new double[2];
+            for (int j = 0; j < whichLength; j++)
+            {
+                z[0] = zr[j];
+                z[1] = zi[j];
+                results[j] = kernel.continueStepsToExit(cr[j], ci[j], z, fromCount);
+                zr[j] = z[0];
+                zi[j] = z[1];
+            }
+        }
+        for (int j = 0; j < whichLength; j++)
+        {
+            int i = which[j];
+            if (results[j] >= 0)
+            {
+                counts[i] = results[j];
+                if (fractions != null)
+                    fractions[i] = whichFractions[j];
+                continue;
+            }
+            counts[i] = 0;
+            if (record == null)
+                continue;
+            if (results[j] == FractalKernel.PROVEN_INSIDE)
+                record.recordInside(xs[i], ys[i]);
+            else
+                record.recordStillGoing(xs[i], ys[i], zr[j], zi[j]);
+        }
+    }
+
+    /**
+     * @return a lower bound on how many pixels away from the edge of the set the given pixel's point is (0 if we
+     * couldn't pin it down), or NaN if we can't tell at all: the formula has no distance estimate for this point (see
+     * FractalKernel.estimateDistance()), or the frame is zoomed in too far to tell pixels apart in doubles.
+     */
+    public double estimateDistance(int x, int y)
+    {
+        if (precision != PRECISION_FLOAT && precision != PRECISION_DOUBLE)
+            return Double.NaN;
+        // (in the larger of the two pixel sizes, if they differ, so that we never count more pixels than there are.)
+        return kernel.estimateDistance(pixelX2MathX(x), pixelY2MathY(y)) / Math.max(spanX/width, spanY/height);
+    }
+
+    /**
+     * finds the escape count for the given pixel, with this view's precision tier.
+     * @param x - the x coordinate of the pixel
+     * @param y - the y coordinate of the pixel
+     * @return the number of steps it took for this pixel's point to escape, or zero if it never did.
+     */
+    public int countAt(int x, int y)
+    {
+        switch (precision)
+        {
+            case PRECISION_FLOAT:
+                return mandelbrot.countStepsToExitFloat((float)pixelX2MathX(x), (float)pixelY2MathY(y));
+            case PRECISION_DOUBLE:
+                return kernel.countStepsToExit(pixelX2MathX(x), pixelY2MathY(y));
+            case PRECISION_DOUBLE_DOUBLE:
+                return doubleDoubleCountAt(x, y);
+            case PRECISION_PERTURBATION:
+            default:
+                return deepCountAt(x, y);
+        }
+    }
+
+    /**
+     * the double-double version of countAt(): works out c = (minX + x*stepX, maxY - y*stepY) in double-double
+     * arithmetic and hands it to the double-double kernel.
+     */
+    private int doubleDoubleCountAt(int x, int y)
+    {
+        // x*stepX, as hi + lo
+        double p = x*stepXHi;
+        double e = Math.fma(x, stepXHi, -p) + x*stepXLo;
+        // minX + x*stepX
+        double s = minXHi + p;
+        double b = s - minXHi;
+        e += (minXHi - (s - b)) + (p - b) + minXLo;
+        double crHi = s + e;
+        double crLo = e - (crHi - s);
+
+        // y*stepY, as hi + lo
+        p = y*stepYHi;
+        e = Math.fma(y, stepYHi, -p) + y*stepYLo;
+        // maxY - y*stepY
+        s = maxYHi - p;
+        b = s - maxYHi;
+        e = (maxYHi - (s - b)) + (-p - b) + maxYLo - e;
+        double ciHi = s + e;
+        double ciLo = e - (ciHi - s);
+
+        return mandelbrot.countStepsToExitDoubleDouble(crHi, crLo, ciHi, ciLo);
+    }
+
+    /**
+     * the deep-zoom version of countAt(): tries each reference orbit in turn until one of them can give a
+     * trustworthy count for this pixel, adding a new reference at this pixel if none can.
+     */
+    private int deepCountAt(int x, int y)
+    {
+        int maxCount = kernel.getMaxCount();
+        double thresholdSquared = kernel.getThresholdSquared();
+        ReferenceOrbit[] tried = getReferences();
+        for (ReferenceOrbit reference : tried)
+        {
+            int count = reference.countStepsToExit(offsetX(x, reference), offsetY(y, reference), maxCount,
+                                                   thresholdSquared, false);
+            if (count != ReferenceOrbit.GLITCH)
+                return count;
+        }
+
+        // none of the references worked, so this pixel gets a reference of its own, unless we have run out.
+        ReferenceOrbit newReference = null;
+        synchronized (references)
+        {
+            if (references.size() < MAX_REFERENCES)
+            {
+                newReference = createReference(x, y);
+                references.add(newReference);
+            }
+        }
+        if (newReference != null)
+            return newReference.countStepsToExit(0, 0, maxCount, thresholdSquared, true);
+
+        // as a last resort, go with the nearest reference and hope for the best.
+        ReferenceOrbit nearest = tried[0];
+        for (ReferenceOrbit reference : tried)
+            if (distanceSquared(reference, x, y) < distanceSquared(nearest, x, y))
+                nearest = reference;
+        return nearest.countStepsToExit(offsetX(x, nearest), offsetY(y, nearest), maxCount, thresholdSquared, true);
+    }
+
+    /**
+     * @return all the references made so far, making the main one (at the center of the view) if needed.
+     */
+    private ReferenceOrbit[] getReferences()
+    {
+        synchronized (references)
+        {
+            if (references.isEmpty())
+                references.add(createReference(width/2, height/2));
+            return references.toArray(new ReferenceOrbit[0]);
+        }
+    }
+
+    /**
+     * @return the number of reference orbits this frame has used so far.
+     */
+    public int getReferenceCount()
+    {
+        synchronized (references)
+        {
+            return references.size();
+        }
+    }
+
+    private ReferenceOrbit createReference(int x, int y)
+    {
+        if (mathContext == null)
+            mathContext = BigComplex.contextForPitch(getPixelPitch());
+        return new ReferenceOrbit(pixel2PreciseMath(x, y), x, y, kernel.getMaxCount(), kernel.getThresholdSquared(),
+                                  mathContext);
+    }
+
+    /**
+     * @return the point on the complex plane for the given pixel, to full precision.
+     */
+    public BigComplex pixel2PreciseMath(int x, int y)
+    {
+        MathContext mc = BigComplex.contextForPitch(getPixelPitch());
+        BigDecimal minX = bounds.getPreciseMin().getReal();
+        BigDecimal minY = bounds.getPreciseMin().getImaginary();
+        BigDecimal spanX = bounds.getPreciseMax().getReal().subtract(minX, mc);
+        BigDecimal spanY = bounds.getPreciseMax().getImaginary().subtract(minY, mc);
+        BigDecimal fracX = new BigDecimal(x).divide(new BigDecimal(width), mc);
+        BigDecimal fracY = BigDecimal.ONE.subtract(new BigDecimal(y).divide(new BigDecimal(height), mc), mc);
+        return new BigComplex(minX.add(spanX.multiply(fracX, mc), mc), minY.add(spanY.multiply(fracY, mc), mc));
+    }
+
+    // the offset, on the complex plane, from the reference's pixel to the given pixel.
+    private double offsetX(int x, ReferenceOrbit reference)
+    {
+        return ((double)(x - reference.getPixelX()))/width * spanX;
+    }
+
+    private double offsetY(int y, ReferenceOrbit reference)
+    {
+        return -((double)(y - reference.getPixelY()))/height * spanY;
+    }
+
+    private static double distanceSquared(ReferenceOrbit reference, int x, int y)
+    {
+        double dx = x - reference.getPixelX();
+        double dy = y - reference.getPixelY();
+        return dx*dx + dy*dy;
+    }
+}
@@ -0,0 +1,103 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A least-recently-used cache of finished frames, so that going back to a view we have already drawn (undo, redo,
+ * reset) can redraw it from its escape counts instead of calculating them all again.
+ * The cache holds on to at most maxBytes worth of count buffers; when it goes over, the frames that were used
+ * longest ago are dropped first.
+ */
+public class FrameCache
+{
+    private final long maxBytes;
+    private long bytesUsed;
+    private long hits, misses;
+    // a LinkedHashMap in access order keeps the least recently used entry first.
+    private final LinkedHashMap<Key, EscapeCountBuffer> frames = new LinkedHashMap<Key, EscapeCountBuffer>(16, 0.75f, true);
+
+    public FrameCache(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the saved counts for the given frame, or null if we don't have them.
+     */
+    public synchronized EscapeCountBuffer get(Key key)
+    {
+        EscapeCountBuffer result = frames.get(key);
+        if (result == null)
+            misses++;
+        else
+            hits++;
+        return result;
+    }
+
+    /**
+     * saves the counts for a finished frame, dropping the least recently used frames if we are over budget.
+     * Frames too big to ever fit are not saved.
+     */
+    public synchronized void put(Key key, EscapeCountBuffer counts)
+    {
+        if (counts.getSizeInBytes() > maxBytes)
+            return;
+        EscapeCountBuffer old = frames.put(key, counts);
+        if (old != null)
+            bytesUsed -= old.getSizeInBytes();
+        bytesUsed += counts.getSizeInBytes();
+        Iterator<Map.Entry<Key, EscapeCountBuffer>> eldest = frames.entrySet().iterator();
+        while (bytesUsed > maxBytes && eldest.hasNext())
+        {
+            bytesUsed -= eldest.next().getValue().getSizeInBytes();
+            eldest.remove();
+        }
+    }
+
+    public synchronized int size() {return frames.size();}
+    public synchronized long getBytesUsed() {return bytesUsed;}
+    public synchronized long getHits() {return hits;}
+    public synchronized long getMisses() {return misses;}
+
+    /**
+     * everything that decides what a frame's counts will be: the formula, where it is, how big it is, how many
+     * steps we take, the precision it was calculated with and the scan that drew it (the divide-and-conquer scan
+     * can fill areas that a full scan would not).
+     */
+    public static class Key
+    {
+        private final String formula;
+        private final ComplexRange range;
+        private final int width, height, maxCount, precision, scanMode;
+
+        public Key(String formula, ComplexRange range, int width, int height, int maxCount, int precision,
+                   int scanMode)
+        {
+            this.formula = formula;
+            this.range = range;
+            this.width = width;
+            this.height = height;
+            this.maxCount = maxCount;
+            this.precision = precision;
+            this.scanMode = scanMode;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return width == that.width && height == that.height && maxCount == that.maxCount &&
+                   precision == that.precision && scanMode == that.scanMode && range.equals(that.range) &&
+                   formula.equals(that.formula);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(formula, range, width, height, maxCount, precision, scanMode);
+        }
+    }
+}
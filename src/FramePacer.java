@@ -0,0 +1,94 @@
+import javax.swing.*;
+import java.awt.*;
+import java.util.function.Consumer;
+
+/**
+ * Collects the parts of a component that need repainting, from whichever threads are drawing into it, and repaints
+ * them all at once a fixed number of times a second, on the event thread.
+ *
+ * The render workers finish blocks far faster than the screen can show them. If each of them called repaint() itself,
+ * the event thread would be flooded with paints (each taking the image lock the workers need), so instead they just
+ * mark the block dirty here - which only takes a tiny lock of our own, never the event thread - and a timer sweeps up
+ * everything marked since the last frame and repaints it as one rectangle. (Swing's RepaintManager would merge the
+ * rectangles into one anyway, so there's no point keeping them apart.) The timer only runs while something is
+ * waiting to be repainted, so an idle panel costs nothing.
+ */
+public class FramePacer
+{
+    public static final int DEFAULT_FRAMES_PER_SECOND = 60;
+
+    private final JComponent component;
+    private final Timer timer;
+    private final Consumer<Rectangle> beforeRepaint;
+    private final Object dirtyLock = new Object();
+    // the part waiting to be repainted, as edges; empty when right <= left. All guarded by dirtyLock.
+    private int dirtyLeft, dirtyTop, dirtyRight, dirtyBottom;
+
+    /**
+     * @param component - the component to repaint
+     * @param framesPerSecond - how many times a second, at most, to repaint it
+     * @param beforeRepaint - told (on the event thread) about each rectangle just before it is repainted, or null
+     */
+    public FramePacer(JComponent component, int framesPerSecond, Consumer<Rectangle> beforeRepaint)
+    {
+        this.component = component;
+        this.beforeRepaint = beforeRepaint;
+        timer = new Timer(1000/framesPerSecond, e -> flush());
+        timer.setRepeats(false);
+    }
+
+    /**
+     * marks a block as needing repainting at the next frame. This can be called from any thread, and doesn't wait for
+     * the event thread.
+     * @param left - x position of the left edge of the block
+     * @param top - y position of the top edge of the block
+     * @param width - the width of the block
+     * @param height - the height of the block
+     */
+    public void markDirty(int left, int top, int width, int height)
+    {
+        if (width <= 0 || height <= 0)
+            return;
+        boolean wasClean;
+        synchronized (dirtyLock)
+        {
+            wasClean = dirtyRight <= dirtyLeft;
+            if (wasClean)
+            {
+                dirtyLeft = left;
+                dirtyTop = top;
+                dirtyRight = left + width;
+                dirtyBottom = top + height;
+            }
+            else
+            {
+                dirtyLeft = Math.min(dirtyLeft, left);
+                dirtyTop = Math.min(dirtyTop, top);
+                dirtyRight = Math.max(dirtyRight, left + width);
+                dirtyBottom = Math.max(dirtyBottom, top + height);
+            }
+        }
+        // the first block since the last frame sets the timer going for the next one. (Timer.start() is safe to call
+        // from any thread.)
+        if (wasClean)
+            timer.start();
+    }
+
+    /**
+     * repaints everything marked since the last frame. Runs on the event thread, when the timer goes off.
+     */
+    private void flush()
+    {
+        Rectangle dirty;
+        synchronized (dirtyLock)
+        {
+            if (dirtyRight <= dirtyLeft)
+                return;
+            dirty = new Rectangle(dirtyLeft, dirtyTop, dirtyRight - dirtyLeft, dirtyBottom - dirtyTop);
+            dirtyRight = dirtyLeft; // (empty again.)
+        }
+        if (beforeRepaint != null)
+            beforeRepaint.accept(dirty);
+        component.repaint(dirty);
+    }
+}
@@ -0,0 +1,230 @@
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * Carries the escape counts of a finished frame over to a new view (after a zoom, pan or resize), so the new frame
+ * can be shown straight away as a rough preview, with each new pixel taking the count of the nearest old pixel.
+ *
+ * Where a new pixel sits exactly on an old pixel's sample point (within a millionth of a pixel), and both frames were
+ * calculated the same way, the old count isn't just a preview - it is the answer, and the scans can reuse it instead
+ * of calculating that pixel again. For integer zoom factors or pure pans, that covers a good share of the frame.
+ * "The same way" includes the scan, unless the old one calculated every pixel: the other scans fill some pixels in
+ * from the counts around them, and a scan that wouldn't have filled them mustn't take them as calculated.
+ *
+ * Smooth zooms (e.g. an animation, see AnimationRenderer) hardly ever land a new pixel exactly on an old one, so
+ * those can also allow some error: a new pixel may reuse the count of an old sample point up to a given number of
+ * (new) pixels away. Each reused count remembers how far it is from where it was really calculated (getErrors()), and
+ * that carries on to the next frame, so the error never builds up past the limit over a run of frames.
+ */
+public class FrameReprojection
+{
+    // how close (in old pixels) a new pixel must be to an old sample point for us to reuse its count.
+    private static final double EXACT_TOLERANCE = 1e-6;
+
+    private final EscapeCountBuffer preview;
+    private final boolean[] exact;
+    private final float[] errors; // null unless we allow some error.
+    private int exactCount, previewCount;
+
+    /**
+     * works out the preview for newView from the counts of oldView.
+     * @param oldView - the view of the finished frame
+     * @param oldCounts - the counts of the finished frame
+     * @param oldScanMode - the scan the finished frame was drawn with (one of FractalScanner's MODE_ constants)
+     * @param newView - the view we are about to draw
+     * @param newScanMode - the scan we are about to draw it with
+     */
+    public FrameReprojection(FractalView oldView, EscapeCountBuffer oldCounts, int oldScanMode, FractalView newView,
+                             int newScanMode)
+    {
+        this(oldView, oldCounts, null, oldScanMode, newView, newScanMode, 0);
+    }
+
+    /**
+     * works out the preview for newView from the counts of oldView, also reusing counts that are up to maxError
+     * pixels out.
+     * @param oldView - the view of the finished frame
+     * @param oldCounts - the counts of the finished frame
+     * @param oldErrors - how far out each of the old frame's counts already was, in old pixels (see getErrors()), or
+     *                  null if they were all calculated where they are
+     * @param oldScanMode - the scan the finished frame was drawn with (one of FractalScanner's MODE_ constants)
+     * @param newView - the view we are about to draw
+     * @param newScanMode - the scan we are about to draw it with
+     * @param maxError - how far (in new pixels, across or down) a pixel may be from the point its count was really
+     *                 calculated at, for us to reuse it; 0 for only exact matches.
+     */
+    public FrameReprojection(FractalView oldView, EscapeCountBuffer oldCounts, float[] oldErrors, int oldScanMode,
+                             FractalView newView, int newScanMode, double maxError)
+    {
+        int newWidth = newView.getWidth();
+        int newHeight = newView.getHeight();
+        preview = new EscapeCountBuffer(newWidth, newHeight, oldCounts.hasFractions());
+        exact = new boolean[newWidth*newHeight];
+        errors = maxError > 0 ? new float[newWidth*newHeight] : null;
+        if (newWidth == 0 || newHeight == 0 || oldCounts.getWidth() == 0 || oldCounts.getHeight() == 0)
+            return;
+
+        // old pixel x = offsetX + scaleX * new pixel x, and likewise for y; worked out at full precision, so that
+        // this also works for deep zooms.
+        MathContext mc = BigComplex.contextForPitch(Math.min(oldView.getPixelPitch(), newView.getPixelPitch()));
+        ComplexRange oldBounds = oldView.getBounds();
+        ComplexRange newBounds = newView.getBounds();
+        BigDecimal oldStepX = span(oldBounds, true).divide(new BigDecimal(oldView.getWidth()), mc);
+        BigDecimal oldStepY = span(oldBounds, false).divide(new BigDecimal(oldView.getHeight()), mc);
+        BigDecimal newStepX = span(newBounds, true).divide(new BigDecimal(newWidth), mc);
+        BigDecimal newStepY = span(newBounds, false).divide(new BigDecimal(newHeight), mc);
+        if (oldStepX.signum() == 0 || oldStepY.signum() == 0)
+            return;
+        double scaleX = newStepX.divide(oldStepX, mc).doubleValue();
+        double scaleY = newStepY.divide(oldStepY, mc).doubleValue();
+        double offsetX = newBounds.getPreciseMin().getReal().subtract(oldBounds.getPreciseMin().getReal())
+                                  .divide(oldStepX, mc).doubleValue();
+        // y counts down from the top (max) edge.
+        double offsetY = oldBounds.getPreciseMax().getImaginary().subtract(newBounds.getPreciseMax().getImaginary())
+                                  .divide(oldStepY, mc).doubleValue();
+        // (an old pixel is 1/scale new pixels across.)
+        double oldPixelInNewPixels = 1/Math.min(scaleX, scaleY);
+
+        boolean sameCalculation = (oldScanMode == newScanMode || FractalScanner.calculatesEveryPixel(oldScanMode)) &&
+                                  oldView.getPrecision() == newView.getPrecision() &&
+                                  oldView.getKernel().getName().equals(newView.getKernel().getName()) &&
+                                  oldView.getKernel().getMaxCount() == newView.getKernel().getMaxCount() &&
+                                  oldView.getKernel().getThresholdSquared() == newView.getKernel().getThresholdSquared();
+        int newMaxCount = newView.getKernel().getMaxCount();
+        int oldWidth = oldCounts.getWidth();
+        int oldHeight = oldCounts.getHeight();
+        int[] oldArray = oldCounts.getCounts();
+        int[] previewArray = preview.getCounts();
+        for (int y = 0; y < newHeight; y++)
+        {
+            double oldY = offsetY + scaleY*y;
+            long nearestY = Math.round(oldY);
+            if (nearestY < 0 || nearestY >= oldHeight)
+                continue;
+            boolean exactY = Math.abs(oldY - nearestY) < EXACT_TOLERANCE;
+            for (int x = 0; x < newWidth; x++)
+            {
+                double oldX = offsetX + scaleX*x;
+                long nearestX = Math.round(oldX);
+                if (nearestX < 0 || nearestX >= oldWidth)
+                    continue;
+                int count = oldArray[(int)nearestY*oldWidth + (int)nearestX];
+                // if maxCount has come down since, a point that escaped after the new limit counts as not escaping.
+                previewArray[y*newWidth + x] = count < newMaxCount ? count : 0;
+                preview.setFraction(x, y, oldCounts.getFraction((int)nearestX, (int)nearestY));
+                previewCount++;
+                if (!sameCalculation)
+                    continue;
+                float oldError = oldErrors == null ? 0 : oldErrors[(int)nearestY*oldWidth + (int)nearestX];
+                if (oldError == 0 && exactY && Math.abs(oldX - nearestX) < EXACT_TOLERANCE)
+                {
+                    exact[y*newWidth + x] = true;
+                    exactCount++;
+                }
+                else if (errors != null)
+                {
+                    double error = Math.max(Math.abs(oldX - nearestX)/scaleX, Math.abs(oldY - nearestY)/scaleY) +
+                                   oldError*oldPixelInNewPixels;
+                    if (error <= maxError)
+                    {
+                        exact[y*newWidth + x] = true;
+                        exactCount++;
+                        // (rounded up, so the float never claims less error than there is.)
+                        errors[y*newWidth + x] = Math.nextUp((float)error);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * starts a new frame with nothing carried over yet - for when the only counts we know are ones we'll add with
+     * addExact().
+     * @param newView - the view we are about to draw
+     */
+    public FrameReprojection(FractalView newView)
+    {
+        preview = new EscapeCountBuffer(newView.getWidth(), newView.getHeight(), false);
+        exact = new boolean[newView.getWidth()*newView.getHeight()];
+        errors = null;
+    }
+
+    /**
+     * adds counts we know exactly from somewhere else (the tile cache on disk), over the top of whatever was carried
+     * over from the last frame. (They count towards getExactCount(), but not getPreviewCount(), which is only about
+     * the last frame.)
+     * @param known - which pixels we know, y*width + x
+     * @param knownCounts - their counts; the new frame's size.
+     */
+    public void addExact(boolean[] known, EscapeCountBuffer knownCounts)
+    {
+        int[] previewArray = preview.getCounts();
+        int[] knownArray = knownCounts.getCounts();
+        for (int i = 0; i < known.length; i++)
+            if (known[i])
+            {
+                if (!exact[i])
+                    exactCount++;
+                previewArray[i] = knownArray[i];
+                exact[i] = true;
+                if (errors != null)
+                    errors[i] = 0;
+                if (preview.hasFractions())
+                    preview.getFractions()[i] = 0;
+            }
+    }
+
+    private static BigDecimal span(ComplexRange bounds, boolean real)
+    {
+        if (real)
+            return bounds.getPreciseMax().getReal().subtract(bounds.getPreciseMin().getReal());
+        return bounds.getPreciseMax().getImaginary().subtract(bounds.getPreciseMin().getImaginary());
+    }
+
+    /**
+     * @return the rough preview of the new frame; pixels outside the old frame are left at zero.
+     */
+    public EscapeCountBuffer getPreview() {return preview;}
+
+    /**
+     * @return whether the count for this pixel was carried over exactly (or within the error we allow), and needn't
+     * be calculated again.
+     */
+    public boolean isExact(int x, int y)
+    {
+        return exact[y*preview.getWidth() + x];
+    }
+
+    /**
+     * @return the count carried over for this pixel (only the answer if isExact(x, y)).
+     */
+    public int getCount(int x, int y)
+    {
+        return preview.get(x, y);
+    }
+
+    /**
+     * @return the smooth-coloring fraction carried over for this pixel (zero if the old frame didn't keep them).
+     */
+    public float getFraction(int x, int y)
+    {
+        return preview.getFraction(x, y);
+    }
+
+    /**
+     * @return how many pixels of the new frame were covered by the old one.
+     */
+    public int getPreviewCount() {return previewCount;}
+
+    /**
+     * @return how many pixels of the new frame can reuse their old counts exactly (or within the error we allow).
+     */
+    public int getExactCount() {return exactCount;}
+
+    /**
+     * @return for each pixel (y*width + x), how far it is from the point its reused count was really calculated at,
+     * in pixels, across or down; zero for the pixels reused exactly and the ones not reused at all. Null if we
+     * didn't allow any error.
+     */
+    public float[] getErrors() {return errors;}
+}
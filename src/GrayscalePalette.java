@@ -0,0 +1,21 @@
+/**
+ * A black-and-white coloring that fades from white to dark gray and back again every 128 counts.
+ */
+public class GrayscalePalette extends Palette
+{
+    public GrayscalePalette()
+    {
+        super("Grayscale");
+    }
+
+    @Override
+    public int colorForCount(int count)
+    {
+        if (count == 0)
+            return packRGB(0, 0, 0);
+        int phase = (4*count) % 512;
+        int level = phase < 256 ? 255 - phase : phase - 256;
+        level = 32 + level*223/255; // keep escaping points lighter than the black interior.
+        return packRGB(level, level, level);
+    }
+}
@@ -0,0 +1,375 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Renders the fractal without any window, straight to a PNG file, for render nodes with no display. The image is
+ * calculated in horizontal strips, using every core for each strip, and each strip is handed to a PngStripWriter as
+ * soon as it is done. At most two strips exist at once (one being written while the next is calculated), so the
+ * memory needed stays the same however big the image is.
+ *
+ * With --frac, the counts go into a .frac file (see FracFile) instead, a tile at a time, and the PNG (if any) is
+ * colored from that file afterwards. If the file is already there, its own bounds, size and max count are used,
+ * and only the tiles it doesn't have yet are calculated - so a render that crashed carries on where it stopped, and
+ * a finished one can be colored again with another palette without calculating anything.
+ *
+ * With --workers, the tiles are calculated by that many worker processes instead (see RenderFarm), each with
+ * --threads threads, going through a .frac file as above (a temporary one, if --frac isn't given). With --port as
+ * well, workers on other machines can join in.
+ *
+ * Usage: java RecursiveFractalRunner --headless --bounds minRe,minIm,maxRe,maxIm --size WIDTHxHEIGHT
+ *                                    [--max-count N] [--palette NAME] [--threads N] [--frac FILE.frac]
+ *                                    [--workers N] [--port N] --out FILE.png
+ */
+public class HeadlessRenderer
+{
+    public static final int MAX_DIMENSION = 65536;
+    // each strip holds about this many pixels (but always at least one row per thread).
+    private static final int PIXELS_PER_STRIP = 1<<20;
+
+    private final ComplexRange bounds;
+    private final int width, height;
+    private final MandelbrotKernel kernel;
+    private final Palette palette;
+    private final int threads;
+
+    public HeadlessRenderer(ComplexRange bounds, int width, int height, int maxCount, Palette palette, int threads)
+    {
+        if (width < 1 || height < 1 || width > MAX_DIMENSION || height > MAX_DIMENSION)
+            throw new IllegalArgumentException("Image size must be between 1x1 and "+MAX_DIMENSION+"x"+MAX_DIMENSION+".");
+        this.bounds = bounds;
+        this.width = width;
+        this.height = height;
+        this.kernel = new MandelbrotKernel(maxCount, MandelbrotKernel.DEFAULT_THRESHOLD_SQUARED, true, true);
+        this.palette = palette;
+        this.threads = threads;
+    }
+
+    /**
+     * @return the number of rows in each strip.
+     */
+    public int getStripHeight()
+    {
+        return Math.min(height, Math.max(threads, PIXELS_PER_STRIP / width));
+    }
+
+    /**
+     * calculates the whole image and writes it out as a PNG.
+     * @param out - where to write the PNG; it is closed when we are done.
+     */
+    public void render(OutputStream out) throws IOException
+    {
+        FractalView view = new FractalView(bounds, width, height, kernel);
+        int[] colors = palette.buildTable(kernel.getMaxCount());
+        int stripHeight = getStripHeight();
+        int strips = (height + stripHeight - 1) / stripHeight;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try
+        {
+            PngStripWriter png = new PngStripWriter(out, width, height);
+            Future<int[]> next = submitStrip(pool, view, colors, 0, stripHeight);
+            for (int strip = 0; strip < strips; strip++)
+            {
+                int[] rgb = next.get();
+                // start on the next strip before writing this one, so the cores stay busy while we compress.
+                if (strip+1 < strips)
+                    next = submitStrip(pool, view, colors, (strip+1)*stripHeight, stripHeight);
+                png.writeRows(rgb, Math.min(stripHeight, height - strip*stripHeight));
+                System.err.println("Finished strip "+(strip+1)+" of "+strips+".");
+            }
+            png.finish();
+        } catch (InterruptedException | ExecutionException e)
+        {
+            throw new IOException("Rendering failed.", e);
+        } finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * starts calculating the colors for the rows from top to top+stripHeight (or the bottom of the image), with
+     * the rows spread across the pool.
+     */
+    private Future<int[]> submitStrip(ForkJoinPool pool, FractalView view, int[] colors, int top, int stripHeight)
+    {
+        int rows = Math.min(stripHeight, height - top);
+        return pool.submit(() ->
+        {
+            int[] rgb = new int[rows*width];
+            IntStream.range(0, rows).parallel().forEach(row ->
+            {
+                int y = top + row;
+                for (int x = 0; x < width; x++)
+                    rgb[row*width + x] = colors[view.countAt(x, y)];
+            });
+            return rgb;
+        });
+    }
+
+    /**
+     * calculates every tile the .frac file doesn't have yet, with the tiles spread across the threads, saving each
+     * one as soon as it is done.
+     * @param frac - the file to fill in; it must be for this renderer's bounds, size and max count.
+     */
+    public void calculate(FracFile frac) throws IOException
+    {
+        // use the same precision the file was started with (the window may have started it in single precision).
+        FractalView view = new FractalView(bounds, width, height, kernel,
+                                           frac.getPrecision() == FractalView.PRECISION_FLOAT);
+        if (!frac.matches(view))
+            throw new IOException("The ."+FracFile.EXTENSION+" file is for a different frame.");
+        int[] tiles = IntStream.range(0, frac.getTileCount()).filter(tile -> !frac.isTileDone(tile)).toArray();
+        int alreadyDone = frac.getTileCount() - tiles.length;
+        if (alreadyDone > 0)
+            System.err.println("Carrying on from "+alreadyDone+" of "+frac.getTileCount()+" tiles.");
+        AtomicInteger finished = new AtomicInteger(alreadyDone);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try
+        {
+            pool.submit(() -> IntStream.of(tiles).parallel().forEach(tile ->
+            {
+                int left = frac.getTileLeft(tile), top = frac.getTileTop(tile);
+                int tileWidth = frac.getTileWidth(tile), tileHeight = frac.getTileHeight(tile);
+                int[] counts = new int[tileWidth*tileHeight];
+                for (int y = 0; y < tileHeight; y++)
+                    for (int x = 0; x < tileWidth; x++)
+                        counts[y*tileWidth + x] = view.countAt(left + x, top + y);
+                try
+                {
+                    frac.writeTile(tile, counts);
+                } catch (IOException ioExp)
+                {
+                    throw new UncheckedIOException(ioExp);
+                }
+                frac.markTileDone(tile);
+                int done = finished.incrementAndGet();
+                // report every whole percent.
+                if (done*100L/frac.getTileCount() != (done-1)*100L/frac.getTileCount())
+                    System.err.println("Finished "+done+" of "+frac.getTileCount()+" tiles.");
+            })).get();
+        } catch (InterruptedException e)
+        {
+            throw new IOException("Rendering was interrupted.", e);
+        } catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            throw new IOException("Rendering failed.", e);
+        } finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * colors a finished .frac file and writes it out as a PNG, one row of tiles at a time.
+     * @param frac - the counts to color
+     * @param palette - the colors to use
+     * @param out - where to write the PNG; it is closed when we are done.
+     */
+    public static void exportPng(FracFile frac, Palette palette, OutputStream out) throws IOException
+    {
+        if (!frac.isComplete())
+            throw new IOException("The ."+FracFile.EXTENSION+" file isn't finished yet.");
+        int[] colors = palette.buildTable(frac.getMaxCount());
+        int width = frac.getWidth();
+        int[] counts = new int[width*frac.getTileSize()];
+        int[] rgb = new int[counts.length];
+        PngStripWriter png = new PngStripWriter(out, width, frac.getHeight());
+        for (int tileRow = 0; tileRow < frac.getTilesDown(); tileRow++)
+        {
+            int rows = frac.readTileRow(tileRow, counts);
+            for (int i = 0; i < rows*width; i++)
+                rgb[i] = colors[counts[i]];
+            png.writeRows(rgb, rows);
+        }
+        png.finish();
+    }
+
+    /**
+     * the headless entry point: reads the settings from the command line, renders and saves the image.
+     */
+    public static void main(String[] args)
+    {
+        System.setProperty("java.awt.headless", "true");
+        ComplexRange bounds = new ComplexRange(new Complex(-2,-2), new Complex(2,2));
+        int width = 800, height = 800, maxCount = 1024;
+        int threads = Runtime.getRuntime().availableProcessors();
+        Palette palette = Palette.getStandardPalettes()[0];
+        String outputName = null, fracName = null;
+        int workers = 0, port = 0;
+        boolean threadsGiven = false;
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                switch (args[i])
+                {
+                    case "--headless":
+                        break;
+                    case "--bounds":
+                        bounds = parseBounds(args[++i]);
+                        break;
+                    case "--size":
+                        String[] size = args[++i].toLowerCase().split("x");
+                        width = Integer.parseInt(size[0]);
+                        height = Integer.parseInt(size[1]);
+                        break;
+                    case "--max-count":
+                        maxCount = parseMaxCount(args[++i]);
+                        break;
+                    case "--palette":
+                        palette = Palette.forName(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        threadsGiven = true;
+                        break;
+                    case "--workers":
+                        workers = Integer.parseInt(args[++i]);
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--frac":
+                        fracName = args[++i];
+                        break;
+                    case "--out":
+                        outputName = args[++i];
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: "+args[i]);
+                }
+            }
+            RenderFarm farm = null;
+            if (workers > 0 || port > 0)
+            {
+                // (the cores are shared out between the local workers, unless we were told otherwise.)
+                farm = new RenderFarm(workers, threadsGiven ? threads : Math.max(1, threads/Math.max(1, workers)),
+                                      port);
+                if (fracName == null)
+                {
+                    if (outputName == null)
+                        throw new IllegalArgumentException("No output file given (--out).");
+                    File temporary = File.createTempFile("farm", "."+FracFile.EXTENSION);
+                    temporary.delete(); // (so renderFrac() starts a new one.)
+                    try
+                    {
+                        renderFrac(temporary, bounds, width, height, maxCount, palette, threads, farm, outputName);
+                    } finally
+                    {
+                        temporary.delete();
+                    }
+                    return;
+                }
+            }
+            if (fracName != null)
+            {
+                renderFrac(new File(fracName), bounds, width, height, maxCount, palette, threads, farm, outputName);
+                return;
+            }
+            if (outputName == null)
+                throw new IllegalArgumentException("No output file given (--out).");
+            HeadlessRenderer renderer = new HeadlessRenderer(bounds, width, height, maxCount, palette, threads);
+            long start = System.currentTimeMillis();
+            renderer.render(new BufferedOutputStream(new FileOutputStream(outputName), 1<<16));
+            System.err.println("Wrote "+outputName+" in "+(System.currentTimeMillis()-start)+" ms.");
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e)
+        {
+            System.err.println("Problem with the command line: "+e.getMessage());
+            System.err.println("Usage: --headless --bounds minRe,minIm,maxRe,maxIm --size WIDTHxHEIGHT " +
+                               "[--max-count N] [--palette NAME] [--threads N] [--frac FILE.frac] " +
+                               "[--workers N] [--port N] --out FILE.png");
+            System.exit(1);
+        } catch (IOException ioExp)
+        {
+            System.err.println("Problem writing file.");
+            ioExp.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * the --frac version of main(): starts the .frac file (or opens it, if it is already there), calculates
+     * whatever it is missing, and then colors it into a PNG, if we were given one to write.
+     * @param farm - the workers to calculate with, or null to do it all in this process
+     */
+    private static void renderFrac(File fracFile, ComplexRange bounds, int width, int height, int maxCount,
+                                   Palette palette, int threads, RenderFarm farm, String outputName) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        FracFile frac;
+        if (fracFile.exists())
+        {
+            frac = FracFile.open(fracFile);
+            System.err.println("Using the bounds, size and max count from "+fracFile+".");
+        }
+        else
+        {
+            // (check the size before making a file for it.)
+            new HeadlessRenderer(bounds, width, height, maxCount, palette, threads);
+            MandelbrotKernel kernel = new MandelbrotKernel(maxCount, MandelbrotKernel.DEFAULT_THRESHOLD_SQUARED,
+                                                           true, true);
+            frac = FracFile.create(fracFile, new FractalView(bounds, width, height, kernel),
+                                   FracFile.DEFAULT_TILE_SIZE);
+        }
+        try
+        {
+            if (!frac.isComplete())
+            {
+                if (farm != null)
+                    farm.calculate(frac);
+                else
+                    new HeadlessRenderer(frac.getBounds(), frac.getWidth(), frac.getHeight(), frac.getMaxCount(),
+                                         palette, threads).calculate(frac);
+                System.err.println("Calculated "+fracFile+" in "+(System.currentTimeMillis()-start)+" ms.");
+            }
+            if (outputName != null)
+            {
+                exportPng(frac, palette, new BufferedOutputStream(new FileOutputStream(outputName), 1<<16));
+                System.err.println("Wrote "+outputName+" in "+(System.currentTimeMillis()-start)+" ms.");
+            }
+        } finally
+        {
+            frac.close();
+        }
+    }
+
+    /**
+     * reads bounds written as "minRe,minIm,maxRe,maxIm", keeping every digit given.
+     * @throws IllegalArgumentException if they aren't four numbers, or the min isn't below the max on either axis.
+     */
+    public static ComplexRange parseBounds(String text)
+    {
+        String[] parts = text.split(",");
+        if (parts.length != 4)
+            throw new IllegalArgumentException("Bounds should be minRe,minIm,maxRe,maxIm.");
+        BigComplex min = new BigComplex(new BigDecimal(parts[0].trim()), new BigDecimal(parts[1].trim()));
+        BigComplex max = new BigComplex(new BigDecimal(parts[2].trim()), new BigDecimal(parts[3].trim()));
+        if (min.getReal().compareTo(max.getReal()) >= 0 || min.getImaginary().compareTo(max.getImaginary()) >= 0)
+            throw new IllegalArgumentException("Each min in the bounds should be below its max.");
+        return new ComplexRange(min, max);
+    }
+
+    /**
+     * reads a max count from the command line.
+     * @throws IllegalArgumentException if it isn't a whole number of at least 1.
+     */
+    public static int parseMaxCount(String text)
+    {
+        int maxCount = Integer.parseInt(text);
+        if (maxCount < 1)
+            throw new IllegalArgumentException("The max count must be at least 1.");
+        return maxCount;
+    }
+}
@@ -0,0 +1,153 @@
+import java.util.Arrays;
+
+/**
+ * Where each pixel of a finished (double precision) frame got to, so that if we raise maxCount we can carry on
+ * from there, rather than starting every pixel again from z = 0.
+ *
+ * Only the pixels that ran out of steps need their z kept: a pixel that escaped has the same count no matter how
+ * high maxCount goes, and a pixel the interior or periodicity checks proved is in the set will never escape. So
+ * the state is two parts:
+ * - one int per pixel, saying whether it was proven inside, or where its z is kept (or neither, e.g. for pixels
+ *   that escaped, or that the divide-and-conquer scan filled in without calculating),
+ * - zr and zi for just the pixels still going, packed one after another into a pair of double arrays.
+ * Scans fill this in from several threads at once. Different pixels have different slots, so marking pixels needs
+ * no lock; adding a z to the packed arrays does, but that only happens once for each pixel that has just taken
+ * all maxCount steps, so nobody waits long.
+ */
+public class IterationState
+{
+    private static final int NOTHING = -1;      // nothing to carry on from; see the counts.
+    private static final int INSIDE = -2;       // proven to be in the set.
+
+    private final ComplexRange bounds;
+    private final int width, height;
+    private final int maxCount;
+    private final double thresholdSquared;
+    private final String formula;
+    private final int[] slots;
+    private double[] zr = new double[256];
+    private double[] zi = new double[256];
+    private int stillGoing;
+    private EscapeCountBuffer counts; // the frame's counts, once it is finished.
+
+    /**
+     * @param view - the frame this state will be for.
+     */
+    public IterationState(FractalView view)
+    {
+        bounds = view.getBounds();
+        width = view.getWidth();
+        height = view.getHeight();
+        maxCount = view.getKernel().getMaxCount();
+        thresholdSquared = view.getKernel().getThresholdSquared();
+        formula = view.getKernel().getName();
+        slots = new int[width*height];
+        Arrays.fill(slots, NOTHING);
+    }
+
+    public int getMaxCount() {return maxCount;}
+
+    /**
+     * @return how many pixels ran out of steps, and could be carried on.
+     */
+    public synchronized int getStillGoingCount() {return stillGoing;}
+
+    /**
+     * notes that the given pixel is proven to be in the set.
+     */
+    public void recordInside(int x, int y)
+    {
+        slots[y*width + x] = INSIDE;
+    }
+
+    /**
+     * keeps the z that the given pixel had reached when it ran out of steps.
+     */
+    public synchronized void recordStillGoing(int x, int y, double pixelZr, double pixelZi)
+    {
+        if (stillGoing == zr.length)
+        {
+            zr = Arrays.copyOf(zr, 2*stillGoing);
+            zi = Arrays.copyOf(zi, 2*stillGoing);
+        }
+        zr[stillGoing] = pixelZr;
+        zi[stillGoing] = pixelZi;
+        slots[y*width + x] = stillGoing;
+        stillGoing++;
+    }
+
+    /**
+     * marks the frame as finished; after this, the state may be carried on from (and should no longer be changed).
+     * @param finishedCounts - the frame's counts. These are kept, not copied, so don't change them afterwards.
+     */
+    public synchronized void finish(EscapeCountBuffer finishedCounts)
+    {
+        counts = finishedCounts;
+    }
+
+    /**
+     * @return whether the given view is this same frame with a higher maxCount, so that it can carry on from here.
+     */
+    public synchronized boolean canResume(FractalView view)
+    {
+        return counts != null && samePixels(view) && view.getKernel().getMaxCount() > maxCount;
+    }
+
+    /**
+     * @return whether this is the state of the given view.
+     */
+    public boolean isFor(FractalView view)
+    {
+        return samePixels(view) && view.getKernel().getMaxCount() == maxCount;
+    }
+
+    /**
+     * @return whether the given view has the same pixels as ours, in double precision, with the same formula and
+     * threshold.
+     */
+    private boolean samePixels(FractalView view)
+    {
+        return view.getPrecision() == FractalView.PRECISION_DOUBLE &&
+               view.getWidth() == width && view.getHeight() == height &&
+               view.getBounds().equals(bounds) &&
+               view.getKernel().getThresholdSquared() == thresholdSquared &&
+               view.getKernel().getName().equals(formula);
+    }
+
+    /**
+     * @return the pixel's count in the finished frame.
+     */
+    public int getCount(int x, int y)
+    {
+        return counts.get(x, y);
+    }
+
+    /**
+     * @return the pixel's smooth-coloring fraction in the finished frame (zero if it didn't keep them).
+     */
+    public float getFraction(int x, int y)
+    {
+        return counts.getFraction(x, y);
+    }
+
+    public boolean isInside(int x, int y)
+    {
+        return slots[y*width + x] == INSIDE;
+    }
+
+    /**
+     * puts the z that the given pixel had reached into z, if it ran out of steps.
+     * @param z - receives {zr, zi}
+     * @return whether it ran out of steps; if not, z is left alone.
+     * (No lock here: by the time anyone carries on from this state, it is finished and nothing changes it.)
+     */
+    public boolean loadStillGoing(int x, int y, double[] z)
+    {
+        int slot = slots[y*width + x];
+        if (slot < 0)
+            return false;
+        z[0] = zr[slot];
+        z[1] = zi[slot];
+        return true;
+    }
+}
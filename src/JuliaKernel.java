@@ -0,0 +1,151 @@
+/**
+ * The escape-time calculation for a Julia set. Where the Mandelbrot set starts z at zero and gives each pixel its
+ * own c, a Julia set keeps one c for the whole picture and starts z at the pixel's point, then applies z -> z^2 + c
+ * over and over as usual. Every c gives a different picture: for a c inside the Mandelbrot set the Julia set is in
+ * one piece, and for a c outside it, the set breaks up into dust.
+ *
+ * The pixel's point takes the place of the Mandelbrot set's first step (where z = c), so a z that escapes on a
+ * given step gets the same count it would from MandelbrotKernel. There's no cardioid/bulb shortcut here (that
+ * test is about c, and c is the same everywhere), but the periodicity check works exactly as it does there.
+ */
+public final class JuliaKernel implements FractalKernel
+{
+    private final int maxCount;
+    private final double thresholdSquared;
+    private final boolean periodicityChecks;
+    private final double cr, ci;
+
+    /**
+     * @param maxCount - the most steps to take before deciding a point is in the set
+     * @param thresholdSquared - how far (squared) z must get from the origin to count as escaped
+     * @param periodicityChecks - whether to watch for z repeating itself (see MandelbrotKernel)
+     * @param cr - the real part of c
+     * @param ci - the imaginary part of c
+     */
+    public JuliaKernel(int maxCount, double thresholdSquared, boolean periodicityChecks, double cr, double ci)
+    {
+        this.maxCount = maxCount;
+        this.thresholdSquared = thresholdSquared;
+        this.periodicityChecks = periodicityChecks;
+        this.cr = cr;
+        this.ci = ci;
+    }
+
+    public String getName()
+    {
+        return "Julia (c = "+cr+(ci < 0 ? " - " : " + ")+Math.abs(ci)+"i)";
+    }
+    public int getMaxCount() {return maxCount;}
+    public double getThresholdSquared() {return thresholdSquared;}
+
+    public int countStepsToExit(double x, double y)
+    {
+        return Math.max(iterate(x, y, null, 0, null, 0), 0);
+    }
+
+    public void countStepsToExit(double[] xs, double[] ys, int[] counts, int length)
+    {
+        for (int i = 0; i < length; i++)
+            counts[i] = Math.max(iterate(xs[i], ys[i], null, 0, null, i), 0);
+    }
+
+    public void countStepsToExit(double[] xs, double[] ys, int[] counts, float[] fractions, int length)
+    {
+        for (int i = 0; i < length; i++)
+            counts[i] = Math.max(iterate(xs[i], ys[i], null, 0, fractions, i), 0);
+    }
+
+    public int continueStepsToExit(double x, double y, double[] z, int fromCount)
+    {
+        return iterate(x, y, z, fromCount, null, 0);
+    }
+
+    public void continueStepsToExit(double[] xs, double[] ys, double[] zr, double[] zi, int fromCount, int[] results,
+                                    float[] fractions, int length)
+    {
+        double[] z = new double[2];
+        for (int i = 0; i < length; i++)
+        {
+            z[0] = zr[i];
+            z[1] = zi[i];
+            results[i] = iterate(xs[i], ys[i], z, fromCount, fractions, i);
+            zr[i] = z[0];
+            zi[i] = z[1];
+        }
+    }
+
+    /**
+     * no distance estimate here: the estimate needs the set to be all in one piece, and a Julia set often isn't.
+     */
+    public double estimateDistance(double x, double y) {return Double.NaN;}
+
+    /**
+     * the same normalized iteration count as MandelbrotKernel's, since this is z^2 + c too.
+     */
+    public float smoothFraction(double modulusSquared)
+    {
+        if (thresholdSquared <= 1)
+            return 0;
+        double fraction = 1 - Math.log(Math.log(modulusSquared) / Math.log(thresholdSquared)) / Math.log(2);
+        if (fraction < 0)
+            return 0;
+        return fraction < 1 ? (float)fraction : Math.nextDown(1f);
+    }
+
+    /**
+     * the loop behind all of the public methods: steps one point from fromCount up to maxCount.
+     * @param x - the real part of the pixel's point
+     * @param y - the imaginary part of the pixel's point
+     * @param z - {zr, zi} after fromCount steps (ignored if fromCount is zero); if the point is STILL_GOING, this
+     *          receives where it got to. May be null, if fromCount is zero and we don't need to know.
+     * @param fromCount - how many steps the point has already taken
+     * @param fractions - if not null, fractions[index] receives the point's smooth-coloring fraction if it escapes.
+     * @param index - where this point goes in fractions
+     * @return the count, if the point escaped, or else PROVEN_INSIDE or STILL_GOING.
+     */
+    private int iterate(double x, double y, double[] z, int fromCount, float[] fractions, int index)
+    {
+        double zr = x, zi = y;
+        int count = 1; // (the pixel's point is where z is after the first step.)
+        if (fromCount > 0)
+        {
+            zr = z[0];
+            zi = z[1];
+            count = fromCount;
+        }
+        double zr2 = zr*zr, zi2 = zi*zi;
+        double savedR = zr, savedI = zi;
+        int stepsUntilSave = 1, saveInterval = 1;
+        for (; count < maxCount; count++)
+        {
+            zi = zr*zi + zi*zr + ci;
+            zr = zr2 - zi2 + cr;
+            zr2 = zr*zr;
+            zi2 = zi*zi;
+            if (zr2 + zi2 > thresholdSquared)
+            {
+                if (fractions != null)
+                    fractions[index] = smoothFraction(zr2 + zi2);
+                return count;
+            }
+            if (periodicityChecks)
+            {
+                if (zr == savedR && zi == savedI)
+                    return PROVEN_INSIDE;
+                if (--stepsUntilSave == 0)
+                {
+                    savedR = zr;
+                    savedI = zi;
+                    saveInterval *= 2;
+                    stepsUntilSave = saveInterval;
+                }
+            }
+        }
+        if (z != null)
+        {
+            z[0] = zr;
+            z[1] = zi;
+        }
+        return STILL_GOING;
+    }
+}
@@ -0,0 +1,971 @@
+import java.util.Arrays;
+
+/**
+ * The escape-time calculation for the Mandelbrot set, written with primitive doubles so that the inner loop
+ * doesn't create any objects. (Using Complex, each step makes two or three new Complex objects, which adds up to
+ * thousands of allocations per pixel.)
+ *
+ * Points inside the set are the expensive ones, since they use up all maxCount steps. Two optional shortcuts
+ * catch many of them early, without changing any counts:
+ * - interior checks: points in the main cardioid or the period-2 bulb are known to be in the set, so we can
+ *   return zero before iterating at all.
+ * - periodicity checks: if z ever lands exactly (bit for bit) on a value it had before, it will repeat that cycle
+ *   forever and never escape. We compare against a saved z that is replaced at every power of two steps (Brent's
+ *   method), so cycles of any length are found.
+ */
+public final class MandelbrotKernel implements FractalKernel
+{
+    // the escape threshold (squared) the program has always used.
+    public static final double DEFAULT_THRESHOLD_SQUARED = 10;
+    // how many points the batch version of countStepsToExit() works on side by side, and how often (in steps) it
+    // does its periodicity check.
+    public static final int LANES = 4;
+    private static final int PERIODICITY_INTERVAL = 8;
+    // points take this many steps on their own before they are given a lane (see startNextPoint()).
+    private static final int LANE_START_STEPS = 16;
+    // estimateDistance() keeps going until |z|^2 passes this, well beyond the threshold, so that the estimate is
+    // as good as doubles allow.
+    static final double DISTANCE_RADIUS_SQUARED = 1e20;
+    // estimateDistance() counts z as having probably come round a cycle once it gets back within this of where it
+    // was, and then pins the cycle down with Newton's method, up to CYCLE_NEWTON_STEPS times, until going round it
+    // gets back within CYCLE_CLOSED (relative to |z|).
+    private static final double CYCLE_TOLERANCE = 1e-6;
+    private static final int CYCLE_NEWTON_STEPS = 8;
+    private static final double CYCLE_CLOSED = 1e-13;
+
+    private final int maxCount;
+    private final double thresholdSquared;
+    private final boolean interiorChecks, periodicityChecks;
+
+    public MandelbrotKernel(int maxCount, double thresholdSquared)
+    {
+        this(maxCount, thresholdSquared, false, false);
+    }
+
+    public MandelbrotKernel(int maxCount, double thresholdSquared, boolean interiorChecks, boolean periodicityChecks)
+    {
+        this.maxCount = maxCount;
+        this.thresholdSquared = thresholdSquared;
+        this.interiorChecks = interiorChecks;
+        this.periodicityChecks = periodicityChecks;
+    }
+
+    public String getName() {return "Mandelbrot";}
+    public int getMaxCount() {return maxCount;}
+    public double getThresholdSquared() {return thresholdSquared;}
+    public boolean usesInteriorChecks() {return interiorChecks;}
+    public boolean usesPeriodicityChecks() {return periodicityChecks;}
+
+    /**
+     * @return whether c is strictly inside the main cardioid or the period-2 bulb (the disk of radius 1/4 around -1).
+     */
+    public static boolean isInMainCardioidOrBulb(double cr, double ci)
+    {
+        double ci2 = ci*ci;
+        double xShifted = cr - 0.25;
+        double q = xShifted*xShifted + ci2;
+        if (q*(q + xShifted) < 0.25*ci2)
+            return true;
+        double xPlusOne = cr + 1;
+        return xPlusOne*xPlusOne + ci2 < 0.0625;
+    }
+
+    /**
+     * Starting with z = (0 + 0i), applies the function z -> z^2 + c over and over again until either
+     * a) the magnitude of z exceeds the threshold, in which case we return the count of steps it took, or
+     * b) the number of steps we've taken reaches maxCount, in which case we return zero.
+     * This gives exactly the same counts as stepping a Complex z through z.squared().plus(c).
+     * @param cr - the real part of c
+     * @param ci - the imaginary part of c
+     * @return - the number of steps that it took for z to exceed the threshold distance from the origin,
+     * or zero, if the number of steps reached maxCount.
+     */
+    public int countStepsToExit(double cr, double ci)
+    {
+        if (interiorChecks && isInMainCardioidOrBulb(cr, ci))
+            return 0;
+        double zr = 0, zi = 0;
+        double zr2 = 0, zi2 = 0; // zr*zr and zi*zi, kept around so each is only multiplied once per step.
+        double savedR = 0, savedI = 0; // for the periodicity check.
+        int stepsUntilSave = 1, saveInterval = 1;
+        for (int count = 0; count < maxCount; count++)
+        {
+            zi = zr*zi + zi*zr + ci;
+            zr = zr2 - zi2 + cr;
+            zr2 = zr*zr;
+            zi2 = zi*zi;
+            if (zr2 + zi2 > thresholdSquared)
+                return count;
+            if (periodicityChecks)
+            {
+                if (zr == savedR && zi == savedI)
+                    return 0;
+                if (--stepsUntilSave == 0)
+                {
+                    savedR = zr;
+                    savedI = zi;
+                    saveInterval *= 2;
+                    stepsUntilSave = saveInterval;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * steps z along just as countStepsToExit() does, but also its derivative with respect to c, dz -> 2*z*dz + 1.
+     * If z escapes, it is taken on past the threshold, to where the estimate is at its best, and the two of them
+     * give how close c can be to the set (see distanceBound()). If z comes back to (within CYCLE_TOLERANCE of) a
+     * value it had before - like the periodicity check in countStepsToExit(), but without waiting for it to be bit
+     * for bit - the cycle it is settling into gives how close c can be to the outside (see interiorDistanceBound()).
+     * Points in the main cardioid or the period-2 bulb skip all that, since we know their cycles already (see
+     * cardioidOrBulbDistanceBound()).
+     * @param cr - the real part of c
+     * @param ci - the imaginary part of c
+     * @return a lower bound on the distance from c to the edge of the set, or 0 if c neither escaped nor settled
+     * into a cycle in maxCount steps.
+     */
+    public double estimateDistance(double cr, double ci)
+    {
+        if (isInMainCardioidOrBulb(cr, ci))
+            return cardioidOrBulbDistanceBound(cr, ci);
+        double zr = 0, zi = 0, dr = 0, di = 0;
+        double savedR = 0, savedI = 0;
+        int savedStep = 0, stepsUntilSave = 1, saveInterval = 1;
+        boolean escaped = false;
+        for (int step = 1; escaped || step <= maxCount; step++)
+        {
+            double nextDr = 2*(zr*dr - zi*di) + 1;
+            di = 2*(zr*di + zi*dr);
+            dr = nextDr;
+            double nextZr = zr*zr - zi*zi + cr;
+            zi = zr*zi + zi*zr + ci;
+            zr = nextZr;
+            double modulusSquared = zr*zr + zi*zi;
+            if (modulusSquared > DISTANCE_RADIUS_SQUARED)
+                return distanceBound(modulusSquared, dr*dr + di*di, 2, step);
+            escaped = escaped || modulusSquared > thresholdSquared;
+            if (escaped)
+                continue;
+            if (Math.abs(zr - savedR) + Math.abs(zi - savedI) < CYCLE_TOLERANCE)
+                return interiorDistanceBound(cr, ci, zr, zi, shortestPeriod(cr, ci, zr, zi, step - savedStep));
+            if (--stepsUntilSave == 0)
+            {
+                savedR = zr;
+                savedI = zi;
+                savedStep = step;
+                saveInterval *= 2;
+                stepsUntilSave = saveInterval;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * interiorDistanceBound(), worked out ahead of time for the two components whose cycles we know. In the main
+     * cardioid, z settles on the fixed point z = (1 - sqrt(1 - 4c)) / 2, whose multiplier is m = 2z, so
+     * dm/dc = 2 / sqrt(1 - 4c). In the period-2 bulb, m = 4(c + 1), so dm/dc = 4.
+     * @param cr - the real part of c, which must be in one or the other (see isInMainCardioidOrBulb())
+     * @param ci - the imaginary part of c
+     * @return the distance from c to the edge of its component (so at least that far from the outside of the set).
+     */
+    private static double cardioidOrBulbDistanceBound(double cr, double ci)
+    {
+        double xPlusOne = cr + 1;
+        double bulbSquared = xPlusOne*xPlusOne + ci*ci;
+        if (bulbSquared < 0.0625)
+            return (1 - 16*bulbSquared) / 16;
+        // sqrt(1 - 4c), by way of polar form.
+        double wr = 1 - 4*cr, wi = -4*ci;
+        double wModulus = Math.sqrt(Math.sqrt(wr*wr + wi*wi));
+        double wAngle = Math.atan2(wi, wr) / 2;
+        double sr = wModulus*Math.cos(wAngle), si = wModulus*Math.sin(wAngle);
+        double mr = 1 - sr, mi = -si;
+        double bound = (1 - (mr*mr + mi*mi)) * wModulus / 8; // (1 - |m|^2) / (4 * 2/|sqrt(1-4c)|)
+        return bound > 0 ? bound : 0;
+    }
+
+    /**
+     * the first time z came back to where it was can be a few times round the real cycle, since we only compare it
+     * with values saved now and then. This finds the real one: the first time z comes back to (very nearly) where
+     * it started.
+     * @param cr - the real part of c
+     * @param ci - the imaginary part of c
+     * @param startR - the real part of a point on the cycle
+     * @param startI - the imaginary part of a point on the cycle
+     * @param repeat - how many steps it took z to come back
+     * @return the length of the cycle.
+     */
+    private static int shortestPeriod(double cr, double ci, double startR, double startI, int repeat)
+    {
+        double zr = startR, zi = startI;
+        for (int period = 1; period < repeat; period++)
+        {
+            double nextZr = zr*zr - zi*zi + cr;
+            zi = zr*zi + zi*zr + ci;
+            zr = nextZr;
+            if (Math.abs(zr - startR) + Math.abs(zi - startI) < CYCLE_TOLERANCE)
+                return period;
+        }
+        return repeat;
+    }
+
+    /**
+     * works out how far c is from the outside of the set, once we know z settles into a cycle: c is then inside one
+     * of the set's "components" (the cardioid, one of the bulbs, ...), and none of the component's edge can be
+     * closer than this.
+     *
+     * Going once around the cycle multiplies small changes in z by the cycle's "multiplier", m. Inside a
+     * component, |m| < 1, and m works as a map from the component onto the unit disk, so Koebe's quarter theorem
+     * again gives a bound: (1 - |m|^2) / (4 |dm/dc|). To get dm/dc we follow, around the cycle, the derivatives of
+     * z with respect to z (which ends up as m), c, z twice, and c and z; the cycle's starting point itself moves
+     * with c too, which is where the (dz/dc) / (1 - m) comes in.
+     *
+     * The point we are given is only near the cycle, so first we home in on it with Newton's method (going round
+     * the cycle moves z by (z - start), and m tells us how that changes as start does). If that doesn't close the
+     * cycle up, we don't trust it.
+     * @param cr - the real part of c
+     * @param ci - the imaginary part of c
+     * @param startR - the real part of a point near the cycle
+     * @param startI - the imaginary part of a point near the cycle
+     * @param period - how many steps it takes to go around the cycle
+     * @return the distance, or 0 if there turns out not to be an attracting cycle there after all.
+     */
+    static double interiorDistanceBound(double cr, double ci, double startR, double startI, int period)
+    {
+        for (int newtonStep = 0; newtonStep < CYCLE_NEWTON_STEPS; newtonStep++)
+        {
+            double[] around = aroundCycle(cr, ci, startR, startI, period);
+            double zr = around[0], zi = around[1], mr = around[2], mi = around[3];
+            double gapR = zr - startR, gapI = zi - startI;
+            if (Math.abs(gapR) + Math.abs(gapI) < CYCLE_CLOSED * (1 + Math.abs(startR) + Math.abs(startI)))
+                return interiorDistanceBound(around);
+            // start -= (z - start) / (m - 1)
+            double denominatorR = mr - 1, denominatorI = mi;
+            double denominator = denominatorR*denominatorR + denominatorI*denominatorI;
+            startR -= (gapR*denominatorR + gapI*denominatorI) / denominator;
+            startI -= (gapI*denominatorR - gapR*denominatorI) / denominator;
+        }
+        return 0;
+    }
+
+    /**
+     * the bound itself, from what aroundCycle() found.
+     */
+    private static double interiorDistanceBound(double[] around)
+    {
+        double mr = around[2], mi = around[3], cDr = around[4], cDi = around[5];
+        double zzr = around[6], zzi = around[7], czr = around[8], czi = around[9];
+        double multiplierSquared = mr*mr + mi*mi;
+        if (!(multiplierSquared < 1))
+            return 0;
+        // dm/dc = d2/dc dz + d2/dz2 * (dz/dc) / (1 - m)
+        double oneMinusR = 1 - mr, oneMinusI = -mi;
+        double denominator = oneMinusR*oneMinusR + oneMinusI*oneMinusI;
+        double shiftR = (cDr*oneMinusR + cDi*oneMinusI) / denominator;
+        double shiftI = (cDi*oneMinusR - cDr*oneMinusI) / denominator;
+        double slopeR = czr + zzr*shiftR - zzi*shiftI;
+        double slopeI = czi + zzr*shiftI + zzi*shiftR;
+        double bound = (1 - multiplierSquared) / (4*Math.sqrt(slopeR*slopeR + slopeI*slopeI));
+        return bound > 0 ? bound : 0;
+    }
+
+    /**
+     * goes once around a cycle from the given point, following z's derivatives with respect to z (which ends up as
+     * the multiplier), c, z twice, and c and z.
+     * @return {z, m, dz/dc, d2z/dz2, d2z/dc dz} at the end, each as a real and imaginary part.
+     */
+    private static double[] aroundCycle(double cr, double ci, double startR, double startI, int period)
+    {
+        double zr = startR, zi = startI;
+        double mr = 1, mi = 0;          // d/dz
+        double cDr = 0, cDi = 0;        // d/dc
+        double zzr = 0, zzi = 0;        // d2/dz2
+        double czr = 0, czi = 0;        // d2/dc dz
+        for (int i = 0; i < period; i++)
+        {
+            // (each of these uses the values from before this step, so the order matters.)
+            double nextCzr = 2*(zr*czr - zi*czi + cDr*mr - cDi*mi);
+            double nextCzi = 2*(zr*czi + zi*czr + cDr*mi + cDi*mr);
+            double nextZzr = 2*(mr*mr - mi*mi + zr*zzr - zi*zzi);
+            double nextZzi = 2*(2*mr*mi + zr*zzi + zi*zzr);
+            double nextCDr = 2*(zr*cDr - zi*cDi) + 1;
+            double nextCDi = 2*(zr*cDi + zi*cDr);
+            double nextMr = 2*(zr*mr - zi*mi);
+            double nextMi = 2*(zr*mi + zi*mr);
+            double nextZr = zr*zr - zi*zi + cr;
+            zi = zr*zi + zi*zr + ci;
+            zr = nextZr;
+            czr = nextCzr;
+            czi = nextCzi;
+            zzr = nextZzr;
+            zzi = nextZzi;
+            cDr = nextCDr;
+            cDi = nextCDi;
+            mr = nextMr;
+            mi = nextMi;
+        }
+        return new double[] {zr, zi, mr, mi, cDr, cDi, zzr, zzi, czr, czi};
+    }
+
+    /**
+     * turns how big z and dz/dc have got into a lower bound on the distance to the set, for any z -> z^degree + c
+     * whose set is all in one piece (as the Mandelbrot and Multibrot sets are).
+     *
+     * The set's "potential" G(c) is log|z| / degree^(steps-1) in the limit, and how steeply it rises, |G'(c)|, is
+     * |dz| / (|z| degree^(steps-1)). Koebe's quarter theorem then says the set is at least
+     * sinh(G) / (2 e^G |G'|) away. For a point far from the set this is about a quarter of the usual distance
+     * estimate, |z| log|z| / |dz|; close to the set, where G is tiny, it is about half of it.
+     * @param modulusSquared - |z|^2, once it is well past the threshold
+     * @param derivativeSquared - |dz/dc|^2 at the same step
+     * @param degree - the power z is raised to each step
+     * @param steps - how many steps it took to get there (z = c after the first)
+     * @return the distance, or 0 if the numbers got out of hand (e.g. dz overflowed).
+     */
+    static double distanceBound(double modulusSquared, double derivativeSquared, int degree, int steps)
+    {
+        double modulus = Math.sqrt(modulusSquared);
+        double logModulus = Math.log(modulus);
+        double derivative = Math.sqrt(derivativeSquared);
+        double scale = Math.pow(degree, steps-1);
+        double bound;
+        if (Double.isInfinite(scale))
+            bound = modulus*logModulus / (2*derivative); // (the limit of the one below, as G goes to zero.)
+        else
+            bound = -Math.expm1(-2*logModulus/scale) * scale * modulus / (4*derivative);
+        return bound > 0 ? bound : 0; // (NaN, if dz overflowed, comes out as 0 too.)
+    }
+
+    /**
+     * the one-point version of continueStepsToExit(): picks up a point after fromCount steps and carries on to
+     * maxCount.
+     * @param cr - the real part of c
+     * @param ci - the imaginary part of c
+     * @param z - {zr, zi} after fromCount steps (ignored if fromCount is zero); if the point is STILL_GOING, this
+     *          receives where it got to.
+     * @param fromCount - how many steps the point has already taken
+     * @return the count, if the point escaped, or else PROVEN_INSIDE or STILL_GOING.
+     */
+    public int continueStepsToExit(double cr, double ci, double[] z, int fromCount)
+    {
+        if (interiorChecks && isInMainCardioidOrBulb(cr, ci))
+            return PROVEN_INSIDE;
+        double zr = 0, zi = 0;
+        if (fromCount > 0)
+        {
+            zr = z[0];
+            zi = z[1];
+        }
+        double zr2 = zr*zr, zi2 = zi*zi;
+        double savedR = zr, savedI = zi;
+        int stepsUntilSave = 1, saveInterval = 1;
+        for (int count = fromCount; count < maxCount; count++)
+        {
+            zi = zr*zi + zi*zr + ci;
+            zr = zr2 - zi2 + cr;
+            zr2 = zr*zr;
+            zi2 = zi*zi;
+            if (zr2 + zi2 > thresholdSquared)
+                return count;
+            if (periodicityChecks)
+            {
+                if (zr == savedR && zi == savedI)
+                    return PROVEN_INSIDE;
+                if (--stepsUntilSave == 0)
+                {
+                    savedR = zr;
+                    savedI = zi;
+                    saveInterval *= 2;
+                    stepsUntilSave = saveInterval;
+                }
+            }
+        }
+        z[0] = zr;
+        z[1] = zi;
+        return STILL_GOING;
+    }
+
+    /**
+     * works out the escape counts for a whole batch of points at once, giving exactly the same counts as calling
+     * countStepsToExit() on each of them, but faster on a modern processor.
+     *
+     * One point's steps can't overlap, since each step needs the answer to the one before. So we keep LANES points
+     * going side by side, one step of each per trip around the loop: while one is waiting on its multiplication, the
+     * processor gets on with the others. When a point escapes (or runs out of steps), its lane moves straight on to
+     * the next point in the batch, so no lane sits idle waiting for a slow neighbor. The lanes are written out as
+     * separate local variables (not arrays), so that they all stay in registers. Most points outside the set escape
+     * within a few steps, and swapping points in and out of the lanes that often would cost more than it saves, so
+     * each point first takes up to LANE_START_STEPS steps on its own (see startNextPoint()), and only gets a lane if
+     * it is still going.
+     *
+     * The periodicity check is done a little differently here: rather than every step, we compare (and save) z only
+     * every PERIODICITY_INTERVAL steps, which keeps the saved values out of the busy part of the loop. A point whose
+     * z comes back round can never escape, so this may catch a cycle a few steps later, but the count is the same.
+     * @param cr - the real parts of the points
+     * @param ci - the imaginary parts of the points
+     * @param counts - receives the count for each point
+     * @param length - how many points there are
+     */
+    public void countStepsToExit(double[] cr, double[] ci, int[] counts, int length)
+    {
+        iterate(cr, ci, null, null, 0, counts, null, length);
+    }
+
+    /**
+     * the same as the batch version of countStepsToExit() above, but also works out each escaping point's
+     * smooth-coloring fraction (see smoothFraction()).
+     * @param fractions - receives the fraction for each point that escapes (the others are left alone).
+     */
+    public void countStepsToExit(double[] cr, double[] ci, int[] counts, float[] fractions, int length)
+    {
+        iterate(cr, ci, null, null, 0, counts, fractions, length);
+    }
+
+    /**
+     * works out how far between this count and the next an escaping point is, for smooth coloring: 0 if z only
+     * just got past the threshold, heading towards 1 as it goes further past (up to the threshold squared, where
+     * the next count would begin). This is the usual "normalized iteration count," count + 1 - log2(log|z| / log R),
+     * where R is the escape radius, with the count taken off.
+     * @param modulusSquared - |z|^2 at the step z escaped
+     * @return the fraction, from 0 up to (but not including) 1.
+     */
+    public float smoothFraction(double modulusSquared)
+    {
+        if (thresholdSquared <= 1)
+            return 0; // the logs don't work out; just go without.
+        double fraction = 1 - Math.log(Math.log(modulusSquared) / Math.log(thresholdSquared)) / Math.log(2);
+        if (fraction < 0)
+            return 0;
+        return fraction < 1 ? (float)fraction : Math.nextDown(1f);
+    }
+
+    /**
+     * picks up a batch of points where an earlier, lower maxCount left them, and carries on to this kernel's
+     * maxCount, with the lanes just like the version above. Since each point's steps are exactly the ones it would
+     * have taken anyway, it ends up with the same count as if we had started it from scratch.
+     *
+     * Here a point that doesn't escape is told apart by how we know: PROVEN_INSIDE if the interior or periodicity
+     * checks showed it never will, or STILL_GOING if it just ran out of steps - in which case its z is written back
+     * into zr and zi, so it can be picked up again later.
+     * @param cr - the real parts of the points
+     * @param ci - the imaginary parts of the points
+     * @param zr - the real parts of z after fromCount steps (or anything at all, if fromCount is zero), and then
+     *           where each STILL_GOING point got to
+     * @param zi - the imaginary parts of z, likewise
+     * @param fromCount - how many steps the points have already taken
+     * @param results - receives the count for each point, or PROVEN_INSIDE or STILL_GOING
+     * @param fractions - if not null, receives the smooth-coloring fraction of each point that escapes.
+     * @param length - how many points there are
+     */
+    public void continueStepsToExit(double[] cr, double[] ci, double[] zr, double[] zi, int fromCount, int[] results,
+                                    float[] fractions, int length)
+    {
+        iterate(cr, ci, zr, zi, fromCount, results, fractions, length);
+    }
+
+    /**
+     * the lanes themselves, for all of the batch methods above. When zrState is null, points that don't escape just
+     * get a count of zero; when fractions is null, we don't work out smooth-coloring fractions.
+     */
+    private void iterate(double[] cr, double[] ci, double[] zrState, double[] ziState, int fromCount, int[] counts,
+                         float[] fractions, int length)
+    {
+        // for each lane: the index of its point (-1 if the lane is idle), c, z, z's parts squared and the number of
+        // steps taken - the same variables as in the one-point version - plus the periodicity check's saved z, and
+        // the step count at which to save it next.
+        int p0 = -1, p1 = -1, p2 = -1, p3 = -1;
+        double cr0 = 0, ci0 = 0, zr0 = 0, zi0 = 0, zr20 = 0, zi20 = 0;
+        double cr1 = 0, ci1 = 0, zr1 = 0, zi1 = 0, zr21 = 0, zi21 = 0;
+        double cr2 = 0, ci2 = 0, zr2 = 0, zi2 = 0, zr22 = 0, zi22 = 0;
+        double cr3 = 0, ci3 = 0, zr3 = 0, zi3 = 0, zr23 = 0, zi23 = 0;
+        int n0 = 0, n1 = 0, n2 = 0, n3 = 0;
+        double savedR0 = 0, savedI0 = 0, savedR1 = 0, savedI1 = 0, savedR2 = 0, savedI2 = 0, savedR3 = 0, savedI3 = 0;
+        int saveAt0 = 1, saveAt1 = 1, saveAt2 = 1, saveAt3 = 1;
+        int stepsUntilCheck = PERIODICITY_INTERVAL;
+        int laneStart = fromCount + LANE_START_STEPS; // a point that gets a lane has taken this many steps.
+        int next = 0, active = 0;
+        double[] start = new double[4]; // startNextPoint() leaves the next point's zr, zi, zr*zr, zi*zi in here.
+
+        next = startNextPoint(cr, ci, zrState, ziState, fromCount, counts, fractions, next, length, start);
+        if (next < length)
+        {
+            p0 = next; cr0 = cr[next]; ci0 = ci[next]; next++; active++;
+            zr0 = start[0]; zi0 = start[1]; zr20 = start[2]; zi20 = start[3]; n0 = laneStart;
+        }
+        next = startNextPoint(cr, ci, zrState, ziState, fromCount, counts, fractions, next, length, start);
+        if (next < length)
+        {
+            p1 = next; cr1 = cr[next]; ci1 = ci[next]; next++; active++;
+            zr1 = start[0]; zi1 = start[1]; zr21 = start[2]; zi21 = start[3]; n1 = laneStart;
+        }
+        next = startNextPoint(cr, ci, zrState, ziState, fromCount, counts, fractions, next, length, start);
+        if (next < length)
+        {
+            p2 = next; cr2 = cr[next]; ci2 = ci[next]; next++; active++;
+            zr2 = start[0]; zi2 = start[1]; zr22 = start[2]; zi22 = start[3]; n2 = laneStart;
+        }
+        next = startNextPoint(cr, ci, zrState, ziState, fromCount, counts, fractions, next, length, start);
+        if (next < length)
+        {
+            p3 = next; cr3 = cr[next]; ci3 = ci[next]; next++; active++;
+            zr3 = start[0]; zi3 = start[1]; zr23 = start[2]; zi23 = start[3]; n3 = laneStart;
+        }
+
+        while (active > 0)
+        {
+            zi0 = zr0*zi0 + zi0*zr0 + ci0;
+            zr0 = zr20 - zi20 + cr0;
+            zr20 = zr0*zr0;
+            zi20 = zi0*zi0;
+            zi1 = zr1*zi1 + zi1*zr1 + ci1;
+            zr1 = zr21 - zi21 + cr1;
+            zr21 = zr1*zr1;
+            zi21 = zi1*zi1;
+            zi2 = zr2*zi2 + zi2*zr2 + ci2;
+            zr2 = zr22 - zi22 + cr2;
+            zr22 = zr2*zr2;
+            zi22 = zi2*zi2;
+            zi3 = zr3*zi3 + zi3*zr3 + ci3;
+            zr3 = zr23 - zi23 + cr3;
+            zr23 = zr3*zr3;
+            zi23 = zi3*zi3;
+            n0++;
+            n1++;
+            n2++;
+            n3++;
+
+            boolean check = periodicityChecks && --stepsUntilCheck == 0;
+            if (!(zr20 + zi20 > thresholdSquared || zr21 + zi21 > thresholdSquared ||
+                  zr22 + zi22 > thresholdSquared || zr23 + zi23 > thresholdSquared ||
+                  n0 == maxCount || n1 == maxCount || n2 == maxCount || n3 == maxCount || check))
+                continue;
+
+            // some lane needs attention. First, the periodicity check: a lane whose z has come back to its saved
+            // value is marked as finished by setting its step count past maxCount (so it gets a count of zero).
+            if (check)
+            {
+                stepsUntilCheck = PERIODICITY_INTERVAL;
+                if (zr0 == savedR0 && zi0 == savedI0) n0 = maxCount+1;
+                else if (n0 >= saveAt0) {savedR0 = zr0; savedI0 = zi0; saveAt0 = 2*n0;}
+                if (zr1 == savedR1 && zi1 == savedI1) n1 = maxCount+1;
+                else if (n1 >= saveAt1) {savedR1 = zr1; savedI1 = zi1; saveAt1 = 2*n1;}
+                if (zr2 == savedR2 && zi2 == savedI2) n2 = maxCount+1;
+                else if (n2 >= saveAt2) {savedR2 = zr2; savedI2 = zi2; saveAt2 = 2*n2;}
+                if (zr3 == savedR3 && zi3 == savedI3) n3 = maxCount+1;
+                else if (n3 >= saveAt3) {savedR3 = zr3; savedI3 = zi3; saveAt3 = 2*n3;}
+            }
+
+            // record any finished points, and start their lanes on the next points.
+            boolean escaped0 = zr20 + zi20 > thresholdSquared;
+            if (p0 >= 0 && (escaped0 || n0 >= maxCount))
+            {
+                counts[p0] = escaped0 ? n0-1 : notEscaped(p0, n0, zr0, zi0, zrState, ziState);
+                if (escaped0 && fractions != null)
+                    fractions[p0] = smoothFraction(zr20 + zi20);
+                next = startNextPoint(cr, ci, zrState, ziState, fromCount, counts, fractions, next, length, start);
+                if (next < length)
+                {
+                    p0 = next; cr0 = cr[next]; ci0 = ci[next]; next++;
+                    zr0 = start[0]; zi0 = start[1]; zr20 = start[2]; zi20 = start[3]; n0 = laneStart;
+                }
+                else
+                {
+                    p0 = -1;
+                    active--;
+                    zr0 = zi0 = zr20 = zi20 = 0;
+                    n0 = 0;
+                }
+                savedR0 = savedI0 = 0;
+                saveAt0 = 1;
+            }
+            boolean escaped1 = zr21 + zi21 > thresholdSquared;
+            if (p1 >= 0 && (escaped1 || n1 >= maxCount))
+            {
+                counts[p1] = escaped1 ? n1-1 : notEscaped(p1, n1, zr1, zi1, zrState, ziState);
+                if (escaped1 && fractions != null)
+                    fractions[p1] = smoothFraction(zr21 + zi21);
+                next = startNextPoint(cr, ci, zrState, ziState, fromCount, counts, fractions, next, length, start);
+                if (next < length)
+                {
+                    p1 = next; cr1 = cr[next]; ci1 = ci[next]; next++;
+                    zr1 = start[0]; zi1 = start[1]; zr21 = start[2]; zi21 = start[3]; n1 = laneStart;
+                }
+                else
+                {
+                    p1 = -1;
+                    active--;
+                    zr1 = zi1 = zr21 = zi21 = 0;
+                    n1 = 0;
+                }
+                savedR1 = savedI1 = 0;
+                saveAt1 = 1;
+            }
+            boolean escaped2 = zr22 + zi22 > thresholdSquared;
+            if (p2 >= 0 && (escaped2 || n2 >= maxCount))
+            {
+                counts[p2] = escaped2 ? n2-1 : notEscaped(p2, n2, zr2, zi2, zrState, ziState);
+                if (escaped2 && fractions != null)
+                    fractions[p2] = smoothFraction(zr22 + zi22);
+                next = startNextPoint(cr, ci, zrState, ziState, fromCount, counts, fractions, next, length, start);
+                if (next < length)
+                {
+                    p2 = next; cr2 = cr[next]; ci2 = ci[next]; next++;
+                    zr2 = start[0]; zi2 = start[1]; zr22 = start[2]; zi22 = start[3]; n2 = laneStart;
+                }
+                else
+                {
+                    p2 = -1;
+                    active--;
+                    zr2 = zi2 = zr22 = zi22 = 0;
+                    n2 = 0;
+                }
+                savedR2 = savedI2 = 0;
+                saveAt2 = 1;
+            }
+            boolean escaped3 = zr23 + zi23 > thresholdSquared;
+            if (p3 >= 0 && (escaped3 || n3 >= maxCount))
+            {
+                counts[p3] = escaped3 ? n3-1 : notEscaped(p3, n3, zr3, zi3, zrState, ziState);
+                if (escaped3 && fractions != null)
+                    fractions[p3] = smoothFraction(zr23 + zi23);
+                next = startNextPoint(cr, ci, zrState, ziState, fromCount, counts, fractions, next, length, start);
+                if (next < length)
+                {
+                    p3 = next; cr3 = cr[next]; ci3 = ci[next]; next++;
+                    zr3 = start[0]; zi3 = start[1]; zr23 = start[2]; zi23 = start[3]; n3 = laneStart;
+                }
+                else
+                {
+                    p3 = -1;
+                    active--;
+                    zr3 = zi3 = zr23 = zi23 = 0;
+                    n3 = 0;
+                }
+                savedR3 = savedI3 = 0;
+                saveAt3 = 1;
+            }
+        }
+    }
+
+    /**
+     * starting at index from, finds the next point that needs a lane. Points that the interior checks show are in
+     * the set (if we are using them) get a count of zero, and points that escape (or run out of steps) within the
+     * first LANE_START_STEPS steps get their counts straight away; we stop at the first point that is still going.
+     * @param zrState - where the points' z values start (after fromCount steps), or null to start them all at zero
+     * @param ziState - likewise
+     * @param fromCount - how many steps the points have already taken
+     * @param fractions - receives the smooth-coloring fractions of points that escape, or null
+     * @param start - receives that point's zr, zi, zr*zr and zi*zi after LANE_START_STEPS more steps.
+     * @return the index of that point, or length if there are none left.
+     */
+    private int startNextPoint(double[] cr, double[] ci, double[] zrState, double[] ziState, int fromCount,
+                               int[] counts, float[] fractions, int from, int length, double[] start)
+    {
+        for (; from < length; from++)
+        {
+            double pr = cr[from], pi = ci[from];
+            if (interiorChecks && isInMainCardioidOrBulb(pr, pi))
+            {
+                counts[from] = zrState == null ? 0 : PROVEN_INSIDE;
+                continue;
+            }
+            double zr = 0, zi = 0;
+            if (zrState != null && fromCount > 0)
+            {
+                zr = zrState[from];
+                zi = ziState[from];
+            }
+            double zr2 = zr*zr, zi2 = zi*zi;
+            int count = fromCount;
+            int stop = Math.min(fromCount + LANE_START_STEPS, maxCount);
+            boolean escaped = false;
+            for (; count < stop; count++)
+            {
+                zi = zr*zi + zi*zr + pi;
+                zr = zr2 - zi2 + pr;
+                zr2 = zr*zr;
+                zi2 = zi*zi;
+                if (zr2 + zi2 > thresholdSquared)
+                {
+                    escaped = true;
+                    break;
+                }
+            }
+            if (escaped)
+            {
+                counts[from] = count;
+                if (fractions != null)
+                    fractions[from] = smoothFraction(zr2 + zi2);
+            }
+            else if (count >= maxCount)
+                counts[from] = notEscaped(from, count, zr, zi, zrState, ziState); // ran out of steps already.
+            else
+            {
+                start[0] = zr;
+                start[1] = zi;
+                start[2] = zr2;
+                start[3] = zi2;
+                return from;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * works out the result for a point that stopped without escaping, after the given number of steps - more than
+     * maxCount means the periodicity check caught it - and saves its z if we are keeping track.
+     * @return zero if we aren't keeping track (zrState is null), otherwise PROVEN_INSIDE or STILL_GOING.
+     */
+    private int notEscaped(int point, int steps, double zr, double zi, double[] zrState, double[] ziState)
+    {
+        if (zrState == null)
+            return 0;
+        if (steps > maxCount)
+            return PROVEN_INSIDE;
+        zrState[point] = zr;
+        ziState[point] = zi;
+        return STILL_GOING;
+    }
+
+    /**
+     * the same calculation as countStepsToExit(), but in single precision. Floats only have about 7 digits, so this
+     * is only worth trying for views where the pixels are far apart (see FractalView.FLOAT_PITCH), and even there a
+     * few pixels right along the edge of the set come out with different counts. It is quicker, though, since twice
+     * as many floats fit in each vector register and cache line, so it is there for anyone who'd rather have that.
+     * @param cr - the real part of c
+     * @param ci - the imaginary part of c
+     * @return - the number of steps it took to escape, or zero if it never did.
+     */
+    public int countStepsToExitFloat(float cr, float ci)
+    {
+        if (interiorChecks && isInMainCardioidOrBulb(cr, ci))
+            return 0;
+        float zr = 0, zi = 0;
+        float zr2 = 0, zi2 = 0;
+        float threshold = (float)thresholdSquared;
+        float savedR = 0, savedI = 0;
+        int stepsUntilSave = 1, saveInterval = 1;
+        for (int count = 0; count < maxCount; count++)
+        {
+            zi = zr*zi + zi*zr + ci;
+            zr = zr2 - zi2 + cr;
+            zr2 = zr*zr;
+            zi2 = zi*zi;
+            if (zr2 + zi2 > threshold)
+                return count;
+            if (periodicityChecks)
+            {
+                if (zr == savedR && zi == savedI)
+                    return 0;
+                if (--stepsUntilSave == 0)
+                {
+                    savedR = zr;
+                    savedI = zi;
+                    saveInterval *= 2;
+                    stepsUntilSave = saveInterval;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * the batch version of countStepsToExitFloat(): the same counts, with LANES points going side by side, as in the
+     * batch version of countStepsToExit(). (Every point gets a lane straight away here, rather than taking its first
+     * few steps on its own; floats are only used zoomed well out, where there are few enough steps that it doesn't
+     * matter much.)
+     * @param cr - the real parts of the points
+     * @param ci - the imaginary parts of the points
+     * @param counts - receives the count for each point
+     * @param length - how many points there are
+     */
+    public void countStepsToExitFloat(float[] cr, float[] ci, int[] counts, int length)
+    {
+        float threshold = (float)thresholdSquared;
+        int p0 = -1, p1 = -1, p2 = -1, p3 = -1;
+        float cr0 = 0, ci0 = 0, zr0 = 0, zi0 = 0, zr20 = 0, zi20 = 0;
+        float cr1 = 0, ci1 = 0, zr1 = 0, zi1 = 0, zr21 = 0, zi21 = 0;
+        float cr2 = 0, ci2 = 0, zr2 = 0, zi2 = 0, zr22 = 0, zi22 = 0;
+        float cr3 = 0, ci3 = 0, zr3 = 0, zi3 = 0, zr23 = 0, zi23 = 0;
+        int n0 = 0, n1 = 0, n2 = 0, n3 = 0;
+        float savedR0 = 0, savedI0 = 0, savedR1 = 0, savedI1 = 0, savedR2 = 0, savedI2 = 0, savedR3 = 0, savedI3 = 0;
+        int saveAt0 = 1, saveAt1 = 1, saveAt2 = 1, saveAt3 = 1;
+        int stepsUntilCheck = PERIODICITY_INTERVAL;
+        int next = 0, active = 0;
+
+        next = nextFloatPoint(cr, ci, counts, next, length);
+        if (next < length) {p0 = next; cr0 = cr[next]; ci0 = ci[next]; next++; active++;}
+        next = nextFloatPoint(cr, ci, counts, next, length);
+        if (next < length) {p1 = next; cr1 = cr[next]; ci1 = ci[next]; next++; active++;}
+        next = nextFloatPoint(cr, ci, counts, next, length);
+        if (next < length) {p2 = next; cr2 = cr[next]; ci2 = ci[next]; next++; active++;}
+        next = nextFloatPoint(cr, ci, counts, next, length);
+        if (next < length) {p3 = next; cr3 = cr[next]; ci3 = ci[next]; next++; active++;}
+
+        while (active > 0)
+        {
+            zi0 = zr0*zi0 + zi0*zr0 + ci0;
+            zr0 = zr20 - zi20 + cr0;
+            zr20 = zr0*zr0;
+            zi20 = zi0*zi0;
+            zi1 = zr1*zi1 + zi1*zr1 + ci1;
+            zr1 = zr21 - zi21 + cr1;
+            zr21 = zr1*zr1;
+            zi21 = zi1*zi1;
+            zi2 = zr2*zi2 + zi2*zr2 + ci2;
+            zr2 = zr22 - zi22 + cr2;
+            zr22 = zr2*zr2;
+            zi22 = zi2*zi2;
+            zi3 = zr3*zi3 + zi3*zr3 + ci3;
+            zr3 = zr23 - zi23 + cr3;
+            zr23 = zr3*zr3;
+            zi23 = zi3*zi3;
+            n0++;
+            n1++;
+            n2++;
+            n3++;
+
+            boolean check = periodicityChecks && --stepsUntilCheck == 0;
+            if (!(zr20 + zi20 > threshold || zr21 + zi21 > threshold ||
+                  zr22 + zi22 > threshold || zr23 + zi23 > threshold ||
+                  n0 == maxCount || n1 == maxCount || n2 == maxCount || n3 == maxCount || check))
+                continue;
+
+            // (just as in iterate(): first the periodicity check, then record the finished points.)
+            if (check)
+            {
+                stepsUntilCheck = PERIODICITY_INTERVAL;
+                if (zr0 == savedR0 && zi0 == savedI0) n0 = maxCount+1;
+                else if (n0 >= saveAt0) {savedR0 = zr0; savedI0 = zi0; saveAt0 = 2*n0;}
+                if (zr1 == savedR1 && zi1 == savedI1) n1 = maxCount+1;
+                else if (n1 >= saveAt1) {savedR1 = zr1; savedI1 = zi1; saveAt1 = 2*n1;}
+                if (zr2 == savedR2 && zi2 == savedI2) n2 = maxCount+1;
+                else if (n2 >= saveAt2) {savedR2 = zr2; savedI2 = zi2; saveAt2 = 2*n2;}
+                if (zr3 == savedR3 && zi3 == savedI3) n3 = maxCount+1;
+                else if (n3 >= saveAt3) {savedR3 = zr3; savedI3 = zi3; saveAt3 = 2*n3;}
+            }
+
+            boolean escaped0 = zr20 + zi20 > threshold;
+            if (p0 >= 0 && (escaped0 || n0 >= maxCount))
+            {
+                counts[p0] = escaped0 ? n0-1 : 0;
+                next = nextFloatPoint(cr, ci, counts, next, length);
+                if (next < length) {p0 = next; cr0 = cr[next]; ci0 = ci[next]; next++;}
+                else {p0 = -1; active--; cr0 = ci0 = 0;}
+                zr0 = zi0 = zr20 = zi20 = 0;
+                n0 = 0;
+                savedR0 = savedI0 = 0;
+                saveAt0 = 1;
+            }
+            boolean escaped1 = zr21 + zi21 > threshold;
+            if (p1 >= 0 && (escaped1 || n1 >= maxCount))
+            {
+                counts[p1] = escaped1 ? n1-1 : 0;
+                next = nextFloatPoint(cr, ci, counts, next, length);
+                if (next < length) {p1 = next; cr1 = cr[next]; ci1 = ci[next]; next++;}
+                else {p1 = -1; active--; cr1 = ci1 = 0;}
+                zr1 = zi1 = zr21 = zi21 = 0;
+                n1 = 0;
+                savedR1 = savedI1 = 0;
+                saveAt1 = 1;
+            }
+            boolean escaped2 = zr22 + zi22 > threshold;
+            if (p2 >= 0 && (escaped2 || n2 >= maxCount))
+            {
+                counts[p2] = escaped2 ? n2-1 : 0;
+                next = nextFloatPoint(cr, ci, counts, next, length);
+                if (next < length) {p2 = next; cr2 = cr[next]; ci2 = ci[next]; next++;}
+                else {p2 = -1; active--; cr2 = ci2 = 0;}
+                zr2 = zi2 = zr22 = zi22 = 0;
+                n2 = 0;
+                savedR2 = savedI2 = 0;
+                saveAt2 = 1;
+            }
+            boolean escaped3 = zr23 + zi23 > threshold;
+            if (p3 >= 0 && (escaped3 || n3 >= maxCount))
+            {
+                counts[p3] = escaped3 ? n3-1 : 0;
+                next = nextFloatPoint(cr, ci, counts, next, length);
+                if (next < length) {p3 = next; cr3 = cr[next]; ci3 = ci[next]; next++;}
+                else {p3 = -1; active--; cr3 = ci3 = 0;}
+                zr3 = zi3 = zr23 = zi23 = 0;
+                n3 = 0;
+                savedR3 = savedI3 = 0;
+                saveAt3 = 1;
+            }
+        }
+    }
+
+    /**
+     * starting at index from, finds the next point for countStepsToExitFloat() to give a lane, giving any the
+     * interior checks show are in the set (if we are using them) a count of zero on the way.
+     * @return the index of that point, or length if there are none left.
+     */
+    private int nextFloatPoint(float[] cr, float[] ci, int[] counts, int from, int length)
+    {
+        for (; from < length; from++)
+        {
+            if (!(interiorChecks && isInMainCardioidOrBulb(cr[from], ci[from])))
+                return from;
+            counts[from] = 0;
+        }
+        return length;
+    }
+
+    /**
+     * the same calculation as countStepsToExit(), but in double-double arithmetic: each number is kept as the sum
+     * of two doubles, hi + lo, where lo holds the digits that didn't fit in hi. That gives about 32 significant
+     * digits (106 bits), which covers zooms from where doubles give out (about 1e-13) down to about 1e-28, many
+     * times faster than BigDecimal. The arithmetic is written out longhand, so that nothing is allocated.
+     * @param crHi - the high part of the real part of c
+     * @param crLo - the low part of the real part of c
+     * @param ciHi - the high part of the imaginary part of c
+     * @param ciLo - the low part of the imaginary part of c
+     * @return - the number of steps it took to escape, or zero if it never did.
+     */
+    public int countStepsToExitDoubleDouble(double crHi, double crLo, double ciHi, double ciLo)
+    {
+        double zrHi = 0, zrLo = 0, ziHi = 0, ziLo = 0;
+        for (int count = 0; count < maxCount; count++)
+        {
+            // zr*zr
+            double p = zrHi*zrHi;
+            double e = Math.fma(zrHi, zrHi, -p) + 2*zrHi*zrLo;
+            double zr2Hi = p + e;
+            double zr2Lo = e - (zr2Hi - p);
+            // zi*zi
+            p = ziHi*ziHi;
+            e = Math.fma(ziHi, ziHi, -p) + 2*ziHi*ziLo;
+            double zi2Hi = p + e;
+            double zi2Lo = e - (zi2Hi - p);
+            // 2*zr*zi (doubling is exact, so it can be done on the parts)
+            p = zrHi*ziHi;
+            e = Math.fma(zrHi, ziHi, -p) + (zrHi*ziLo + zrLo*ziHi);
+            double zriHi = 2*(p + e);
+            double zriLo = 2*(e - ((p + e) - p));
+
+            // new zi = 2*zr*zi + ci
+            double s = zriHi + ciHi;
+            double b = s - zriHi;
+            e = (zriHi - (s - b)) + (ciHi - b) + zriLo + ciLo;
+            ziHi = s + e;
+            ziLo = e - (ziHi - s);
+
+            // new zr = zr*zr - zi*zi + cr
+            s = zr2Hi - zi2Hi;
+            b = s - zr2Hi;
+            e = (zr2Hi - (s - b)) + (-zi2Hi - b) + zr2Lo - zi2Lo;
+            double dHi = s + e;
+            double dLo = e - (dHi - s);
+            s = dHi + crHi;
+            b = s - dHi;
+            e = (dHi - (s - b)) + (crHi - b) + dLo + crLo;
+            zrHi = s + e;
+            zrLo = e - (zrHi - s);
+
+            if (zrHi*zrHi + ziHi*ziHi > thresholdSquared)
+                return count;
+        }
+        return 0;
+    }
+}
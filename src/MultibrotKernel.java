@@ -0,0 +1,428 @@
+/**
+ * The escape-time calculation for a Multibrot set: the Mandelbrot set with a higher power, z -> z^power + c.
+ * (Power 2 is the Mandelbrot set itself, and gives exactly MandelbrotKernel's counts, less its shortcuts.) The set
+ * has power-1 "arms" of symmetry: a power of 3 looks like two Mandelbrot sets back to back, and so on.
+ *
+ * Raising z to the power is written out with plain multiplications for each power we support, rather than going
+ * through Math.pow() (which works with logs and angles, and is many times slower, and not quite exact). Each power
+ * has its own copy of the loop, with its own few lines of squaring and multiplying (z^6 is (z^3)^2, say), picked
+ * once per point; so there is no switch or inner loop in the way of each step, and the JIT compiles each power's
+ * loop as if it were the only one.
+ */
+public final class MultibrotKernel implements FractalKernel
+{
+    public static final int MIN_POWER = 2;
+    public static final int MAX_POWER = 8;
+
+    private final int maxCount;
+    private final double thresholdSquared;
+    private final boolean periodicityChecks;
+    private final int power;
+
+    /**
+     * @param maxCount - the most steps to take before deciding a point is in the set
+     * @param thresholdSquared - how far (squared) z must get from the origin to count as escaped
+     * @param periodicityChecks - whether to watch for z repeating itself (see MandelbrotKernel)
+     * @param power - the power to raise z to, from MIN_POWER to MAX_POWER
+     */
+    public MultibrotKernel(int maxCount, double thresholdSquared, boolean periodicityChecks, int power)
+    {
+        if (power < MIN_POWER || power > MAX_POWER)
+            throw new IllegalArgumentException("The power must be between "+MIN_POWER+" and "+MAX_POWER+".");
+        this.maxCount = maxCount;
+        this.thresholdSquared = thresholdSquared;
+        this.periodicityChecks = periodicityChecks;
+        this.power = power;
+    }
+
+    public String getName() {return "Multibrot (power "+power+")";}
+    public int getMaxCount() {return maxCount;}
+    public double getThresholdSquared() {return thresholdSquared;}
+    public int getPower() {return power;}
+
+    public int countStepsToExit(double cr, double ci)
+    {
+        return Math.max(iterate(cr, ci, null, 0, null, 0), 0);
+    }
+
+    public void countStepsToExit(double[] cr, double[] ci, int[] counts, int length)
+    {
+        for (int i = 0; i < length; i++)
+            counts[i] = Math.max(iterate(cr[i], ci[i], null, 0, null, i), 0);
+    }
+
+    public void countStepsToExit(double[] cr, double[] ci, int[] counts, float[] fractions, int length)
+    {
+        for (int i = 0; i < length; i++)
+            counts[i] = Math.max(iterate(cr[i], ci[i], null, 0, fractions, i), 0);
+    }
+
+    public int continueStepsToExit(double cr, double ci, double[] z, int fromCount)
+    {
+        return iterate(cr, ci, z, fromCount, null, 0);
+    }
+
+    public void continueStepsToExit(double[] cr, double[] ci, double[] zr, double[] zi, int fromCount, int[] results,
+                                    float[] fractions, int length)
+    {
+        double[] z = new double[2];
+        for (int i = 0; i < length; i++)
+        {
+            z[0] = zr[i];
+            z[1] = zi[i];
+            results[i] = iterate(cr[i], ci[i], z, fromCount, fractions, i);
+            zr[i] = z[0];
+            zi[i] = z[1];
+        }
+    }
+
+    /**
+     * steps z along with its derivative with respect to c, dz -> power * z^(power-1) * dz + 1, for the same kind of
+     * distance estimate as MandelbrotKernel.estimateDistance() gives points that escape (the Multibrot sets are all
+     * in one piece, too). There's no estimate for points inside: MandelbrotKernel's uses the cycle's multiplier as a
+     * one-to-one map of a component onto the disk, and with higher powers it isn't one-to-one.
+     */
+    public double estimateDistance(double cr, double ci)
+    {
+        double zr = 0, zi = 0, dr = 0, di = 0;
+        boolean escaped = false;
+        for (int step = 1; escaped || step <= maxCount; step++)
+        {
+            // z^(power-1), by multiplying it out.
+            double pr = 1, pi = 0;
+            for (int i = 1; i < power; i++)
+            {
+                double r = pr*zr - pi*zi;
+                pi = pr*zi + pi*zr;
+                pr = r;
+            }
+            double nextDr = power*(pr*dr - pi*di) + 1;
+            di = power*(pr*di + pi*dr);
+            dr = nextDr;
+            double nextZr = pr*zr - pi*zi + cr;
+            zi = pr*zi + pi*zr + ci;
+            zr = nextZr;
+            double modulusSquared = zr*zr + zi*zi;
+            if (modulusSquared > MandelbrotKernel.DISTANCE_RADIUS_SQUARED)
+                return MandelbrotKernel.distanceBound(modulusSquared, dr*dr + di*di, power, step);
+            escaped = escaped || modulusSquared > thresholdSquared;
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * the normalized iteration count again, but with z growing to the power'th power each step rather than the
+     * square, so the log is to that base instead of base 2.
+     */
+    public float smoothFraction(double modulusSquared)
+    {
+        if (thresholdSquared <= 1)
+            return 0;
+        double fraction = 1 - Math.log(Math.log(modulusSquared) / Math.log(thresholdSquared)) / Math.log(power);
+        if (fraction < 0)
+            return 0;
+        return fraction < 1 ? (float)fraction : Math.nextDown(1f);
+    }
+
+    /**
+     * the loop behind all of the public methods: steps one point from fromCount up to maxCount. Each power has a loop
+     * of its own (below), so the power is only looked at once per point, and never inside the loop.
+     * @param cr - the real part of c
+     * @param ci - the imaginary part of c
+     * @param z - {zr, zi} after fromCount steps (ignored if fromCount is zero); if the point is STILL_GOING, this
+     *          receives where it got to. May be null, if fromCount is zero and we don't need to know.
+     * @param fromCount - how many steps the point has already taken
+     * @param fractions - if not null, fractions[index] receives the point's smooth-coloring fraction if it escapes.
+     * @param index - where this point goes in fractions
+     * @return the count, if the point escaped, or else PROVEN_INSIDE or STILL_GOING.
+     */
+    private int iterate(double cr, double ci, double[] z, int fromCount, float[] fractions, int index)
+    {
+        switch (power)
+        {
+            case 2:
+                return iterate2(cr, ci, z, fromCount, fractions, index);
+            case 3:
+                return iterate3(cr, ci, z, fromCount, fractions, index);
+            case 4:
+                return iterate4(cr, ci, z, fromCount, fractions, index);
+            case 5:
+                return iterate5(cr, ci, z, fromCount, fractions, index);
+            case 6:
+                return iterate6(cr, ci, z, fromCount, fractions, index);
+            case 7:
+                return iterate7(cr, ci, z, fromCount, fractions, index);
+            default:
+                return iterate8(cr, ci, z, fromCount, fractions, index);
+        }
+    }
+
+    /**
+     * records how a point that escaped after the given count finished, for the iterate methods.
+     */
+    private int escaped(int count, double modulusSquared, float[] fractions, int index)
+    {
+        if (fractions != null)
+            fractions[index] = smoothFraction(modulusSquared);
+        return count;
+    }
+
+    /**
+     * records where a point that ran out of steps got to, for the iterate methods.
+     */
+    private static int stillGoing(double zr, double zi, double[] z)
+    {
+        if (z != null)
+        {
+            z[0] = zr;
+            z[1] = zi;
+        }
+        return STILL_GOING;
+    }
+
+    /**
+     * iterate() for z -> z^2 + c.
+     */
+    private int iterate2(double cr, double ci, double[] z, int fromCount, float[] fractions, int index)
+    {
+        double zr = fromCount > 0 ? z[0] : 0, zi = fromCount > 0 ? z[1] : 0;
+        double zr2 = zr*zr, zi2 = zi*zi;
+        double savedR = zr, savedI = zi;
+        int stepsUntilSave = 1, saveInterval = 1;
+        for (int count = fromCount; count < maxCount; count++)
+        {
+            double nextI = zr*zi + zi*zr;
+            zr = zr2 - zi2 + cr;
+            zi = nextI + ci;
+            zr2 = zr*zr;
+            zi2 = zi*zi;
+            if (zr2 + zi2 > thresholdSquared)
+                return escaped(count, zr2 + zi2, fractions, index);
+            if (periodicityChecks)
+            {
+                if (zr == savedR && zi == savedI)
+                    return PROVEN_INSIDE;
+                if (--stepsUntilSave == 0)
+                {
+                    savedR = zr;
+                    savedI = zi;
+                    saveInterval *= 2;
+                    stepsUntilSave = saveInterval;
+                }
+            }
+        }
+        return stillGoing(zr, zi, z);
+    }
+
+    /**
+     * iterate() for z -> z^3 + c.
+     */
+    private int iterate3(double cr, double ci, double[] z, int fromCount, float[] fractions, int index)
+    {
+        double zr = fromCount > 0 ? z[0] : 0, zi = fromCount > 0 ? z[1] : 0;
+        double zr2 = zr*zr, zi2 = zi*zi;
+        double savedR = zr, savedI = zi;
+        int stepsUntilSave = 1, saveInterval = 1;
+        for (int count = fromCount; count < maxCount; count++)
+        {
+            double nextI = zi*(3*zr2 - zi2);
+            zr = zr*(zr2 - 3*zi2) + cr;
+            zi = nextI + ci;
+            zr2 = zr*zr;
+            zi2 = zi*zi;
+            if (zr2 + zi2 > thresholdSquared)
+                return escaped(count, zr2 + zi2, fractions, index);
+            if (periodicityChecks)
+            {
+                if (zr == savedR && zi == savedI)
+                    return PROVEN_INSIDE;
+                if (--stepsUntilSave == 0)
+                {
+                    savedR = zr;
+                    savedI = zi;
+                    saveInterval *= 2;
+                    stepsUntilSave = saveInterval;
+                }
+            }
+        }
+        return stillGoing(zr, zi, z);
+    }
+
+    /**
+     * iterate() for z -> z^4, as (z^2)^2 + c.
+     */
+    private int iterate4(double cr, double ci, double[] z, int fromCount, float[] fractions, int index)
+    {
+        double zr = fromCount > 0 ? z[0] : 0, zi = fromCount > 0 ? z[1] : 0;
+        double zr2 = zr*zr, zi2 = zi*zi;
+        double savedR = zr, savedI = zi;
+        int stepsUntilSave = 1, saveInterval = 1;
+        for (int count = fromCount; count < maxCount; count++)
+        {
+            double squareR = zr2 - zi2, squareI = 2*zr*zi;
+            double nextI = 2*squareR*squareI;
+            zr = squareR*squareR - squareI*squareI + cr;
+            zi = nextI + ci;
+            zr2 = zr*zr;
+            zi2 = zi*zi;
+            if (zr2 + zi2 > thresholdSquared)
+                return escaped(count, zr2 + zi2, fractions, index);
+            if (periodicityChecks)
+            {
+                if (zr == savedR && zi == savedI)
+                    return PROVEN_INSIDE;
+                if (--stepsUntilSave == 0)
+                {
+                    savedR = zr;
+                    savedI = zi;
+                    saveInterval *= 2;
+                    stepsUntilSave = saveInterval;
+                }
+            }
+        }
+        return stillGoing(zr, zi, z);
+    }
+
+    /**
+     * iterate() for z -> z^5, as (z^2)^2 * z + c.
+     */
+    private int iterate5(double cr, double ci, double[] z, int fromCount, float[] fractions, int index)
+    {
+        double zr = fromCount > 0 ? z[0] : 0, zi = fromCount > 0 ? z[1] : 0;
+        double zr2 = zr*zr, zi2 = zi*zi;
+        double savedR = zr, savedI = zi;
+        int stepsUntilSave = 1, saveInterval = 1;
+        for (int count = fromCount; count < maxCount; count++)
+        {
+            double squareR = zr2 - zi2, squareI = 2*zr*zi;
+            double fourthR = squareR*squareR - squareI*squareI, fourthI = 2*squareR*squareI;
+            double nextI = fourthR*zi + fourthI*zr;
+            zr = fourthR*zr - fourthI*zi + cr;
+            zi = nextI + ci;
+            zr2 = zr*zr;
+            zi2 = zi*zi;
+            if (zr2 + zi2 > thresholdSquared)
+                return escaped(count, zr2 + zi2, fractions, index);
+            if (periodicityChecks)
+            {
+                if (zr == savedR && zi == savedI)
+                    return PROVEN_INSIDE;
+                if (--stepsUntilSave == 0)
+                {
+                    savedR = zr;
+                    savedI = zi;
+                    saveInterval *= 2;
+                    stepsUntilSave = saveInterval;
+                }
+            }
+        }
+        return stillGoing(zr, zi, z);
+    }
+
+    /**
+     * iterate() for z -> z^6, as (z^3)^2 + c.
+     */
+    private int iterate6(double cr, double ci, double[] z, int fromCount, float[] fractions, int index)
+    {
+        double zr = fromCount > 0 ? z[0] : 0, zi = fromCount > 0 ? z[1] : 0;
+        double zr2 = zr*zr, zi2 = zi*zi;
+        double savedR = zr, savedI = zi;
+        int stepsUntilSave = 1, saveInterval = 1;
+        for (int count = fromCount; count < maxCount; count++)
+        {
+            double cubeR = zr*(zr2 - 3*zi2), cubeI = zi*(3*zr2 - zi2);
+            double nextI = 2*cubeR*cubeI;
+            zr = cubeR*cubeR - cubeI*cubeI + cr;
+            zi = nextI + ci;
+            zr2 = zr*zr;
+            zi2 = zi*zi;
+            if (zr2 + zi2 > thresholdSquared)
+                return escaped(count, zr2 + zi2, fractions, index);
+            if (periodicityChecks)
+            {
+                if (zr == savedR && zi == savedI)
+                    return PROVEN_INSIDE;
+                if (--stepsUntilSave == 0)
+                {
+                    savedR = zr;
+                    savedI = zi;
+                    saveInterval *= 2;
+                    stepsUntilSave = saveInterval;
+                }
+            }
+        }
+        return stillGoing(zr, zi, z);
+    }
+
+    /**
+     * iterate() for z -> z^7, as (z^3)^2 * z + c.
+     */
+    private int iterate7(double cr, double ci, double[] z, int fromCount, float[] fractions, int index)
+    {
+        double zr = fromCount > 0 ? z[0] : 0, zi = fromCount > 0 ? z[1] : 0;
+        double zr2 = zr*zr, zi2 = zi*zi;
+        double savedR = zr, savedI = zi;
+        int stepsUntilSave = 1, saveInterval = 1;
+        for (int count = fromCount; count < maxCount; count++)
+        {
+            double cubeR = zr*(zr2 - 3*zi2), cubeI = zi*(3*zr2 - zi2);
+            double sixthR = cubeR*cubeR - cubeI*cubeI, sixthI = 2*cubeR*cubeI;
+            double nextI = sixthR*zi + sixthI*zr;
+            zr = sixthR*zr - sixthI*zi + cr;
+            zi = nextI + ci;
+            zr2 = zr*zr;
+            zi2 = zi*zi;
+            if (zr2 + zi2 > thresholdSquared)
+                return escaped(count, zr2 + zi2, fractions, index);
+            if (periodicityChecks)
+            {
+                if (zr == savedR && zi == savedI)
+                    return PROVEN_INSIDE;
+                if (--stepsUntilSave == 0)
+                {
+                    savedR = zr;
+                    savedI = zi;
+                    saveInterval *= 2;
+                    stepsUntilSave = saveInterval;
+                }
+            }
+        }
+        return stillGoing(zr, zi, z);
+    }
+
+    /**
+     * iterate() for z -> z^8, as ((z^2)^2)^2 + c.
+     */
+    private int iterate8(double cr, double ci, double[] z, int fromCount, float[] fractions, int index)
+    {
+        double zr = fromCount > 0 ? z[0] : 0, zi = fromCount > 0 ? z[1] : 0;
+        double zr2 = zr*zr, zi2 = zi*zi;
+        double savedR = zr, savedI = zi;
+        int stepsUntilSave = 1, saveInterval = 1;
+        for (int count = fromCount; count < maxCount; count++)
+        {
+            double squareR = zr2 - zi2, squareI = 2*zr*zi;
+            double fourthR = squareR*squareR - squareI*squareI, fourthI = 2*squareR*squareI;
+            double nextI = 2*fourthR*fourthI;
+            zr = fourthR*fourthR - fourthI*fourthI + cr;
+            zi = nextI + ci;
+            zr2 = zr*zr;
+            zi2 = zi*zi;
+            if (zr2 + zi2 > thresholdSquared)
+                return escaped(count, zr2 + zi2, fractions, index);
+            if (periodicityChecks)
+            {
+                if (zr == savedR && zi == savedI)
+                    return PROVEN_INSIDE;
+                if (--stepsUntilSave == 0)
+                {
+                    savedR = zr;
+                    savedI = zi;
+                    saveInterval *= 2;
+                    stepsUntilSave = saveInterval;
+                }
+            }
+        }
+        return stillGoing(zr, zi, z);
+    }
+}
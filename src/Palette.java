@@ -0,0 +1,68 @@
+/**
+ * A way of turning escape counts into colors. Subclasses describe the color for a single count; the panel asks for
+ * a lookup table of every count from 0 to maxCount once, so that coloring a pixel is just an array access.
+ */
+public abstract class Palette
+{
+    private final String name;
+
+    protected Palette(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * @return the name of this palette, as it should appear in the menu.
+     */
+    public String getName() {return name;}
+
+    /**
+     * given a count, returns the color for it, packed as an ARGB int (0xAARRGGBB), as Color.getRGB() would.
+     * Counts of zero (points that never escaped) should come out black.
+     * @param count - the number we are converting into a color
+     * @return the packed color for this count.
+     */
+    public abstract int colorForCount(int count);
+
+    /**
+     * builds the lookup table for this palette: the packed color for every count from 0 to maxCount, inclusive.
+     * @param maxCount - the largest count the table needs to cover
+     * @return an array of length maxCount+1, where table[count] is the color for that count.
+     */
+    public int[] buildTable(int maxCount)
+    {
+        int[] table = new int[maxCount+1];
+        for (int count = 0; count <= maxCount; count++)
+            table[count] = colorForCount(count);
+        return table;
+    }
+
+    /**
+     * packs red, green and blue values (each 0-255) into an opaque ARGB int.
+     */
+    protected static int packRGB(int red, int green, int blue)
+    {
+        return 0xFF000000 | (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * @return one of each of the palettes that come with the program, the default (classic) one first.
+     */
+    public static Palette[] getStandardPalettes()
+    {
+        return new Palette[] {new ClassicPalette(), new FirePalette(), new GrayscalePalette()};
+    }
+
+    /**
+     * finds one of the standard palettes by name, ignoring case.
+     * @param name - the name of the palette, as given by getName()
+     * @return the palette with that name.
+     */
+    public static Palette forName(String name)
+    {
+        for (Palette palette : getStandardPalettes())
+            if (palette.getName().equalsIgnoreCase(name))
+                return palette;
+        throw new IllegalArgumentException("No palette called \""+name+"\".");
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a PNG file a few rows at a time, so that an image far bigger than memory can be saved as it is calculated.
+ * (ImageIO needs the whole image at once.) The image is 8-bit RGB; each row uses the PNG "Sub" filter, which suits
+ * the long runs of similar colors in a fractal, and the compressed data goes out in IDAT chunks of up to 64KB.
+ */
+public class PngStripWriter
+{
+    private static final byte[] SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+    private static final int CHUNK_SIZE = 1<<16;
+
+    private final DataOutputStream out;
+    private final int width, height;
+    private final DeflaterOutputStream compressor;
+    private final byte[] rowBytes;
+    private int rowsWritten;
+
+    /**
+     * writes the PNG header for an image of the given size.
+     * @param out - where the PNG goes; it is closed by finish().
+     * @param width - the width of the image, in pixels
+     * @param height - the height of the image, in pixels
+     */
+    public PngStripWriter(OutputStream out, int width, int height) throws IOException
+    {
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        rowBytes = new byte[1 + 3*width];
+        this.out.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.writeByte(8); // bits per channel
+        headerData.writeByte(2); // color type: RGB
+        headerData.writeByte(0); // compression: deflate
+        headerData.writeByte(0); // filter method: adaptive
+        headerData.writeByte(0); // no interlacing
+        writeChunk("IHDR", header.toByteArray(), header.size());
+
+        compressor = new DeflaterOutputStream(new IdatOutputStream(), new Deflater(Deflater.DEFAULT_COMPRESSION),
+                                              CHUNK_SIZE);
+    }
+
+    /**
+     * adds the next few rows to the image.
+     * @param rgb - the packed RGB colors for the rows, row by row, width colors to a row.
+     * @param rows - how many rows are in rgb.
+     */
+    public void writeRows(int[] rgb, int rows) throws IOException
+    {
+        if (rowsWritten + rows > height)
+            throw new IllegalStateException("Too many rows for a "+width+" x "+height+" image.");
+        for (int row = 0; row < rows; row++)
+        {
+            rowBytes[0] = 1; // the "Sub" filter: each byte is stored as the difference from the pixel to its left.
+            int previous = 0;
+            for (int x = 0; x < width; x++)
+            {
+                int color = rgb[row*width + x];
+                rowBytes[1 + 3*x] = (byte)((color >> 16) - (previous >> 16));
+                rowBytes[2 + 3*x] = (byte)((color >> 8) - (previous >> 8));
+                rowBytes[3 + 3*x] = (byte)(color - previous);
+                previous = color;
+            }
+            compressor.write(rowBytes);
+        }
+        rowsWritten += rows;
+    }
+
+    /**
+     * finishes off the compressed data, writes the end of the file and closes it.
+     */
+    public void finish() throws IOException
+    {
+        if (rowsWritten != height)
+            throw new IllegalStateException("Only "+rowsWritten+" of "+height+" rows were written.");
+        compressor.finish();
+        compressor.flush();
+        writeChunk("IEND", new byte[0], 0);
+        out.close();
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException
+    {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int)crc.getValue());
+    }
+
+    /**
+     * turns whatever the compressor writes into IDAT chunks.
+     */
+    private class IdatOutputStream extends OutputStream
+    {
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+                return;
+            byte[] chunk = b;
+            if (off != 0)
+            {
+                chunk = new byte[len];
+                System.arraycopy(b, off, chunk, 0, len);
+            }
+            writeChunk("IDAT", chunk, len);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Timing harness for the parts of the renderer that matter for speed: the iteration kernels at a few typical
+ * regions, each scan rendering off-screen (no Swing involved), and coloring. Each benchmark is warmed up first (for
+ * a set number of rounds and at least a set time, since big methods can take the JIT a good fraction of a second to
+ * compile), and then timed several times; we report the mean and spread in pixels/second and
+ * iterations/second (counting a pixel that never escapes as maxCount iterations), plus bytes allocated per pixel
+ * where that can be measured.
+ *
+ * Usage: java RecursiveFractalBenchmark [--quick] [--filter TEXT]
+ *   --quick        fewer, shorter rounds, for a fast sanity check
+ *   --filter TEXT  only run benchmarks whose names contain TEXT
+ */
+public class RecursiveFractalBenchmark
+{
+    private static final int MAX_COUNT = 1024;
+    private static final int SIZE = 400; // benchmarks render SIZE x SIZE pixels per operation.
+
+    private final int warmupRounds, measuredRounds;
+    private final long warmupNanos;
+    private final String filter;
+    // results are added into here, so the JIT can't decide the work isn't needed.
+    private static volatile long sink;
+
+    public RecursiveFractalBenchmark(int warmupRounds, long warmupMillis, int measuredRounds, String filter)
+    {
+        this.warmupRounds = warmupRounds;
+        this.warmupNanos = warmupMillis * 1000000;
+        this.measuredRounds = measuredRounds;
+        this.filter = filter;
+    }
+
+    /**
+     * one thing to time: run() does one operation over the given number of pixels, and returns how many
+     * iterations that took (or 0 if iterations don't apply).
+     */
+    private interface Benchmark
+    {
+        long run();
+    }
+
+    /**
+     * warms up and times a benchmark, and prints a line of results.
+     * @param name - the name to report it under
+     * @param pixels - how many pixels one run() covers
+     * @param benchmark - the work to time
+     */
+    private void measure(String name, long pixels, Benchmark benchmark)
+    {
+        if (filter != null && !name.contains(filter))
+            return;
+        long warmupStart = System.nanoTime();
+        for (int i = 0; i < warmupRounds || System.nanoTime() - warmupStart < warmupNanos; i++)
+            sink += benchmark.run();
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        double[] seconds = new double[measuredRounds];
+        long iterations = 0;
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < measuredRounds; i++)
+        {
+            long start = System.nanoTime();
+            iterations = benchmark.run();
+            seconds[i] = (System.nanoTime() - start) / 1e9;
+            sink += iterations;
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        double mean = 0;
+        for (double s : seconds)
+            mean += s;
+        mean /= measuredRounds;
+        double variance = 0;
+        for (double s : seconds)
+            variance += (s - mean)*(s - mean);
+        double spread = measuredRounds > 1 ? Math.sqrt(variance / (measuredRounds-1)) / mean * 100 : 0;
+        String iterationRate = iterations > 0 ? String.format("%12.1f", iterations / mean / 1e6) : "           -";
+        System.out.printf("%-42s %12.3f Mpix/s %s Miter/s  +/-%5.1f%%  %8.2f bytes/pix%n",
+                          name, pixels / mean / 1e6, iterationRate, spread,
+                          (double)allocated / (pixels*(long)measuredRounds));
+    }
+
+    /**
+     * @return the number of iterations a pixel with this count took, counting a pixel that never escaped as
+     * maxCount.
+     */
+    private static long iterationsFor(int count)
+    {
+        return count == 0 ? MAX_COUNT : count+1;
+    }
+
+    private static ComplexRange around(String re, String im, String halfWidth)
+    {
+        BigDecimal x = new BigDecimal(re), y = new BigDecimal(im), h = new BigDecimal(halfWidth);
+        return new ComplexRange(new BigComplex(x.subtract(h), y.subtract(h)), new BigComplex(x.add(h), y.add(h)));
+    }
+
+    /**
+     * times FractalView.countAt() over a whole frame of the given region, one thread, in the given precision - and
+     * then FractalView.countPixels(), which hands the kernel a row at a time.
+     */
+    private void measureKernel(String name, ComplexRange region, boolean shortcuts, boolean allowFloat)
+    {
+        MandelbrotKernel kernel = new MandelbrotKernel(MAX_COUNT, MandelbrotKernel.DEFAULT_THRESHOLD_SQUARED,
+                                                       shortcuts, shortcuts);
+        FractalView view = new FractalView(region, SIZE, SIZE, kernel, allowFloat);
+        String label = "kernel " + name + " [" + FractalView.PRECISION_NAMES[view.getPrecision()] +
+                       (shortcuts ? "" : ", no shortcuts") + "]";
+        measure(label, (long)SIZE*SIZE, () ->
+        {
+            long iterations = 0;
+            for (int y = 0; y < SIZE; y++)
+                for (int x = 0; x < SIZE; x++)
+                    iterations += iterationsFor(view.countAt(x, y));
+            return iterations;
+        });
+        if (view.getPrecision() != FractalView.PRECISION_DOUBLE)
+            return; // the other precisions don't batch, so there is nothing different to time.
+        measure(label.replace("kernel", "kernel batched"), (long)SIZE*SIZE, () ->
+        {
+            int[] xs = new int[SIZE];
+            int[] ys = new int[SIZE];
+            int[] row = new int[SIZE];
+            for (int x = 0; x < SIZE; x++)
+                xs[x] = x;
+            long iterations = 0;
+            for (int y = 0; y < SIZE; y++)
+            {
+                java.util.Arrays.fill(ys, y);
+                view.countPixels(xs, ys, row, SIZE);
+                for (int count : row)
+                    iterations += iterationsFor(count);
+            }
+            return iterations;
+        });
+    }
+
+    /**
+     * times each of the other formulas over the default view, a pixel at a time and then a row at a time, and then
+     * the Mandelbrot kernel again, to check that having run the others hasn't slowed it down.
+     */
+    private void measureFormulas()
+    {
+        double threshold = MandelbrotKernel.DEFAULT_THRESHOLD_SQUARED;
+        FractalKernel[] kernels = {new JuliaKernel(MAX_COUNT, threshold, true, -0.8, 0.156),
+                                   new MultibrotKernel(MAX_COUNT, threshold, true, 3),
+                                   new MultibrotKernel(MAX_COUNT, threshold, true, 5),
+                                   new BurningShipKernel(MAX_COUNT, threshold, true),
+                                   new MandelbrotKernel(MAX_COUNT, threshold, true, true)};
+        ComplexRange region = new ComplexRange(new Complex(-2,-2), new Complex(2,2));
+        for (FractalKernel kernel : kernels)
+        {
+            FractalView view = new FractalView(region, SIZE, SIZE, kernel, false);
+            String label = "formula " + kernel.getName();
+            measure(label, (long)SIZE*SIZE, () ->
+            {
+                long iterations = 0;
+                for (int y = 0; y < SIZE; y++)
+                    for (int x = 0; x < SIZE; x++)
+                        iterations += iterationsFor(view.countAt(x, y));
+                return iterations;
+            });
+            measure(label + " [batched]", (long)SIZE*SIZE, () ->
+            {
+                int[] xs = new int[SIZE];
+                int[] ys = new int[SIZE];
+                int[] row = new int[SIZE];
+                for (int x = 0; x < SIZE; x++)
+                    xs[x] = x;
+                long iterations = 0;
+                for (int y = 0; y < SIZE; y++)
+                {
+                    java.util.Arrays.fill(ys, y);
+                    view.countPixels(xs, ys, row, SIZE);
+                    for (int count : row)
+                        iterations += iterationsFor(count);
+                }
+                return iterations;
+            });
+        }
+    }
+
+    /**
+     * times one scan rendering the default view (in double precision) into an off-screen count buffer, using every
+     * core.
+     */
+    private void measureScan(int mode, ForkJoinPool pool, boolean laneBatching)
+    {
+        MandelbrotKernel kernel = new MandelbrotKernel(MAX_COUNT, MandelbrotKernel.DEFAULT_THRESHOLD_SQUARED, true, true);
+        FractalView view = new FractalView(new ComplexRange(new Complex(-2,-2), new Complex(2,2)), SIZE, SIZE, kernel,
+                                           false);
+        measure("scan " + FractalScanner.MODE_NAMES[mode] + (laneBatching ? " [batched]" : ""), (long)SIZE*SIZE, () ->
+        {
+            EscapeCountBuffer counts = new EscapeCountBuffer(SIZE, SIZE);
+            FractalScanner scanner = new FractalScanner(view, counts, pool);
+            scanner.setLaneBatching(laneBatching);
+            scanner.scan(mode);
+            long iterations = 0;
+            for (int count : counts.getCounts())
+                iterations += iterationsFor(count);
+            return iterations;
+        });
+    }
+
+    /**
+     * times turning a frame of counts into colors, with a palette lookup table and (for comparison) by working out
+     * each color from scratch.
+     */
+    private void measureColoring()
+    {
+        EscapeCountBuffer counts = new EscapeCountBuffer(SIZE, SIZE);
+        MandelbrotKernel kernel = new MandelbrotKernel(MAX_COUNT, MandelbrotKernel.DEFAULT_THRESHOLD_SQUARED, true, true);
+        new FractalScanner(new FractalView(new ComplexRange(new Complex(-2,-2), new Complex(2,2)), SIZE, SIZE, kernel),
+                           counts, ForkJoinPool.commonPool()).performTraditionalScan();
+        int[] countArray = counts.getCounts();
+        int[] rgb = new int[countArray.length];
+        Palette palette = new ClassicPalette();
+        int[] table = palette.buildTable(MAX_COUNT);
+        measure("color palette table", countArray.length, () ->
+        {
+            for (int i = 0; i < countArray.length; i++)
+                rgb[i] = table[countArray[i]];
+            sink += rgb[rgb.length/2];
+            return 0;
+        });
+        measure("color computed per pixel", countArray.length, () ->
+        {
+            for (int i = 0; i < countArray.length; i++)
+                rgb[i] = new java.awt.Color(palette.colorForCount(countArray[i])).getRGB();
+            sink += rgb[rgb.length/2];
+            return 0;
+        });
+    }
+
+    public void runAll()
+    {
+        System.out.println("Frames are "+SIZE+" x "+SIZE+", maxCount "+MAX_COUNT+", "+
+                           Runtime.getRuntime().availableProcessors()+" processors.");
+        List<Object[]> regions = new ArrayList<Object[]>();
+        regions.add(new Object[] {"interior", around("-0.2", "0", "0.1")});
+        regions.add(new Object[] {"boundary", around("-0.7435", "0.1314", "0.002")});
+        regions.add(new Object[] {"exterior", around("1.5", "1.5", "0.4")});
+        regions.add(new Object[] {"deep 1e-20", around("-0.743643887037158704752191506114774",
+                                                       "0.131825904205311970493132056385139", "1e-20")});
+        regions.add(new Object[] {"deep 1e-60", around("0.0", "1.0", "1e-60")});
+        for (Object[] region : regions)
+        {
+            measureKernel((String)region[0], (ComplexRange)region[1], true, false);
+            if (region[0].equals("interior"))
+                measureKernel((String)region[0], (ComplexRange)region[1], false, false);
+        }
+        measureKernel("default view", new ComplexRange(new Complex(-2,-2), new Complex(2,2)), true, true);
+        measureKernel("default view", new ComplexRange(new Complex(-2,-2), new Complex(2,2)), true, false);
+        measureFormulas();
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        for (int mode = 0; mode < FractalScanner.MODE_NAMES.length; mode++)
+        {
+            measureScan(mode, pool, false);
+            measureScan(mode, pool, true);
+        }
+        pool.shutdown();
+
+        measureColoring();
+    }
+
+    public static void main(String[] args)
+    {
+        System.setProperty("java.awt.headless", "true");
+        int warmup = 5, measured = 10;
+        long warmupMillis = 2000;
+        String filter = null;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("--quick"))
+            {
+                warmup = 2;
+                warmupMillis = 500;
+                measured = 3;
+            }
+            else if (args[i].equals("--filter") && i+1 < args.length)
+                filter = args[++i];
+        }
+        new RecursiveFractalBenchmark(warmup, warmupMillis, measured, filter).runAll();
+    }
+}
@@ -7,9 +7,18 @@ import java.awt.event.KeyEvent;
 public class RecursiveFractalFrame extends JFrame implements ActionListener
 {
     private RecursiveFractalPanel mainPanel;
-    private JMenuItem exportImageMI, resetMI, undoMI, redoMI;
-    private JMenuItem traditionalSM, pixelatedSM, divideAndConquerSM;
-    private String[] scanTypeNames = {"Traditional", "Pixelated", "Divide and Conquer"};
+    private JMenuItem exportImageMI, resetMI, undoMI, redoMI, snapToGridMI;
+    private JMenuItem traditionalSM, pixelatedSM, divideAndConquerSM, boundaryTraceSM, distanceGuidedSM,
+                      nearestFirstSM;
+    private JMenuItem mandelbrotFM, juliaFM, multibrotFM, burningShipFM;
+    private JMenuItem interiorChecksOM, periodicityChecksOM, floatPrecisionOM, laneBatchingOM, renderStatsOM,
+                      acceleratedBlitOM, tileCacheOM;
+    private JMenuItem raiseMaxCountOM, lowerMaxCountOM, setMaxCountOM, autoDeepenOM;
+    private String[] scanTypeNames = {"Traditional", "Pixelated", "Divide and Conquer", "Boundary Trace",
+                                      "Distance Guided", "Nearest First"};
+    private Palette[] palettes;
+    private JMenuItem[] paletteMIs;
+    private JMenuItem smoothColoringPM, equalizePM, cycleColorsPM;
     public RecursiveFractalFrame()
     {
         super("Mandelbrot");
@@ -29,10 +38,16 @@ public class RecursiveFractalFrame extends JFrame implements ActionListener
         JMenuBar mainMenu = new JMenuBar();
         JMenu fileMenu = new JMenu("File");
         JMenu navigateMenu = new JMenu("Navigate");
+        JMenu formulaMenu = new JMenu("Formula");
         JMenu scanMenu = new JMenu("Scan");
+        JMenu paletteMenu = new JMenu("Palette");
+        JMenu optionsMenu = new JMenu("Options");
         mainMenu.add(fileMenu);
         mainMenu.add(navigateMenu);
+        mainMenu.add(formulaMenu);
         mainMenu.add(scanMenu);
+        mainMenu.add(paletteMenu);
+        mainMenu.add(optionsMenu);
 
         exportImageMI = new JMenuItem("Export Image");
         exportImageMI.addActionListener(this);
@@ -56,6 +71,31 @@ public class RecursiveFractalFrame extends JFrame implements ActionListener
         redoMI.setEnabled(false);
         navigateMenu.add(redoMI);
 
+        snapToGridMI = new JMenuItem("Snap to Tile Grid");
+        snapToGridMI.addActionListener(this);
+        snapToGridMI.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_G, ActionEvent.META_MASK));
+        navigateMenu.add(snapToGridMI);
+
+        mandelbrotFM = new JCheckBoxMenuItem("Mandelbrot");
+        mandelbrotFM.setSelected(true);
+        mandelbrotFM.addActionListener(this);
+        formulaMenu.add(mandelbrotFM);
+
+        juliaFM = new JCheckBoxMenuItem("Julia Set...");
+        juliaFM.setSelected(false);
+        juliaFM.addActionListener(this);
+        formulaMenu.add(juliaFM);
+
+        multibrotFM = new JCheckBoxMenuItem("Multibrot...");
+        multibrotFM.setSelected(false);
+        multibrotFM.addActionListener(this);
+        formulaMenu.add(multibrotFM);
+
+        burningShipFM = new JCheckBoxMenuItem("Burning Ship");
+        burningShipFM.setSelected(false);
+        burningShipFM.addActionListener(this);
+        formulaMenu.add(burningShipFM);
+
         traditionalSM = new JCheckBoxMenuItem(scanTypeNames[0]);
         traditionalSM.setSelected(true);
         traditionalSM.addActionListener(this);
@@ -74,6 +114,104 @@ public class RecursiveFractalFrame extends JFrame implements ActionListener
         divideAndConquerSM.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_3, ActionEvent.META_MASK));
         scanMenu.add(divideAndConquerSM);
 
+        boundaryTraceSM = new JCheckBoxMenuItem(scanTypeNames[3]);
+        boundaryTraceSM.setSelected(false);
+        boundaryTraceSM.addActionListener(this);
+        boundaryTraceSM.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_4, ActionEvent.META_MASK));
+        scanMenu.add(boundaryTraceSM);
+
+        distanceGuidedSM = new JCheckBoxMenuItem(scanTypeNames[4]);
+        distanceGuidedSM.setSelected(false);
+        distanceGuidedSM.addActionListener(this);
+        distanceGuidedSM.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_5, ActionEvent.META_MASK));
+        scanMenu.add(distanceGuidedSM);
+
+        nearestFirstSM = new JCheckBoxMenuItem(scanTypeNames[5]);
+        nearestFirstSM.setSelected(false);
+        nearestFirstSM.addActionListener(this);
+        nearestFirstSM.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_6, ActionEvent.META_MASK));
+        scanMenu.add(nearestFirstSM);
+
+        palettes = Palette.getStandardPalettes();
+        paletteMIs = new JMenuItem[palettes.length];
+        for (int i = 0; i < palettes.length; i++)
+        {
+            paletteMIs[i] = new JCheckBoxMenuItem(palettes[i].getName());
+            paletteMIs[i].setSelected(i == 0);
+            paletteMIs[i].addActionListener(this);
+            paletteMenu.add(paletteMIs[i]);
+        }
+
+        paletteMenu.addSeparator();
+        smoothColoringPM = new JCheckBoxMenuItem("Smooth Coloring");
+        smoothColoringPM.setSelected(false);
+        smoothColoringPM.addActionListener(this);
+        paletteMenu.add(smoothColoringPM);
+
+        equalizePM = new JCheckBoxMenuItem("Equalize Histogram");
+        equalizePM.setSelected(false);
+        equalizePM.addActionListener(this);
+        paletteMenu.add(equalizePM);
+
+        cycleColorsPM = new JCheckBoxMenuItem("Cycle Colors");
+        cycleColorsPM.setSelected(false);
+        cycleColorsPM.addActionListener(this);
+        paletteMenu.add(cycleColorsPM);
+
+        interiorChecksOM = new JCheckBoxMenuItem("Cardioid/Bulb Checks");
+        interiorChecksOM.setSelected(true);
+        interiorChecksOM.addActionListener(this);
+        optionsMenu.add(interiorChecksOM);
+
+        periodicityChecksOM = new JCheckBoxMenuItem("Periodicity Checks");
+        periodicityChecksOM.setSelected(true);
+        periodicityChecksOM.addActionListener(this);
+        optionsMenu.add(periodicityChecksOM);
+
+        floatPrecisionOM = new JCheckBoxMenuItem("Use Floats When Zoomed Out");
+        floatPrecisionOM.setSelected(false);
+        floatPrecisionOM.addActionListener(this);
+        optionsMenu.add(floatPrecisionOM);
+
+        laneBatchingOM = new JCheckBoxMenuItem("Batch Pixels Into Lanes");
+        laneBatchingOM.setSelected(true);
+        laneBatchingOM.addActionListener(this);
+        optionsMenu.add(laneBatchingOM);
+
+        renderStatsOM = new JCheckBoxMenuItem("Show Render Stats");
+        renderStatsOM.setSelected(false);
+        renderStatsOM.addActionListener(this);
+        optionsMenu.add(renderStatsOM);
+
+        acceleratedBlitOM = new JCheckBoxMenuItem("Draw From Video Memory");
+        acceleratedBlitOM.setSelected(false);
+        acceleratedBlitOM.addActionListener(this);
+        optionsMenu.add(acceleratedBlitOM);
+
+        tileCacheOM = new JCheckBoxMenuItem("Cache Tiles On Disk");
+        tileCacheOM.setSelected(true);
+        tileCacheOM.addActionListener(this);
+        optionsMenu.add(tileCacheOM);
+
+        optionsMenu.addSeparator();
+        raiseMaxCountOM = new JMenuItem("Double Iteration Limit");
+        raiseMaxCountOM.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_CLOSE_BRACKET, ActionEvent.META_MASK));
+        raiseMaxCountOM.addActionListener(this);
+        optionsMenu.add(raiseMaxCountOM);
+
+        lowerMaxCountOM = new JMenuItem("Halve Iteration Limit");
+        lowerMaxCountOM.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_OPEN_BRACKET, ActionEvent.META_MASK));
+        lowerMaxCountOM.addActionListener(this);
+        optionsMenu.add(lowerMaxCountOM);
+
+        setMaxCountOM = new JMenuItem("Set Iteration Limit...");
+        setMaxCountOM.addActionListener(this);
+        optionsMenu.add(setMaxCountOM);
+
+        autoDeepenOM = new JCheckBoxMenuItem("Auto-Deepen");
+        autoDeepenOM.setSelected(false);
+        autoDeepenOM.addActionListener(this);
+        optionsMenu.add(autoDeepenOM);
 
         this.setJMenuBar(mainMenu);
 
@@ -82,6 +220,89 @@ public class RecursiveFractalFrame extends JFrame implements ActionListener
     public void setUndoMenuEnabled(boolean enable) {undoMI.setEnabled(enable);}
     public void setRedoMenuEnabled(boolean enable) {redoMI.setEnabled(enable);}
 
+    /**
+     * shows the current formula and iteration limit in the title bar.
+     * @param maxCount - the limit
+     */
+    public void showMaxCount(int maxCount)
+    {
+        String formula = mainPanel == null ? "Mandelbrot" : mainPanel.getKernel().getName();
+        setTitle(formula+" (max count "+maxCount+")");
+    }
+
+    /**
+     * asks for the c to use for the Julia set, and switches to it.
+     */
+    public void doJuliaSet()
+    {
+        Complex c = mainPanel.getJuliaC();
+        String answer = JOptionPane.showInputDialog(this, "c for the Julia set (real, imaginary):",
+                                                    c.getReal()+", "+c.getImaginary());
+        if (answer != null)
+        {
+            String[] parts = answer.split(",");
+            try
+            {
+                if (parts.length != 2)
+                    throw new NumberFormatException();
+                mainPanel.setJuliaC(new Complex(Double.parseDouble(parts[0].trim()),
+                                                Double.parseDouble(parts[1].trim())));
+            } catch (NumberFormatException e)
+            {
+                JOptionPane.showMessageDialog(this, "\""+answer+"\" isn't two numbers, like -0.8, 0.156.");
+            }
+        }
+        showFormula();
+    }
+
+    /**
+     * asks for the power to use for the Multibrot set, and switches to it.
+     */
+    public void doMultibrot()
+    {
+        String answer = JOptionPane.showInputDialog(this, "Power ("+MultibrotKernel.MIN_POWER+" to "+
+                                                    MultibrotKernel.MAX_POWER+"):", mainPanel.getMultibrotPower());
+        if (answer != null)
+        {
+            try
+            {
+                mainPanel.setMultibrotPower(Integer.parseInt(answer.trim()));
+            } catch (NumberFormatException e)
+            {
+                JOptionPane.showMessageDialog(this, "\""+answer+"\" isn't a whole number.");
+            }
+        }
+        showFormula();
+    }
+
+    /**
+     * checks the menu item for the formula being drawn (and only that one), and updates the title bar.
+     */
+    public void showFormula()
+    {
+        int formula = mainPanel.getFormula();
+        mandelbrotFM.setSelected(formula == RecursiveFractalPanel.FORMULA_MANDELBROT);
+        juliaFM.setSelected(formula == RecursiveFractalPanel.FORMULA_JULIA);
+        multibrotFM.setSelected(formula == RecursiveFractalPanel.FORMULA_MULTIBROT);
+        burningShipFM.setSelected(formula == RecursiveFractalPanel.FORMULA_BURNING_SHIP);
+        showMaxCount(mainPanel.getMaxCount());
+    }
+
+    public void doSetMaxCount()
+    {
+        String answer = JOptionPane.showInputDialog(this, "Iteration limit (1 to "+RecursiveFractalPanel.MAX_MAX_COUNT+"):",
+                                                    mainPanel.getMaxCount());
+        if (answer == null)
+            return;
+        try
+        {
+            mainPanel.setMaxCount(Integer.parseInt(answer.trim()));
+        } catch (NumberFormatException e)
+        {
+            JOptionPane.showMessageDialog(this, "\""+answer+"\" isn't a whole number.");
+        }
+    }
+
     public void doExportImage()
     {
         System.out.println("Doing Export.");
@@ -118,11 +339,30 @@ public class RecursiveFractalFrame extends JFrame implements ActionListener
             doUndo();
         if (e.getSource() == redoMI)
             doRedo();
+        if (e.getSource() == snapToGridMI)
+            mainPanel.performSnapToTileGrid();
+        if (e.getSource() == mandelbrotFM)
+        {
+            mainPanel.setFormula(RecursiveFractalPanel.FORMULA_MANDELBROT);
+            showFormula();
+        }
+        if (e.getSource() == juliaFM)
+            doJuliaSet();
+        if (e.getSource() == multibrotFM)
+            doMultibrot();
+        if (e.getSource() == burningShipFM)
+        {
+            mainPanel.setFormula(RecursiveFractalPanel.FORMULA_BURNING_SHIP);
+            showFormula();
+        }
         if (e.getSource() == traditionalSM)
         {
             traditionalSM.setSelected(true);
             pixelatedSM.setSelected(false);
             divideAndConquerSM.setSelected(false);
+            boundaryTraceSM.setSelected(false);
+            distanceGuidedSM.setSelected(false);
+            nearestFirstSM.setSelected(false);
             mainPanel.setScanMode(RecursiveFractalPanel.MODE_TRADITIONAL);
         }
         if (e.getSource() == pixelatedSM)
@@ -130,6 +370,9 @@ public class RecursiveFractalFrame extends JFrame implements ActionListener
             traditionalSM.setSelected(false);
             pixelatedSM.setSelected(true);
             divideAndConquerSM.setSelected(false);
+            boundaryTraceSM.setSelected(false);
+            distanceGuidedSM.setSelected(false);
+            nearestFirstSM.setSelected(false);
             mainPanel.setScanMode(RecursiveFractalPanel.MODE_PIXELATED);
         }
         if (e.getSource() == divideAndConquerSM)
@@ -137,8 +380,76 @@ public class RecursiveFractalFrame extends JFrame implements ActionListener
             traditionalSM.setSelected(false);
             pixelatedSM.setSelected(false);
             divideAndConquerSM.setSelected(true);
+            boundaryTraceSM.setSelected(false);
+            distanceGuidedSM.setSelected(false);
+            nearestFirstSM.setSelected(false);
             mainPanel.setScanMode(RecursiveFractalPanel.MODE_DIVIDE_AND_CONQUER);
         }
+        if (e.getSource() == boundaryTraceSM)
+        {
+            traditionalSM.setSelected(false);
+            pixelatedSM.setSelected(false);
+            divideAndConquerSM.setSelected(false);
+            boundaryTraceSM.setSelected(true);
+            distanceGuidedSM.setSelected(false);
+            nearestFirstSM.setSelected(false);
+            mainPanel.setScanMode(RecursiveFractalPanel.MODE_BOUNDARY_TRACE);
+        }
+        if (e.getSource() == distanceGuidedSM)
+        {
+            traditionalSM.setSelected(false);
+            pixelatedSM.setSelected(false);
+            divideAndConquerSM.setSelected(false);
+            boundaryTraceSM.setSelected(false);
+            distanceGuidedSM.setSelected(true);
+            nearestFirstSM.setSelected(false);
+            mainPanel.setScanMode(RecursiveFractalPanel.MODE_DISTANCE_GUIDED);
+        }
+        if (e.getSource() == nearestFirstSM)
+        {
+            traditionalSM.setSelected(false);
+            pixelatedSM.setSelected(false);
+            divideAndConquerSM.setSelected(false);
+            boundaryTraceSM.setSelected(false);
+            distanceGuidedSM.setSelected(false);
+            nearestFirstSM.setSelected(true);
+            mainPanel.setScanMode(RecursiveFractalPanel.MODE_NEAREST_FIRST);
+        }
+        if (e.getSource() == interiorChecksOM)
+            mainPanel.setInteriorChecksEnabled(interiorChecksOM.isSelected());
+        if (e.getSource() == periodicityChecksOM)
+            mainPanel.setPeriodicityChecksEnabled(periodicityChecksOM.isSelected());
+        if (e.getSource() == floatPrecisionOM)
+            mainPanel.setFloatPrecisionEnabled(floatPrecisionOM.isSelected());
+        if (e.getSource() == laneBatchingOM)
+            mainPanel.setLaneBatchingEnabled(laneBatchingOM.isSelected());
+        if (e.getSource() == renderStatsOM)
+            mainPanel.setMetricsOverlayVisible(renderStatsOM.isSelected());
+        if (e.getSource() == acceleratedBlitOM)
+            mainPanel.setAcceleratedBlitEnabled(acceleratedBlitOM.isSelected());
+        if (e.getSource() == tileCacheOM)
+            mainPanel.setTileCacheEnabled(tileCacheOM.isSelected());
+        if (e.getSource() == smoothColoringPM)
+            mainPanel.setSmoothColoringEnabled(smoothColoringPM.isSelected());
+        if (e.getSource() == equalizePM)
+            mainPanel.setEqualizationEnabled(equalizePM.isSelected());
+        if (e.getSource() == cycleColorsPM)
+            mainPanel.setColorCyclingEnabled(cycleColorsPM.isSelected());
+        if (e.getSource() == raiseMaxCountOM)
+            mainPanel.setMaxCount(2*mainPanel.getMaxCount());
+        if (e.getSource() == lowerMaxCountOM)
+            mainPanel.setMaxCount(mainPanel.getMaxCount()/2);
+        if (e.getSource() == setMaxCountOM)
+            doSetMaxCount();
+        if (e.getSource() == autoDeepenOM)
+            mainPanel.setAutoDeepenEnabled(autoDeepenOM.isSelected());
+        for (int i = 0; i < paletteMIs.length; i++)
+            if (e.getSource() == paletteMIs[i])
+            {
+                for (int j = 0; j < paletteMIs.length; j++)
+                    paletteMIs[j].setSelected(i == j);
+                mainPanel.setPalette(palettes[i]);
+            }
 
 
     }
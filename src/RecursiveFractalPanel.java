@@ -4,26 +4,95 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.VolatileImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
 
 public class RecursiveFractalPanel extends JPanel implements ComponentListener, MouseListener, MouseMotionListener
 {
-    private BufferedImage image;
-    private boolean needsRefresh, shouldInterrupt;
+    private volatile BufferedImage image; // the picture on screen; each render job draws into an image of its own.
+    // anything that changes the picture asks for a new render by bumping requestedGeneration; the render thread
+    // waits on renderLock until it sees a generation it hasn't started yet.
+    private final Object renderLock = new Object();
+    private long requestedGeneration, startedGeneration; // guarded by renderLock.
+    private boolean recolorRequested; // guarded by renderLock.
+    private volatile RenderJob currentJob; // the render in progress (or just finished), if any.
     private double minMathX, minMathY, maxMathX, maxMathY;
-    private final double thresholdSquared = 10;
-    private final int maxCount = 1024;
+    private volatile ComplexRange mathBounds; // the same bounds as minMathX, etc., but at full precision, for deep zooms.
+    private volatile FractalView view; // the bounds, size and kernel of the frame being drawn.
+    private volatile EscapeCountBuffer countBuffer; // the escape counts for the frame being drawn.
+    private volatile boolean countsFinished; // whether countBuffer has all of its frame's counts yet.
+    private volatile FrameReprojection reprojection; // counts carried over from the last frame, if any.
+    private FractalView lastFinishedView; // the most recent frame to be completed, and its counts.
+    private EscapeCountBuffer lastFinishedCounts;
+    private int lastFinishedScanMode; // the scan that frame was drawn with.
+    private IterationState lastFinishedState; // where that frame's pixels got to, if it was in double precision.
+    private final FrameCache frameCache = new FrameCache(Math.min(256L<<20, Runtime.getRuntime().maxMemory()/4));
+    // tiles of counts saved on disk, for frames on its grid, shared with later sessions; null if it couldn't be opened.
+    private final TileCache tileCache = openTileCache();
+    private volatile boolean tileCacheEnabled = true;
+    private final RenderMetrics metrics = new RenderMetrics(); // how the rendering is going, also visible through JMX.
+    private boolean metricsOverlayVisible = false;
+    private volatile boolean floatPrecisionEnabled = false; // whether FractalView may use floats when zoomed out.
+    private volatile boolean laneBatchingEnabled = true; // whether the scans hand the kernel whole lines of pixels.
+    private final double thresholdSquared = MandelbrotKernel.DEFAULT_THRESHOLD_SQUARED;
+    private volatile int maxCount = DEFAULT_MAX_COUNT;
+    private volatile boolean autoDeepenEnabled = false; // whether to keep raising maxCount while the edge is changing.
+    private volatile int formula = FORMULA_MANDELBROT;
+    private volatile double juliaR = DEFAULT_JULIA_R, juliaI = DEFAULT_JULIA_I; // c, for the Julia set.
+    private volatile int multibrotPower = DEFAULT_MULTIBROT_POWER;
+    private volatile boolean interiorChecksEnabled = true, periodicityChecksEnabled = true;
+    private volatile FractalKernel kernel = makeKernel();
+    private volatile Palette palette;
+    private volatile ColorMapping coloring; // how counts become colors: the palette's table, cycling, etc.
+    private Timer cycleTimer; // steps the color cycling along, while it is on.
+    // the render workers mark the blocks they draw here, rather than repainting them one by one (see FramePacer).
+    private final FramePacer pacer = new FramePacer(this, FramePacer.DEFAULT_FRAMES_PER_SECOND, this::markStale);
+    private volatile boolean acceleratedBlitEnabled = false; // whether to draw from a copy of image in video memory.
+    // that copy, the image it is a copy of, and the part of it that is out of date. (Only touched on the event thread.)
+    private VolatileImage screenCopy;
+    private BufferedImage screenCopySource;
+    private Rectangle staleRegion;
     private int startCornerX, startCornerY, endCornerX, endCornerY;
+    // where the mouse is, for the nearest-first scan to start from; null when it isn't over the panel, or hasn't
+    // moved since the last zoom (which puts what it zoomed in on in the middle).
+    private volatile Point cursor;
     private Stack<ComplexRange> undoStack, redoStack;
     private RecursiveFractalFrame parent;
     private File lastFile = null;
-    private int scanMode;
+    private volatile int scanMode;
 
-    public static final int MODE_TRADITIONAL = 0;
-    public static final int MODE_PIXELATED = 1;
-    public static final int MODE_DIVIDE_AND_CONQUER = 2;
+    public static final int MODE_TRADITIONAL = FractalScanner.MODE_TRADITIONAL;
+    public static final int MODE_PIXELATED = FractalScanner.MODE_PIXELATED;
+    public static final int MODE_DIVIDE_AND_CONQUER = FractalScanner.MODE_DIVIDE_AND_CONQUER;
+    public static final int MODE_BOUNDARY_TRACE = FractalScanner.MODE_BOUNDARY_TRACE;
+    public static final int MODE_DISTANCE_GUIDED = FractalScanner.MODE_DISTANCE_GUIDED;
+    public static final int MODE_NEAREST_FIRST = FractalScanner.MODE_NEAREST_FIRST;
+
+    // which formula to draw. (see FractalKernel)
+    public static final int FORMULA_MANDELBROT = 0;
+    public static final int FORMULA_JULIA = 1;
+    public static final int FORMULA_MULTIBROT = 2;
+    public static final int FORMULA_BURNING_SHIP = 3;
+    // a Julia set with a lot going on in it, to start with.
+    public static final double DEFAULT_JULIA_R = -0.8;
+    public static final double DEFAULT_JULIA_I = 0.156;
+    public static final int DEFAULT_MULTIBROT_POWER = 3;
+
+    public static final int DEFAULT_MAX_COUNT = 1024;
+    // the iteration limit can't go above this, by hand or by auto-deepening. (The palette table alone is 4 bytes
+    // per count.)
+    public static final int MAX_MAX_COUNT = 1 << 20;
+    // auto-deepening keeps doubling maxCount while at least one pixel in this many escapes in the top half of the
+    // counts - that is, while raising the limit is still turning up more of the edge of the set.
+    private static final int AUTO_DEEPEN_PIXELS_PER_LATE_ESCAPE = 10000;
+    // color cycling moves the colors this many counts along the palette, this many times a second.
+    private static final int CYCLE_STEP = 2;
+    private static final int CYCLE_STEPS_PER_SECOND = 30;
 
     public RecursiveFractalPanel(RecursiveFractalFrame parent)
     {
@@ -34,6 +103,15 @@ public class RecursiveFractalPanel extends JPanel implements ComponentListener,
         this.addComponentListener(this);
         this.addMouseListener(this);
         this.addMouseMotionListener(this);
+        metrics.register();
+        palette = new ClassicPalette();
+        coloring = new ColorMapping(palette.buildTable(maxCount));
+        cycleTimer = new Timer(1000/CYCLE_STEPS_PER_SECOND, e ->
+        {
+            coloring = coloring.withCycleOffset(coloring.getCycleOffset() + CYCLE_STEP);
+            requestRecolor();
+        });
+        mathBounds = new ComplexRange(new Complex(0,0), new Complex(0,0));
         MandelbrotThread mt = new MandelbrotThread();
         mt.start();
         performReset();
@@ -45,10 +123,12 @@ public class RecursiveFractalPanel extends JPanel implements ComponentListener,
     public void paintComponent(Graphics g)
     {
         super.paintComponent(g);
-        synchronized (image)
-        {
-            g.drawImage(image,0,0,null);
-        }
+        BufferedImage showing = image;
+        if (!acceleratedBlitEnabled || !drawAccelerated(g, showing))
+            synchronized (showing)
+            {
+                g.drawImage(showing,0,0,null);
+            }
         // draw selection rectangle, if you are dragging.
         if (startCornerX != -1 && startCornerY != -1)
         {
@@ -60,14 +140,210 @@ public class RecursiveFractalPanel extends JPanel implements ComponentListener,
                        Math.abs(endCornerX-startCornerX),
                        Math.abs(endCornerY-startCornerY));
         }
+        if (metricsOverlayVisible)
+            drawMetricsOverlay(g);
+    }
+
+    /**
+     * draws the picture from a copy of it kept in video memory (a VolatileImage), after bringing just the parts that
+     * have changed since last time up to date. Java2D can't keep a copy of image in video memory itself, since we write
+     * straight into its pixels, so otherwise every repaint - even just for the drag rectangle - sends the whole thing
+     * over to the graphics card again, with image locked while it does.
+     * @param g - where to draw it
+     * @param showing - the picture on screen
+     * @return false if we couldn't get (or keep hold of) any video memory, in which case nothing has been drawn.
+     */
+    private boolean drawAccelerated(Graphics g, BufferedImage showing)
+    {
+        int width = showing.getWidth(), height = showing.getHeight();
+        // the contents of a VolatileImage can be lost at any time (when the screen mode changes, say), so have one more
+        // go if they vanish while we're using it.
+        for (int attempt = 0; attempt < 2; attempt++)
+        {
+            if (screenCopy == null || screenCopy.getWidth() != width || screenCopy.getHeight() != height)
+            {
+                screenCopy = createVolatileImage(width, height); // (null if we're not on screen.)
+                if (screenCopy == null)
+                    return false;
+                screenCopySource = null;
+            }
+            int status = screenCopy.validate(getGraphicsConfiguration());
+            if (status == VolatileImage.IMAGE_INCOMPATIBLE)
+            {
+                screenCopy = null; // (moved to a different screen; make a new one.)
+                continue;
+            }
+            if (status == VolatileImage.IMAGE_RESTORED || screenCopySource != showing)
+            {
+                staleRegion = new Rectangle(0, 0, width, height);
+                screenCopySource = showing;
+            }
+            if (staleRegion != null)
+            {
+                Rectangle copy = staleRegion.intersection(new Rectangle(0, 0, width, height));
+                staleRegion = null;
+                if (!copy.isEmpty())
+                {
+                    Graphics2D gCopy = screenCopy.createGraphics();
+                    synchronized (showing)
+                    {
+                        gCopy.drawImage(showing, copy.x, copy.y, copy.x + copy.width, copy.y + copy.height,
+                                        copy.x, copy.y, copy.x + copy.width, copy.y + copy.height, null);
+                    }
+                    gCopy.dispose();
+                }
+            }
+            g.drawImage(screenCopy, 0, 0, null);
+            if (!screenCopy.contentsLost())
+                return true;
+            screenCopySource = null; // (so that it is all copied again.)
+        }
+        return false;
+    }
+
+    /**
+     * notes that part of image has changed, so the copy in video memory needs that part copying again. The pacer calls
+     * this just before it repaints the part.
+     * @param changed - the part that changed
+     */
+    private void markStale(Rectangle changed)
+    {
+        if (staleRegion == null)
+            staleRegion = new Rectangle(changed);
+        else
+            staleRegion.add(changed);
+    }
+
+    /**
+     * turns drawing from a copy of the picture in video memory on or off (see drawAccelerated()). It looks the same
+     * either way; it only changes how fast repaints are, and how long they keep image locked.
+     * @param enable - whether to draw from video memory, when we can
+     */
+    public void setAcceleratedBlitEnabled(boolean enable)
+    {
+        acceleratedBlitEnabled = enable;
+        SwingUtilities.invokeLater(() ->
+        {
+            if (screenCopy != null)
+                screenCopy.flush();
+            screenCopy = null;
+            repaint();
+        });
+    }
+
+    /**
+     * draws the numbers for the last frame in a box at the top left of the panel.
+     */
+    private void drawMetricsOverlay(Graphics g)
+    {
+        String[] lines = metrics.getSummaryLines();
+        FontMetrics fm = g.getFontMetrics();
+        int boxWidth = 0;
+        for (String line : lines)
+            boxWidth = Math.max(boxWidth, fm.stringWidth(line));
+        g.setColor(new Color(0, 0, 0, 160));
+        g.fillRect(4, 4, boxWidth+8, lines.length*fm.getHeight()+8);
+        g.setColor(Color.WHITE);
+        for (int i = 0; i < lines.length; i++)
+            g.drawString(lines[i], 8, 8 + fm.getAscent() + i*fm.getHeight());
+    }
+
+    /**
+     * shows or hides the render numbers in the corner of the panel.
+     * @param visible - whether to show them
+     */
+    public void setMetricsOverlayVisible(boolean visible)
+    {
+        metricsOverlayVisible = visible;
+        repaint();
+    }
+
+    public RenderMetrics getMetrics() {return metrics;}
+
+    /**
+     * @return the tile cache in its usual folder, or null if it can't be opened (in which case we do without it).
+     */
+    private static TileCache openTileCache()
+    {
+        try
+        {
+            return new TileCache(TileCache.getDefaultDirectory(), TileCache.DEFAULT_MAX_BYTES);
+        }catch(IOException ioExp)
+        {
+            System.out.println("Problem opening the tile cache; carrying on without it.");
+            ioExp.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * turns reading and saving tiles of counts on disk on or off (see TileCache). It doesn't change the picture,
+     * only how much of it has to be calculated.
+     * @param enable - whether to use the tile cache
+     */
+    public void setTileCacheEnabled(boolean enable)
+    {
+        tileCacheEnabled = enable;
+    }
+
+    /**
+     * asks for the fractal to be drawn again, since something about it has changed. The render in progress (if any)
+     * is cancelled, and the render thread starts on the new one straight away.
+     */
+    public void requestRender()
+    {
+        synchronized (renderLock)
+        {
+            requestedGeneration++;
+            RenderJob running = currentJob;
+            if (running != null && !running.isCancelled())
+            {
+                metrics.interruptRequested();
+                running.cancel();
+            }
+            renderLock.notifyAll();
+        }
+    }
+
+    /**
+     * asks for the frame on screen to be colored in again from its counts, since the colors have changed. Unlike
+     * requestRender(), this doesn't cancel anything: if a render is in progress, it picks up the new colors for the
+     * rest of its blocks, and the whole frame is recolored once it is done.
+     */
+    public void requestRecolor()
+    {
+        synchronized (renderLock)
+        {
+            recolorRequested = true;
+            renderLock.notifyAll();
+        }
+    }
+
+    /**
+     * waits until a render (or recolor) has been asked for that we haven't started yet, and hands out the job for it.
+     * (Several requests that arrive while we are busy are drawn as just one job, for the latest of them. A render
+     * covers any recoloring asked for before it, since it colors everything in with the latest colors anyway.)
+     * @return the job for the newest request.
+     */
+    private RenderJob waitForNextJob() throws InterruptedException
+    {
+        synchronized (renderLock)
+        {
+            while (requestedGeneration == startedGeneration && !recolorRequested)
+                renderLock.wait();
+            recolorRequested = false;
+            boolean recolorOnly = requestedGeneration == startedGeneration;
+            startedGeneration = requestedGeneration;
+            currentJob = new RenderJob(startedGeneration, recolorOnly);
+            return currentJob;
+        }
     }
 
     public void setScanMode(int scanMode)
     {
         this.scanMode = scanMode;
         image = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB);
-        shouldInterrupt = true;
-        needsRefresh = true;
+        requestRender();
         repaint();
     }
 
@@ -100,47 +376,268 @@ public class RecursiveFractalPanel extends JPanel implements ComponentListener,
         return minMathY + frac*(maxMathY-minMathY);
     }
 
+    /**
+     * switches to a different palette, rebuilding the color lookup table and recoloring the fractal with it. (Nothing
+     * needs calculating again.)
+     * @param palette - the new palette
+     */
+    public void setPalette(Palette palette)
+    {
+        this.palette = palette;
+        coloring = coloring.withPaletteTable(palette.buildTable(maxCount));
+        requestRecolor();
+    }
+
+    public Palette getPalette() {return palette;}
+
+    /**
+     * turns smooth coloring on or off (see ColorMapping). The smooth-coloring fractions have to be worked out along
+     * with the counts, so turning this on draws the frame again; they come from the double precision kernel, so
+     * while this is on we don't use floats when zoomed out. (Deeper zooms, past double precision, stay banded.)
+     * @param enable - whether to blend between the colors of neighboring counts
+     */
+    public void setSmoothColoringEnabled(boolean enable)
+    {
+        coloring = coloring.withSmoothing(enable);
+        requestRender();
+    }
+
+    /**
+     * turns histogram equalization on or off (see ColorMapping), recoloring the fractal.
+     * @param enable - whether to spread the palette evenly over the pixels, rather than over the counts
+     */
+    public void setEqualizationEnabled(boolean enable)
+    {
+        coloring = coloring.withEqualization(enable);
+        requestRecolor();
+    }
+
+    /**
+     * starts or stops the colors flowing through the picture.
+     * @param enable - whether to cycle the colors
+     */
+    public void setColorCyclingEnabled(boolean enable)
+    {
+        if (enable)
+            cycleTimer.start();
+        else
+            cycleTimer.stop();
+    }
+
+    /**
+     * turns the cardioid/bulb interior checks on or off. This doesn't change the picture, only how fast the
+     * interior of the set is drawn, so it is handy for comparing speeds.
+     * @param enable - whether the kernel should use the interior checks
+     */
+    public void setInteriorChecksEnabled(boolean enable)
+    {
+        interiorChecksEnabled = enable;
+        kernel = makeKernel();
+        requestRender();
+    }
+
+    /**
+     * lets the renderer use single precision (floats) when zoomed well out, or stops it from doing so. Floats are
+     * quicker, but a few pixels along the edge of the set come out differently, so this is off to begin with.
+     * @param enable - whether floats may be used
+     */
+    public void setFloatPrecisionEnabled(boolean enable)
+    {
+        floatPrecisionEnabled = enable;
+        requestRender();
+    }
+
+    /**
+     * switches between handing the kernel whole lines of pixels to work on side by side, and giving it one pixel at
+     * a time. Like the interior checks, this only changes the speed.
+     * @param enable - whether the scans should batch up their pixels
+     */
+    public void setLaneBatchingEnabled(boolean enable)
+    {
+        laneBatchingEnabled = enable;
+        requestRender();
+    }
+
+    /**
+     * changes the iteration limit (the highest count a point can have before we decide it is in the set). Raising
+     * it doesn't start the frame over: pixels that already escaped keep their counts, and the ones that ran out of
+     * steps carry on from where they stopped (see IterationState).
+     * Call this from the event dispatch thread, like the other setters.
+     * @param count - the new limit; this is kept between 1 and MAX_MAX_COUNT.
+     */
+    public void setMaxCount(int count)
+    {
+        count = Math.max(1, Math.min(count, MAX_MAX_COUNT));
+        maxCount = count;
+        coloring = coloring.withPaletteTable(palette.buildTable(count));
+        kernel = makeKernel();
+        parent.showMaxCount(count);
+        requestRender();
+    }
+
+    public int getMaxCount() {return maxCount;}
+
+    /**
+     * turns auto-deepening on or off: while it is on, whenever a frame finishes with more than a few of its pixels
+     * escaping near the limit, we double maxCount and carry on, until the edge of the set stops changing (or we
+     * reach MAX_MAX_COUNT).
+     * @param enable - whether to auto-deepen
+     */
+    public void setAutoDeepenEnabled(boolean enable)
+    {
+        autoDeepenEnabled = enable;
+        requestRender();
+    }
+
+    /**
+     * turns the periodicity (cycle) checks on or off. Like the interior checks, this only changes the speed.
+     * @param enable - whether the kernel should use the periodicity checks
+     */
+    public void setPeriodicityChecksEnabled(boolean enable)
+    {
+        periodicityChecksEnabled = enable;
+        kernel = makeKernel();
+        requestRender();
+    }
+
+    /**
+     * switches to drawing the given formula. The bounds stay where they are; the frames of each formula are
+     * cached separately, so switching back is quick.
+     * @param whichFormula - one of the FORMULA_ constants
+     */
+    public void setFormula(int whichFormula)
+    {
+        formula = whichFormula;
+        kernel = makeKernel();
+        requestRender();
+    }
+
+    public int getFormula() {return formula;}
+    public FractalKernel getKernel() {return kernel;}
+
+    /**
+     * picks the c for the Julia set (and switches to drawing the Julia set).
+     * @param c - the c to use
+     */
+    public void setJuliaC(Complex c)
+    {
+        juliaR = c.getReal();
+        juliaI = c.getImaginary();
+        setFormula(FORMULA_JULIA);
+    }
+
+    public Complex getJuliaC() {return new Complex(juliaR, juliaI);}
+
+    /**
+     * picks the power for the Multibrot set (and switches to drawing it).
+     * @param power - from MultibrotKernel.MIN_POWER to MultibrotKernel.MAX_POWER
+     */
+    public void setMultibrotPower(int power)
+    {
+        multibrotPower = Math.max(MultibrotKernel.MIN_POWER, Math.min(power, MultibrotKernel.MAX_POWER));
+        setFormula(FORMULA_MULTIBROT);
+    }
+
+    public int getMultibrotPower() {return multibrotPower;}
+
+    /**
+     * @return a kernel for the current formula, with the current maxCount and checks.
+     */
+    private FractalKernel makeKernel()
+    {
+        switch (formula)
+        {
+            case FORMULA_JULIA:
+                return new JuliaKernel(maxCount, thresholdSquared, periodicityChecksEnabled, juliaR, juliaI);
+            case FORMULA_MULTIBROT:
+                return new MultibrotKernel(maxCount, thresholdSquared, periodicityChecksEnabled, multibrotPower);
+            case FORMULA_BURNING_SHIP:
+                return new BurningShipKernel(maxCount, thresholdSquared, periodicityChecksEnabled);
+            case FORMULA_MANDELBROT:
+            default:
+                return new MandelbrotKernel(maxCount, thresholdSquared, interiorChecksEnabled,
+                                            periodicityChecksEnabled);
+        }
+    }
+
     /**
      * given a positive integer, returns a Color object that is (most likely) similar to the colors
      * that would be returned for count-1 and count+1. This count should always produce the same color,
      * but occasional jumps are acceptable.
      * If count is zero, though, return black.
+     * (The scans use count2RGB(), which doesn't need to make a Color object.)
      * @param count - the number we are converting into a Color
      * @return - the color for this count.
      */
     public Color count2Color(int count)
     {
-        if (count == 0)
-            return Color.BLACK;
-        int c1 = 5*count;
-        int c2 = count/8;
-        return new Color((1-(count/256)%2)*(255-count%256)+(count/256)%2*(count%256),
-                         (1-(c1/256)%2)*(c1%256)+(c1/256)%2*(255-c1%256),
-                         (1-(c2/256)%2)*(c2%256)+(c2/256)%2*(255-c1%256));
+        return new Color(count2RGB(count));
+    }
+
+    /**
+     * looks up the color for the given count in the current palette's table (cycled, if the colors are cycling).
+     * @param count - the number we are converting into a color, from 0 to maxCount
+     * @return - the packed RGB color for this count.
+     */
+    public int count2RGB(int count)
+    {
+        return coloring.colorForCount(count);
     }
 
     /**
      * Starting with z = (0 + 0i), applies the function z -> z^2 + c over and over again until either
      * a) the magnitude of z exceeds the threshold, in which case we return the count of steps it took, or
      * b) the number of steps we've taken reaches max_count, in which case we return zero.
+     * (That's for the Mandelbrot set; the other formulas step z their own way - see FractalKernel.)
      * @param c - a complex number we wish to calculate this for.
      * @return - the number of steps that it took for z to exceed the threshold distance from the origin,
      * or zero, if the number of steps reached max_steps.
      */
     public int countStepsToExit(Complex c)
     {
-        Complex z = Complex.zero();
-        for (int count = 0; count < maxCount; count++)
-        {
-            z = z.squared().plus(c);
-            if (z.magnitude_squared()> thresholdSquared)
-                return count;
-        }
-        return 0;
+        return kernel.countStepsToExit(c.getReal(), c.getImaginary());
+    }
+
+    /**
+     * finds the escape count for the point on the complex plane that corresponds to the given pixel in the frame
+     * being drawn, without creating any Complex objects along the way (except for deep zooms, which need a reference
+     * orbit now and then). Pixels that sit exactly on a pixel of the previous frame reuse its count.
+     * @param x - the x coordinate of the pixel
+     * @param y - the y coordinate of the pixel
+     * @return the number of steps it took for this pixel's point to escape, or zero if it never did.
+     */
+    public int getCountForPixel(int x, int y)
+    {
+        FrameReprojection carriedOver = reprojection;
+        if (carriedOver != null && carriedOver.isExact(x, y))
+            return carriedOver.getCount(x, y);
+        return getView().countAt(x, y);
+    }
+
+    /**
+     * @return the view for the frame being drawn, making one for the current bounds and size if we haven't yet.
+     */
+    public FractalView getView()
+    {
+        if (view == null)
+            view = new FractalView(mathBounds, getWidth(), getHeight(), kernel, floatPrecisionEnabled);
+        return view;
     }
 
     /**
-     * convenience function that combines countStepsToExit() with count2Color() to find the color
+     * convenience function that combines getCountForPixel() with count2RGB() to find the packed color
+     * desired for a given pixel.
+     * @param x - the x coordinate of the pixel
+     * @param y - the y coordinate of the pixel
+     * @return the packed RGB color that should be drawn at that pixel.
+     */
+    public int getRGBForPixel(int x, int y)
+    {
+        return count2RGB(getCountForPixel(x, y));
+    }
+
+    /**
+     * convenience function that combines getCountForPixel() with count2Color() to find the color
      * desired for a given pixel.
      * @param x - the x coordinate of the pixel
      * @param y - the y coordinat of the pixel
@@ -148,30 +645,64 @@ public class RecursiveFractalPanel extends JPanel implements ComponentListener,
      */
     public Color getColorForPixel(int x, int y)
     {
-        return count2Color(countStepsToExit(new Complex(pixelX2MathX(x),pixelY2MathY(y))));
+        return count2Color(getCountForPixel(x, y));
     }
 
     public void performReset()
     {
         if (minMathX == -2 && minMathY == -2 && maxMathX == 2 && maxMathY == 2)
             return;
-        undoStack.push(new ComplexRange(new Complex(minMathX, minMathY), new Complex(maxMathX, maxMathY)));
+        undoStack.push(mathBounds);
         parent.setUndoMenuEnabled(true);
         setMathBounds(new Complex(-2,-2), new Complex(+2, +2));
         redoStack.clear();
         parent.setRedoMenuEnabled(false);
     }
 
+    /**
+     * moves to the nearest view on the tile cache's grid (see TileCache.snap()), so that the frame can be saved in,
+     * and drawn from, the tiles on disk. Like a zoom, this can be undone.
+     */
+    public void performSnapToTileGrid()
+    {
+        ComplexRange snapped = TileCache.snap(mathBounds, getWidth(), getHeight());
+        if (snapped.equals(mathBounds))
+            return;
+        undoStack.push(mathBounds);
+        parent.setUndoMenuEnabled(true);
+        setMathBounds(snapped);
+        redoStack.clear();
+        parent.setRedoMenuEnabled(false);
+    }
+
     public void setMathBounds(Complex cMin, Complex cMax)
     {
-        shouldInterrupt=true;
-        minMathX = Math.min(cMin.getReal(),cMax.getReal());
-        minMathY = Math.min(cMin.getImaginary(), cMax.getImaginary());
-        maxMathX = Math.max(cMin.getReal(),cMax.getReal());
-        maxMathY = Math.max(cMin.getImaginary(), cMax.getImaginary());
-        needsRefresh = true;
+        setMathBounds(new ComplexRange(cMin, cMax));
     }
 
+    /**
+     * changes the part of the complex plane we are showing, keeping the bounds to full precision. The corners of
+     * the range may be any two opposite corners; we sort out which is which.
+     * @param range - the new bounds.
+     */
+    public void setMathBounds(ComplexRange range)
+    {
+        BigComplex a = range.getPreciseMin();
+        BigComplex b = range.getPreciseMax();
+        mathBounds = new ComplexRange(new BigComplex(a.getReal().min(b.getReal()), a.getImaginary().min(b.getImaginary())),
+                                      new BigComplex(a.getReal().max(b.getReal()), a.getImaginary().max(b.getImaginary())));
+        minMathX = mathBounds.getMin().getReal();
+        minMathY = mathBounds.getMin().getImaginary();
+        maxMathX = mathBounds.getMax().getReal();
+        maxMathY = mathBounds.getMax().getImaginary();
+        requestRender();
+    }
+
+    /**
+     * @return the part of the complex plane we are showing, to full precision.
+     */
+    public ComplexRange getMathBounds() {return mathBounds;}
+
     /**
      * reverts to last recorded ComplexRange, if any, and (if so) adds the current (pre-change) range to redoStack.
      * @return whether there are any undo items remaining.
@@ -180,11 +711,11 @@ public class RecursiveFractalPanel extends JPanel implements ComponentListener,
     {
         if (undoStack.empty())
             return;
-        ComplexRange presentRange = new ComplexRange(new Complex(minMathX,minMathY), new Complex(maxMathX, maxMathY));
+        ComplexRange presentRange = mathBounds;
         redoStack.push(presentRange);
         parent.setRedoMenuEnabled(true);
         ComplexRange lastRange = undoStack.pop();
-        setMathBounds(lastRange.getMin(), lastRange.getMax());
+        setMathBounds(lastRange);
         parent.setUndoMenuEnabled(!undoStack.empty());
     }
 
@@ -196,11 +727,11 @@ public class RecursiveFractalPanel extends JPanel implements ComponentListener,
     {
         if (redoStack.empty())
             return;
-        ComplexRange presentRange = new ComplexRange(new Complex(minMathX,minMathY), new Complex(maxMathX, maxMathY));
+        ComplexRange presentRange = mathBounds;
         undoStack.push(presentRange);
         parent.setUndoMenuEnabled(true);
         ComplexRange lastRange = redoStack.pop();
-        setMathBounds(lastRange.getMin(), lastRange.getMax());
+        setMathBounds(lastRange);
         parent.setRedoMenuEnabled(!redoStack.empty());
     }
 
@@ -215,17 +746,22 @@ public class RecursiveFractalPanel extends JPanel implements ComponentListener,
     {
         if (startCornerX!=endCornerX && startCornerY!=endCornerY)
         {
-            undoStack.push(new ComplexRange(new Complex(minMathX, minMathY), new Complex(maxMathX, maxMathY)));
+            // the corners are worked out to full precision, so that we can keep zooming past what a double holds.
+            FractalView currentView = new FractalView(mathBounds, getWidth(), getHeight(), kernel, floatPrecisionEnabled);
+            double newPitch = currentView.getPixelPitch() * Math.min((double)Math.abs(endCornerX-startCornerX)/getWidth(),
+                                                                     (double)Math.abs(endCornerY-startCornerY)/getHeight());
+            if (newPitch < FractalView.MIN_PIXEL_PITCH)
+            {
+                System.out.println("Can't zoom in any further.");
+                return;
+            }
+            undoStack.push(mathBounds);
             parent.setUndoMenuEnabled(true);
 
-            Complex c1 = new Complex(pixelX2MathX(startCornerX),pixelY2MathY(startCornerY));
-            Complex c2 = new Complex(pixelX2MathX(endCornerX),pixelY2MathY(endCornerY));
-            setMathBounds(c1,c2);
-
-            // since we've changed the bounds, we need to stop the scan in progress (if any) and
-            // start over.
-            shouldInterrupt = true;
-            needsRefresh = true;
+            BigComplex c1 = currentView.pixel2PreciseMath(startCornerX, startCornerY);
+            BigComplex c2 = currentView.pixel2PreciseMath(endCornerX, endCornerY);
+            // since we're changing the bounds, this stops the scan in progress (if any) and starts over.
+            setMathBounds(new ComplexRange(c1,c2));
             redoStack.clear();
             parent.setRedoMenuEnabled(false);
         }
@@ -233,7 +769,8 @@ public class RecursiveFractalPanel extends JPanel implements ComponentListener,
 
     /**
      * give the user the option to select a location to save an
-     * image file that matches the current display.
+     * image file that matches the current display - or, with a ".frac" name, the escape counts themselves (see
+     * FracFile), which the headless renderer can color again later, or finish, if the frame isn't done yet.
      */
     public void doSaveScreen()
     {
@@ -243,12 +780,18 @@ public class RecursiveFractalPanel extends JPanel implements ComponentListener,
         chooser.setDialogTitle("Export");
         String[] extensions = {"jpg","gif","png"};
         chooser.setFileFilter(new FileNameExtensionFilter("images",extensions));
+        chooser.addChoosableFileFilter(new FileNameExtensionFilter("escape counts", FracFile.EXTENSION));
 
         int result = chooser.showSaveDialog(this);
         if (result == JFileChooser.APPROVE_OPTION)
         {
             lastFile = chooser.getSelectedFile();
             String filename = lastFile.getPath();
+            if (filename.toLowerCase().endsWith("." + FracFile.EXTENSION))
+            {
+                saveCounts(lastFile);
+                return;
+            }
             BufferedImage exportImage = new BufferedImage(getWidth(),getHeight(),BufferedImage.TYPE_INT_ARGB);
             Graphics2D gExport = exportImage.createGraphics();
             // tell it to draw things well, or you get mushy fonts and square dots.
@@ -288,6 +831,37 @@ public class RecursiveFractalPanel extends JPanel implements ComponentListener,
         }
     }
 
+    /**
+     * saves the escape counts of the frame on screen into a .frac file.
+     */
+    private void saveCounts(File file)
+    {
+        // grab these together: if the next frame replaced any of them while we looked, look again.
+        FractalView frameView;
+        EscapeCountBuffer frameCounts;
+        boolean finished;
+        do
+        {
+            frameView = view;
+            frameCounts = countBuffer;
+            finished = countsFinished;
+        } while (frameView != view || frameCounts != countBuffer);
+        if (frameView == null || frameCounts == null || frameCounts.getWidth() != frameView.getWidth() ||
+            frameCounts.getHeight() != frameView.getHeight())
+            return;
+        try (FracFile frac = FracFile.create(file, frameView, FracFile.DEFAULT_TILE_SIZE))
+        {
+            frac.writeCounts(frameCounts, finished);
+            if (!finished)
+                System.out.println("The frame wasn't finished, so " + file.getName() + " has none of its tiles " +
+                                   "marked done; the headless renderer can finish it.");
+        }catch(IOException ioExp)
+        {
+            System.out.println("Problem writing file.");
+            ioExp.printStackTrace();
+        }
+    }
+
     @Override
     /**
      * the user just changed the size of the window (or we initially put this panel into the window)
@@ -296,8 +870,7 @@ public class RecursiveFractalPanel extends JPanel implements ComponentListener,
     public void componentResized(ComponentEvent e)
     {
         image = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB);
-        shouldInterrupt = true;
-        needsRefresh = true;
+        requestRender();
         repaint();
     }
 
@@ -349,6 +922,7 @@ public class RecursiveFractalPanel extends JPanel implements ComponentListener,
         repaint();
         startCornerX = -1;
         startCornerY = -1;
+        cursor = null;
     }
 
     @Override
@@ -362,10 +936,11 @@ public class RecursiveFractalPanel extends JPanel implements ComponentListener,
     public void mouseExited(MouseEvent e)
     {
         // the user just moved the mouse out of this panel.
-        // we want to cancel any drag that we are doing.
+        // we want to cancel any drag that we are doing, and draw from the middle again.
 
         startCornerX = -1;
         startCornerY = -1;
+        cursor = null;
     }
 
     @Override
@@ -380,8 +955,65 @@ public class RecursiveFractalPanel extends JPanel implements ComponentListener,
     @Override
     public void mouseMoved(MouseEvent e)
     {
-        // the user just moved the mouse to a new location without pressing the button.
-        // We're not doing anything here, but we need this method to fulfill the MouseMotionListener interface.
+        // the user just moved the mouse to a new location without pressing the button. The nearest-first scan
+        // will draw whatever is left around here next.
+        cursor = e.getPoint();
+    }
+
+    /**
+     * copies a block of already-calculated colors into a render job's image, locking the image only for the copy
+     * itself, and marks just that block as needing repainting at the next frame (see FramePacer). The block is
+     * clipped to the image. If the job has been cancelled (which we check inside the lock), nothing is copied, so a
+     * render that has been superseded never draws over a newer one.
+     * @param job - the render these colors belong to
+     * @param target - the image that render is drawing into
+     * @param left - x position of the left edge of the block
+     * @param top - y position of the top edge of the block
+     * @param width - the width of the block
+     * @param height - the height of the block
+     * @param rgb - the colors for the block, row by row, width colors to a row.
+     */
+    private void publishPixels(RenderJob job, BufferedImage target, int left, int top, int width, int height, int[] rgb)
+    {
+        synchronized (target)
+        {
+            if (job.isCancelled())
+                return;
+            int[] data = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+            int imageWidth = target.getWidth();
+            int copyWidth = Math.min(width, imageWidth - left);
+            int copyHeight = Math.min(height, target.getHeight() - top);
+            for (int row = 0; row < copyHeight && copyWidth > 0; row++)
+                System.arraycopy(rgb, row*width, data, (top+row)*imageWidth + left, copyWidth);
+        }
+        pacer.markDirty(left, top, width, height);
+    }
+
+    /**
+     * fills a block of a render job's image with a single color, in one locked section, and marks that block as
+     * needing repainting. Like publishPixels(), this does nothing once the job has been cancelled.
+     * @param job - the render this color belongs to
+     * @param target - the image that render is drawing into
+     * @param left - x position of the left edge of the block
+     * @param top - y position of the top edge of the block
+     * @param width - the width of the block
+     * @param height - the height of the block
+     * @param rgb - the color to fill it with
+     */
+    private void fillPixels(RenderJob job, BufferedImage target, int left, int top, int width, int height, int rgb)
+    {
+        synchronized (target)
+        {
+            if (job.isCancelled())
+                return;
+            int[] data = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+            int imageWidth = target.getWidth();
+            int right = Math.min(left + width, imageWidth);
+            int bottom = Math.min(top + height, target.getHeight());
+            for (int y = top; y < bottom && right > left; y++)
+                Arrays.fill(data, y*imageWidth + left, y*imageWidth + right, rgb);
+        }
+        pacer.markDirty(left, top, width, height);
     }
 
     /**
@@ -390,6 +1022,9 @@ public class RecursiveFractalPanel extends JPanel implements ComponentListener,
      */
     public class MandelbrotThread extends Thread
     {
+        // the divide-and-conquer scan spreads its rectangles across one worker per processor.
+        private final ForkJoinPool renderPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
         public MandelbrotThread()
         {
             super();
@@ -398,139 +1033,341 @@ public class RecursiveFractalPanel extends JPanel implements ComponentListener,
         /**
          * this method is automatically called when we are told to "start()." Do not (ever) call
          * this method directly.
+         * It sleeps until a render is asked for (see requestRender()), draws it, and goes back to sleep.
          */
         public void run()
         {
             while(true)
             {
-                if (needsRefresh && image != null)
-                {
-                    needsRefresh = false;
-                    switch (scanMode)
-                    {
-                        case MODE_TRADITIONAL:
-                            performTraditionalScan();
-                            break;
-                        case MODE_PIXELATED:
-                            performPixelatedScan();
-                            break;
-                        case MODE_DIVIDE_AND_CONQUER:
-                        default:
-                            performDivideAndConquerScan(); // you'll be writing this one.
-                    }
-                }
-                // if we don't need to refresh, wait 1/2 a second and check again.
+                RenderJob job;
                 try
                 {
-                    Thread.sleep(500); // milliseconds
+                    job = waitForNextJob();
                 } catch (InterruptedException e)
                 {
-                    throw new RuntimeException(e);
+                    return;
                 }
-                shouldInterrupt = false;
-
+                if (job.isRecolorOnly())
+                    recolor(job);
+                else
+                    render(job);
+                if (metricsOverlayVisible)
+                    repaint();
             }
         }
 
-        // draws the fractal by doing a typical line-by-line scan down the page.
-        public void performTraditionalScan()
+        /**
+         * draws one frame into an image of its own: straight from the frame cache, if we have drawn this frame before,
+         * or else by showing the previous frame stretched to fit and then scanning over it. Everything the frame
+         * depends on is gathered up at the start, so a change part way through just cancels this job (and starts
+         * another), rather than mixing two different frames together.
+         * @param job - the ticket for this render.
+         */
+        private void render(RenderJob job)
         {
-            Graphics image_g = image.getGraphics();
-            for (int y=0; y<getHeight(); y++)
-                for (int x=0; x<getWidth(); x++)
+            int width = getWidth();
+            int height = getHeight();
+            if (width <= 0 || height <= 0)
+                return;
+            boolean smooth = coloring.isSmooth();
+            FractalView frameView = new FractalView(mathBounds, width, height, kernel, floatPrecisionEnabled && !smooth);
+            int frameMaxCount = frameView.getKernel().getMaxCount();
+            int mode = scanMode;
+            BufferedImage frameImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            BufferedImage showing = image;
+            if (showing != null && showing.getWidth() == width && showing.getHeight() == height)
+                synchronized (showing)
                 {
-                    if (shouldInterrupt)
-                        return;
-                    // we're using the "synchronized" command here to tell the computer to wait until
-                    // any other thread is using the image. (In this case, the Panel's paintComponent()
-                    // method. Once it is free, we'll lock it on our behalf, draw a pixel, and unlock it.
-                    synchronized (image)
-                    {
-                        image.setRGB(x, y, getColorForPixel(x, y).getRGB());
-                    }
-                    // tell the computer to refresh the panel's appearance at its next convenience.
-                    repaint();
+                    // start from what's on screen, so nothing flickers while the new frame comes in.
+                    frameImage.setData(showing.getRaster());
                 }
-            needsRefresh = false;
-        }
 
-        /**
-         * draws the fractal by dividing up the screen into blocks, filling the blocks up with the
-         * color for the point at the upper-left corner. After we draw the big blocks, we break them into smaller
-         * blocks and repeat until we have made 1x1 pixel blocks.
-         */
-        public void performPixelatedScan()
-        {
-            int resolution = Math.min(getWidth(), getHeight());
-            int previous_resolution = resolution*2;
-            synchronized (image)
+            FrameCache.Key key = new FrameCache.Key(frameView.getKernel().getName(), frameView.getBounds(), width,
+                                                    height, frameMaxCount, frameView.getPrecision(), mode);
+            EscapeCountBuffer cached = frameCache.get(key);
+            if (cached != null && smooth && !cached.hasFractions())
+                cached = null; // we drew it before, but without the fractions we need now.
+            // a frame on the tile cache's grid may have some (or all) of its counts on disk already. (The tiles only
+            // keep counts, so not with smooth coloring; and deep zooms depend on their reference orbit.)
+            TileCache.Placement placement = null;
+            String tileKey = null;
+            EscapeCountBuffer fromDisk = null;
+            boolean[] knownFromDisk = null;
+            int foundOnDisk = 0;
+            if (cached == null && tileCache != null && tileCacheEnabled && !smooth && !frameView.isDeepZoom())
+                placement = TileCache.place(frameView);
+            if (placement != null)
             {
-                Graphics imgG = image.getGraphics();
-                imgG.setColor(getColorForPixel(0,0));
-                imgG.fillRect(0,0,resolution,resolution);
+                tileKey = TileCache.keyFor(frameView, mode);
+                fromDisk = new EscapeCountBuffer(width, height);
+                knownFromDisk = new boolean[width*height];
+                foundOnDisk = tileCache.readFrame(tileKey, placement, fromDisk, knownFromDisk);
+                if (foundOnDisk == width*height)
+                {
+                    cached = fromDisk;
+                    frameCache.put(key, fromDisk);
+                }
             }
-            while (resolution > 0)
+            // counts (and fractions) carried over from the last frame are only any use if it kept fractions too.
+            boolean lastFrameUsable = lastFinishedView != null && (!smooth || lastFinishedCounts.hasFractions()) &&
+                                      lastFinishedView.getKernel().getName().equals(frameView.getKernel().getName());
+            FrameReprojection carriedOver = null;
+            if (cached == null && lastFrameUsable)
+                carriedOver = new FrameReprojection(lastFinishedView, lastFinishedCounts, lastFinishedScanMode,
+                                                    frameView, mode);
+            // the pixels we have on disk don't need calculating, just like the ones carried over exactly.
+            if (cached == null && foundOnDisk > 0)
             {
-                for (int y=0; y<getHeight(); y+= resolution)
-                    for (int x=0; x<getWidth(); x+= resolution)
-                    {
-                        if (shouldInterrupt)
-                            return;
-                        if (x%(previous_resolution)==0 && y%(previous_resolution)==0)
-                            continue;
-                        synchronized (image)
-                        {
-                            Graphics imgG = image.getGraphics();
-                            imgG.setColor(getColorForPixel(x, y));
-                            imgG.fillRect(x,y,resolution,resolution);
-                        }
-                        repaint();
-                    }
-                previous_resolution = resolution;
-                resolution /=2;
+                if (carriedOver == null)
+                    carriedOver = new FrameReprojection(frameView);
+                carriedOver.addExact(knownFromDisk, fromDisk);
+            }
+            // if this is the last frame again with a higher maxCount, we can carry on from where it stopped.
+            IterationState resumeFrom = null;
+            if (cached == null && lastFrameUsable && lastFinishedState != null && lastFinishedState.canResume(frameView))
+                resumeFrom = lastFinishedState;
+            EscapeCountBuffer frameCounts = cached != null ? cached.copy() : new EscapeCountBuffer(width, height, smooth);
+
+            if (job.isCancelled())
+                return;
+            countsFinished = false;
+            view = frameView;
+            countBuffer = frameCounts;
+            reprojection = carriedOver;
+            image = frameImage;
 
+            if (cached != null)
+            {
+                // we've drawn this exact frame before, so we only need to color it in again.
+                recolor(job);
+                countsFinished = true;
+                lastFinishedView = frameView;
+                lastFinishedCounts = cached;
+                lastFinishedScanMode = mode;
+                if (lastFinishedState != null && !lastFinishedState.isFor(frameView))
+                    lastFinishedState = null; // (the cache doesn't keep states; if it's this frame's, hang onto it.)
+                metrics.frameFromCache(frameView);
+                considerDeepening(frameView, cached);
+                return;
+            }
+
+            PanelScanner scanner = new PanelScanner(job, frameView, frameCounts, frameImage, carriedOver);
+            if (carriedOver != null)
+            {
+                // show the old frame, stretched to fit the new view, while we work out the real thing.
+                EscapeCountBuffer preview = carriedOver.getPreview();
+                if (preview.hasFractions() && frameCounts.hasFractions())
+                    System.arraycopy(preview.getFractions(), 0, frameCounts.getFractions(), 0,
+                                     preview.getFractions().length);
+                scanner.publishCounts(0, 0, width, height, preview.getCounts());
+            }
+            IterationState record = null;
+            if (frameView.getPrecision() == FractalView.PRECISION_DOUBLE)
+                record = new IterationState(frameView);
+            scanner.setMetrics(metrics);
+            scanner.setLaneBatching(laneBatchingEnabled);
+            scanner.setIterationStates(resumeFrom, record);
+            metrics.beginFrame(frameView, carriedOver);
+            boolean finished = scanner.scan(mode);
+            metrics.endFrame(!finished);
+            reprojection = null;
+            if (finished)
+            {
+                // the blocks were colored without equalization, since the ranks kept changing as the counts came in.
+                if (coloring.isEqualized())
+                    recolor(job);
+                EscapeCountBuffer finishedCounts = frameCounts.copy();
+                countsFinished = true;
+                frameCache.put(key, finishedCounts);
+                if (placement != null && tileCacheEnabled)
+                    tileCache.saveFrameLater(tileKey, placement, finishedCounts);
+                lastFinishedView = frameView;
+                lastFinishedCounts = finishedCounts;
+                lastFinishedScanMode = mode;
+                if (record != null)
+                    record.finish(finishedCounts);
+                lastFinishedState = record;
+                considerDeepening(frameView, finishedCounts);
             }
         }
 
         /**
-         * wrapper method to call the recursive divide-and-conquer scan for the whole panel.
+         * colors in the whole frame on screen again from its counts, with the current colors, in one parallel pass.
+         * @param job - the ticket for this recolor (or for the render it is part of)
          */
-        public void performDivideAndConquerScan()
+        private void recolor(RenderJob job)
         {
-            performDivideAndConquerScan(0,0,getWidth()-1,getHeight()-1);
+            EscapeCountBuffer frameCounts = countBuffer;
+            FractalView frameView = view;
+            BufferedImage target = image;
+            ColorMapping mapping = coloring;
+            if (frameCounts == null || frameView == null || target == null ||
+                target.getWidth() != frameCounts.getWidth() || target.getHeight() != frameCounts.getHeight())
+                return;
+            if (mapping.getMaxCount() < frameView.getKernel().getMaxCount())
+                return; // maxCount has just gone down, and a new render is on its way.
+            int[] rgb = new int[frameCounts.getWidth()*frameCounts.getHeight()];
+            mapping.colorFrame(frameCounts, rgb, renderPool);
+            publishPixels(job, target, 0, 0, frameCounts.getWidth(), frameCounts.getHeight(), rgb);
         }
 
         /**
-         * recursive method to draw the fractal for the box from (left, top) to (right, bottom), inclusive.
-         * Draws the fractal by calculating (and displaying) all the points on the border of the rectangle.
-         * If these are all the same, saves time by filling in the rectangle with that color. Otherwise,
-         * insets the rectangle by 1 pixel inwards, divides it up into quarters, and recursively calls
-         * performDivideAndConquerScan for each quarter.
-         * @param left - x position of the top left corner of the region to draw, inclusive.
-         * @param top - y position of the top left corner of the region to draw, inclusive.
-         * @param right - x position of the bottom right corner of the region to draw, inclusive.
-         * @param bottom - y position of the bottom right corner of the region to draw, inclusive.
+         * if auto-deepening is on, checks whether a finished frame could use a higher maxCount - that is, whether
+         * more than a few pixels only just escaped (in the top half of the counts), so that the edge of the set is
+         * probably still changing - and if so, doubles maxCount, which starts another render.
+         * @param frameView - the frame that just finished
+         * @param finishedCounts - its counts
          */
-        public void performDivideAndConquerScan(int left, int top, int right, int bottom)
+        private void considerDeepening(FractalView frameView, EscapeCountBuffer finishedCounts)
         {
-            // TODO: You write this.
-            // 1) You'll need to consider the base case of whether this rectangle is "inside out."
-            // 2) lso, inside any loops, make sure you are checking the "shouldInterrupt" variable - if this is ever true,
-            // you should return immediately. This is so that the user zooming or resizing the window will stop this
-            // scan as quickly as possible.
-            // 3) To change the color of a pixel at (x,y) to color c, you will make use of:
-            //     synchronized(image)
-            //     {
-            //          image.setRGB(x, y, c.getRGB());
-            //     }
-            //     make sure that you put as little code as possible inside the synchronized curly brackets... this
-            //     is locking the image as long as you are in there, so to make the program responsive, we need to
-            //     hold it for as little time as possible. (It's ok to update 1-4 pixels in there, but don't do a
-            //     more substantial loop or recursive call.)
+            int frameMaxCount = frameView.getKernel().getMaxCount();
+            if (!autoDeepenEnabled || frameMaxCount >= MAX_MAX_COUNT)
+                return;
+            int lateEscapes = 0;
+            for (int count : finishedCounts.getCounts())
+                if (count > 0 && count >= frameMaxCount/2)
+                    lateEscapes++;
+            long pixels = (long)frameView.getWidth()*frameView.getHeight();
+            if ((long)lateEscapes*AUTO_DEEPEN_PIXELS_PER_LATE_ESCAPE < pixels || lateEscapes == 0)
+                return;
+            SwingUtilities.invokeLater(() ->
+            {
+                // only if nothing else has changed in the meantime.
+                if (maxCount == frameMaxCount && frameView.getBounds().equals(mathBounds) && autoDeepenEnabled)
+                    setMaxCount(2*frameMaxCount);
+            });
+        }
 
+        /**
+         * the scanner the panel uses: it reuses counts carried over from the previous frame, stops when its job is
+         * cancelled, colors every block of counts into the job's image as it is published, and draws around the
+         * mouse first, in the nearest-first scan.
+         */
+        private class PanelScanner extends FractalScanner
+        {
+            private final RenderJob job;
+            private final BufferedImage target;
+            private final FrameReprojection carriedOver;
+            // the colors we are using, and the table we made from them, kept together; remade if the colors change.
+            private volatile FrameColors frameColors;
 
+            public PanelScanner(RenderJob job, FractalView view, EscapeCountBuffer counts, BufferedImage target,
+                                FrameReprojection carriedOver)
+            {
+                super(view, counts, renderPool);
+                this.job = job;
+                this.target = target;
+                this.carriedOver = carriedOver;
+            }
+
+            /**
+             * @return the current colors and their table, remaking the table if the colors have changed since
+             * last time. (If two threads both remake it at once, that's fine; they make the same one.)
+             */
+            private FrameColors getFrameColors()
+            {
+                ColorMapping mapping = coloring;
+                FrameColors current = frameColors;
+                if (current != null && current.source == mapping)
+                    return current;
+                ColorMapping fitted = mapping;
+                int frameMaxCount = view.getKernel().getMaxCount();
+                if (mapping.getMaxCount() < frameMaxCount)
+                    // maxCount has just gone down, and this frame is about to be cancelled; until it notices, just
+                    // don't run off the end of the table.
+                    fitted = mapping.withPaletteTable(palette.buildTable(frameMaxCount));
+                current = new FrameColors(mapping, fitted, fitted.buildFrameTable(null));
+                frameColors = current;
+                return current;
+            }
+
+            @Override
+            protected int countAt(int x, int y)
+            {
+                if (carriedOver != null && carriedOver.isExact(x, y))
+                    return carriedOver.getCount(x, y);
+                return view.countAt(x, y);
+            }
+
+            @Override
+            protected void countPixels(int[] xs, int[] ys, int[] pixelCounts, int length)
+            {
+                if (carriedOver == null)
+                {
+                    super.countPixels(xs, ys, pixelCounts, length);
+                    return;
+                }
+                // pixels carried over exactly from the last frame don't need calculating; batch up the rest.
+                int[] needXs = new int[length];
+                int[] needYs = new int[length];
+                int[] needIndex = new int[length];
+                int needed = 0;
+                for (int i = 0; i < length; i++)
+                {
+                    if (carriedOver.isExact(xs[i], ys[i]))
+                    {
+                        pixelCounts[i] = carriedOver.getCount(xs[i], ys[i]);
+                        counts.setFraction(xs[i], ys[i], carriedOver.getFraction(xs[i], ys[i]));
+                    }
+                    else
+                    {
+                        needXs[needed] = xs[i];
+                        needYs[needed] = ys[i];
+                        needIndex[needed] = i;
+                        needed++;
+                    }
+                }
+                int[] neededCounts = new int[needed];
+                super.countPixels(needXs, needYs, neededCounts, needed);
+                for (int i = 0; i < needed; i++)
+                    pixelCounts[needIndex[i]] = neededCounts[i];
+            }
+
+            @Override
+            protected void publishCounts(int left, int top, int width, int height, int[] blockCounts)
+            {
+                counts.setBlock(left, top, width, height, blockCounts);
+                FrameColors colors = getFrameColors();
+                int[] rgb = new int[blockCounts.length];
+                colors.mapping.colorBlock(colors.table, counts, left, top, width, blockCounts, rgb);
+                publishPixels(job, target, left, top, width, height, rgb);
+            }
+
+            @Override
+            protected void fillCount(int left, int top, int width, int height, int count)
+            {
+                counts.fill(left, top, width, height, count);
+                fillPixels(job, target, left, top, width, height, getFrameColors().table[count]);
+            }
+
+            @Override
+            protected boolean isInterrupted()
+            {
+                return job.isCancelled();
+            }
+
+            @Override
+            protected Point getFocus()
+            {
+                return cursor;
+            }
         }
     }
 
+    /**
+     * the colors a scan is using: the panel's ColorMapping it came from, that mapping with a palette table big
+     * enough for the frame, and the table it made for the frame.
+     */
+    private static class FrameColors
+    {
+        final ColorMapping source, mapping;
+        final int[] table;
 
+        FrameColors(ColorMapping source, ColorMapping mapping, int[] table)
+        {
+            this.source = source;
+            this.mapping = mapping;
+            this.table = table;
+        }
+    }
 }
@@ -2,6 +2,24 @@ public class RecursiveFractalRunner
 {
     public static void main(String[] args)
     {
+        // a render farm's worker process. (see RenderWorker)
+        if (args.length > 0 && args[0].equals("--worker"))
+        {
+            RenderWorker.main(args);
+            return;
+        }
+        // a zoom animation, to numbered files or standard output. (see AnimationRenderer)
+        if (args.length > 0 && args[0].equals("--animate"))
+        {
+            AnimationRenderer.main(args);
+            return;
+        }
+        // with any command-line options, render to a file instead of opening a window. (see HeadlessRenderer)
+        if (args.length > 0)
+        {
+            HeadlessRenderer.main(args);
+            return;
+        }
         RecursiveFractalFrame app = new RecursiveFractalFrame();
     }
 }
@@ -0,0 +1,130 @@
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+
+/**
+ * The orbit of one reference point, Z(n+1) = Z(n)^2 + C, calculated with BigDecimals at whatever precision the
+ * zoom needs, but stored as doubles. Every other pixel near the reference can then be calculated with ordinary
+ * doubles, by only tracking how far its own orbit is from this one (perturbation):
+ *      dz(n+1) = 2*Z(n)*dz(n) + dz(n)^2 + dc
+ * Since dz and dc are tiny offsets, doubles hold them perfectly well, even when the view is far narrower than a
+ * double could describe on its own.
+ */
+public class ReferenceOrbit
+{
+    // returned by countStepsToExit when this reference can't be trusted for the given pixel.
+    public static final int GLITCH = -1;
+
+    // if a pixel's z gets this much smaller (squared) than the reference's Z, the difference between them has lost
+    // too many digits to trust. (Pauldelbrot's glitch criterion, with a tolerance of 1e-3.)
+    private static final double GLITCH_TOLERANCE_SQUARED = 1e-6;
+    // how many Z values we make room for to start with; the arrays grow from there as the orbit carries on.
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int pixelX, pixelY;
+    private final double cr, ci; // the reference point, rounded to doubles.
+    // just long enough for the orbit: most references escape long before maxCount, and with maxCount up to
+    // RecursiveFractalPanel.MAX_MAX_COUNT, a frame's worth of full-length arrays could run to hundreds of megabytes.
+    private final double[] zr, zi;
+    private final int length; // the number of usable Z values; Z(length-1) is the last one.
+
+    /**
+     * calculates the orbit of c, stopping once it escapes the threshold or reaches maxCount steps.
+     * @param c - the reference point, to full precision
+     * @param pixelX - the x coordinate of the pixel that c sits on
+     * @param pixelY - the y coordinate of the pixel that c sits on
+     * @param maxCount - the most steps to take
+     * @param thresholdSquared - the escape threshold (squared)
+     * @param mc - the precision to calculate with
+     */
+    public ReferenceOrbit(BigComplex c, int pixelX, int pixelY, int maxCount, double thresholdSquared, MathContext mc)
+    {
+        this.pixelX = pixelX;
+        this.pixelY = pixelY;
+        cr = c.getReal().doubleValue();
+        ci = c.getImaginary().doubleValue();
+        double[] orbitR = new double[Math.min(maxCount+1, INITIAL_CAPACITY)];
+        double[] orbitI = new double[orbitR.length];
+        BigComplex z = new BigComplex(BigDecimal.ZERO, BigDecimal.ZERO);
+        int n = 0;
+        while (true)
+        {
+            if (n == orbitR.length)
+            {
+                int capacity = (int)Math.min(maxCount+1L, 2L*orbitR.length);
+                orbitR = Arrays.copyOf(orbitR, capacity);
+                orbitI = Arrays.copyOf(orbitI, capacity);
+            }
+            orbitR[n] = z.getReal().doubleValue();
+            orbitI[n] = z.getImaginary().doubleValue();
+            if (n == maxCount || orbitR[n]*orbitR[n] + orbitI[n]*orbitI[n] > thresholdSquared)
+                break;
+            z = z.squared(mc).plus(c, mc);
+            n++;
+        }
+        length = n+1;
+        // (trimmed, so the spare room we grew into doesn't stay around as long as the reference does.)
+        zr = orbitR.length == length ? orbitR : Arrays.copyOf(orbitR, length);
+        zi = orbitI.length == length ? orbitI : Arrays.copyOf(orbitI, length);
+    }
+
+    public int getPixelX() {return pixelX;}
+    public int getPixelY() {return pixelY;}
+
+    /**
+     * finds the escape count for the point dc away from this reference, following the same counting rules as
+     * MandelbrotKernel.countStepsToExit().
+     * @param dcr - the real part of the offset from the reference point
+     * @param dci - the imaginary part of the offset from the reference point
+     * @param maxCount - the most steps to take
+     * @param thresholdSquared - the escape threshold (squared)
+     * @param ignoreGlitches - if true, carry on even where the result can't be trusted (used as a last resort).
+     * @return the escape count, zero if it never escaped, or GLITCH if this reference can't tell.
+     */
+    public int countStepsToExit(double dcr, double dci, int maxCount, double thresholdSquared,
+                                boolean ignoreGlitches)
+    {
+        double dzr = 0, dzi = 0;
+        for (int count = 0; count < maxCount; count++)
+        {
+            if (count+1 >= length)
+            {
+                // the reference escaped before this pixel did.
+                if (!ignoreGlitches)
+                    return GLITCH;
+                return finishWithoutReference(zr[count] + dzr, zi[count] + dzi, cr + dcr, ci + dci, count,
+                                              maxCount, thresholdSquared);
+            }
+            double refR = zr[count], refI = zi[count];
+            double nextR = 2*(refR*dzr - refI*dzi) + dzr*dzr - dzi*dzi + dcr;
+            dzi = 2*(refR*dzi + refI*dzr) + 2*dzr*dzi + dci;
+            dzr = nextR;
+            double r = zr[count+1] + dzr;
+            double i = zi[count+1] + dzi;
+            double mag = r*r + i*i;
+            if (mag > thresholdSquared)
+                return count;
+            if (!ignoreGlitches && mag < GLITCH_TOLERANCE_SQUARED * (zr[count+1]*zr[count+1] + zi[count+1]*zi[count+1]))
+                return GLITCH;
+        }
+        return 0;
+    }
+
+    /**
+     * carries on iterating a pixel in plain doubles, once there is no reference left to follow. This loses the
+     * digits that perturbation was saving, but by now z is usually a step or two from escaping anyway.
+     */
+    private static int finishWithoutReference(double zr, double zi, double cr, double ci, int count, int maxCount,
+                                              double thresholdSquared)
+    {
+        for (; count < maxCount; count++)
+        {
+            double nextR = zr*zr - zi*zi + cr;
+            zi = zr*zi + zi*zr + ci;
+            zr = nextR;
+            if (zr*zr + zi*zi > thresholdSquared)
+                return count;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,476 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Calculates a .frac file (see FracFile) with a set of worker processes instead of just this one, for posters too
+ * big for one JVM. This is the coordinator: it listens on a TCP port, starts the local workers as child processes
+ * (see RenderWorker), hands each worker one tile at a time, and saves the tiles they send back. Workers on other
+ * machines can join in too, if we were given a port to listen on (see --port in HeadlessRenderer).
+ *
+ * The protocol is deliberately simple - everything is a DataOutputStream int or UTF string:
+ * - the worker says hello: MAGIC, VERSION.
+ * - we describe the frame: MAGIC, VERSION, the four bounds (minRe, minIm, maxRe, maxIm) as decimal strings (so deep
+ *   zooms keep every digit), width, height, maxCount, precision (a FractalView.PRECISION_ tier).
+ * - then, over and over, we send a tile (its number, left, top, width and height) and the worker sends back the tile's
+ *   number, the length of its counts once compressed, and the compressed counts (see compress()). A tile number of
+ *   NO_MORE_TILES tells the worker we are finished, and it goes away.
+ *
+ * Things go wrong with workers, so:
+ * - a tile that comes back the wrong size, or with counts that can't be right (below 0 or above maxCount), is thrown
+ *   away, and we hang up on the worker that sent it,
+ * - if a worker's connection breaks (the process crashed, or was killed), the tile it had goes back on the queue
+ *   for someone else,
+ * - once there is nothing left on the queue, a worker with nothing to do takes a copy of a tile that has been
+ *   running STRAGGLER_FACTOR times longer than tiles usually take (say, on a machine that has been swapped out), and
+ *   whichever copy finishes first wins,
+ * - if one of our child processes goes away, we start another, up to RESTARTS_PER_WORKER times as many as we
+ *   started with. We only give up once there are no workers left at all.
+ * Since the tiles go into the .frac file as they are finished, a render that does give up can carry on later, just
+ * as with the single-process version.
+ */
+public class RenderFarm
+{
+    public static final int MAGIC = 0x4641524D; // "FARM".
+    public static final int VERSION = 1;
+    public static final int NO_MORE_TILES = -1;
+    // a tile is copied to an idle worker once it has been running this many times longer than the average tile.
+    private static final double STRAGGLER_FACTOR = 3;
+    // ...but never before it has been running this long.
+    private static final long MIN_STRAGGLER_MILLIS = 1000;
+    // how many of our child processes we are willing to replace, per worker we were asked for.
+    private static final int RESTARTS_PER_WORKER = 2;
+    // how long to wait for a worker to say hello before hanging up on it.
+    private static final int HELLO_TIMEOUT_MILLIS = 30000;
+    // how often the coordinator looks in on things (to report progress, and check on the child processes).
+    private static final long CHECK_MILLIS = 1000;
+
+    private final int localWorkers, threadsPerWorker, port;
+
+    // everything below is guarded by this farm's lock (synchronized methods, and wait()/notifyAll()).
+    private FracFile frac;
+    private final ArrayDeque<Integer> pending = new ArrayDeque<Integer>();
+    // when each running tile was first handed out, and how many workers have a copy of it.
+    private final Map<Integer, Long> startTimes = new HashMap<Integer, Long>();
+    private final Map<Integer, Integer> copies = new HashMap<Integer, Integer>();
+    private int remaining, finishedHere, connected, redispatched, failures;
+    private long tileMillis, rawBytes, compressedBytes;
+    private IOException saveFailure;
+
+    /**
+     * @param localWorkers - how many worker processes to start on this machine
+     * @param threadsPerWorker - how many threads each of them should use
+     * @param port - the port to listen on for workers, or 0 for any free port (and then only local workers, since
+     *             nobody else will know where to find us)
+     */
+    public RenderFarm(int localWorkers, int threadsPerWorker, int port)
+    {
+        if (localWorkers < 0 || (localWorkers == 0 && port == 0))
+            throw new IllegalArgumentException("A render farm needs some workers, or a port for them to join on.");
+        this.localWorkers = localWorkers;
+        this.threadsPerWorker = Math.max(1, threadsPerWorker);
+        this.port = port;
+    }
+
+    /**
+     * calculates every tile the .frac file doesn't have yet, using the workers. Returns once they are all done.
+     * @param frac - the file to fill in; it must be for the Mandelbrot set (which is all the workers can draw).
+     */
+    public void calculate(FracFile frac) throws IOException
+    {
+        MandelbrotKernel kernel = new MandelbrotKernel(frac.getMaxCount(), MandelbrotKernel.DEFAULT_THRESHOLD_SQUARED,
+                                                       true, true);
+        if (!frac.getFormula().equals(kernel.getName()))
+            throw new IOException("The render farm can only draw "+kernel.getName()+", not "+frac.getFormula()+".");
+        synchronized (this)
+        {
+            this.frac = frac;
+            pending.clear();
+            startTimes.clear();
+            copies.clear();
+            finishedHere = redispatched = failures = 0;
+            tileMillis = rawBytes = compressedBytes = 0;
+            saveFailure = null;
+            for (int tile = 0; tile < frac.getTileCount(); tile++)
+                if (!frac.isTileDone(tile))
+                    pending.add(tile);
+            remaining = pending.size();
+            if (remaining < frac.getTileCount())
+                System.err.println("Carrying on from "+(frac.getTileCount()-remaining)+" of "+frac.getTileCount()+
+                                   " tiles.");
+        }
+
+        // with only local workers, nobody else needs to be able to reach us.
+        ServerSocket server = new ServerSocket();
+        server.bind(port == 0 ? new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)
+                              : new InetSocketAddress(port));
+        List<Process> children = new ArrayList<Process>();
+        List<Socket> sockets = new ArrayList<Socket>();
+        Thread acceptor = new Thread(() -> acceptWorkers(server, sockets), "render farm acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        long start = System.currentTimeMillis();
+        try
+        {
+            System.err.println("Render farm listening on port "+server.getLocalPort()+".");
+            for (int i = 0; i < localWorkers; i++)
+                children.add(startWorker(server.getLocalPort()));
+            int restarts = 0;
+            synchronized (this)
+            {
+                while (remaining > 0)
+                {
+                    if (saveFailure != null)
+                        throw saveFailure;
+                    // keep the local workers topped up.
+                    for (int i = 0; i < children.size(); i++)
+                        if (!children.get(i).isAlive() && restarts < RESTARTS_PER_WORKER*localWorkers)
+                        {
+                            System.err.println("A worker went away (exit code "+children.get(i).exitValue()+
+                                               "); starting another.");
+                            children.set(i, startWorker(server.getLocalPort()));
+                            restarts++;
+                        }
+                    if (connected == 0 && port == 0 && children.stream().noneMatch(Process::isAlive))
+                        throw new IOException("All the workers have gone, with "+remaining+" tiles still to do.");
+                    wait(CHECK_MILLIS);
+                }
+            }
+            System.err.println("Calculated "+finishedHere+" tiles in "+(System.currentTimeMillis()-start)+" ms ("+
+                               redispatched+" stragglers copied, "+failures+" workers lost, counts compressed to "+
+                               (rawBytes == 0 ? 0 : compressedBytes*100/rawBytes)+"%).");
+        } catch (InterruptedException e)
+        {
+            throw new IOException("Rendering was interrupted.", e);
+        } finally
+        {
+            synchronized (this)
+            {
+                this.frac = null;
+                notifyAll();
+            }
+            server.close();
+            // the workers are told to go away as they ask for more; this is for any still busy (e.g. on a copy of a
+            // straggler that has since finished) or stuck.
+            synchronized (sockets)
+            {
+                for (Socket socket : sockets)
+                    socket.close();
+            }
+            for (Process child : children)
+                child.destroyForcibly();
+        }
+    }
+
+    /**
+     * starts a worker process on this machine, running from the same classes we are.
+     */
+    private Process startWorker(int serverPort) throws IOException
+    {
+        String java = System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                                    "RecursiveFractalRunner", "--worker", "localhost:"+serverPort,
+                                                    "--threads", String.valueOf(threadsPerWorker));
+        // the worker's complaints go with ours; its standard output must never get mixed up with ours.
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return builder.start();
+    }
+
+    /**
+     * takes each worker that connects, and gives it a thread of its own, until the server is closed.
+     */
+    private void acceptWorkers(ServerSocket server, List<Socket> sockets)
+    {
+        while (!server.isClosed())
+        {
+            try
+            {
+                Socket socket = server.accept();
+                synchronized (sockets)
+                {
+                    sockets.add(socket);
+                }
+                Thread thread = new Thread(() -> serveWorker(socket), "render farm worker "+
+                                                                      socket.getRemoteSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException ioExp)
+            {
+                // (the server was closed, so we're finished.)
+            }
+        }
+    }
+
+    /**
+     * feeds one worker tiles until there are none left, or the worker goes away.
+     */
+    private void serveWorker(Socket socket)
+    {
+        int tile = NO_MORE_TILES;
+        boolean joined = false;
+        try (Socket s = socket)
+        {
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(HELLO_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Something that isn't one of our workers connected from "+
+                                      s.getRemoteSocketAddress()+".");
+            // a tile can take as long as it takes; stragglers are dealt with by copying them, not by timing out.
+            s.setSoTimeout(0);
+            FracFile frac = getFrac();
+            if (frac == null)
+                return;
+            ComplexRange bounds = frac.getBounds();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(bounds.getPreciseMin().getReal().toString());
+            out.writeUTF(bounds.getPreciseMin().getImaginary().toString());
+            out.writeUTF(bounds.getPreciseMax().getReal().toString());
+            out.writeUTF(bounds.getPreciseMax().getImaginary().toString());
+            out.writeInt(frac.getWidth());
+            out.writeInt(frac.getHeight());
+            out.writeInt(frac.getMaxCount());
+            out.writeInt(frac.getPrecision());
+            workerJoined();
+            joined = true;
+
+            int[] counts = new int[frac.getTileSize()*frac.getTileSize()];
+            while ((tile = nextTile()) != NO_MORE_TILES)
+            {
+                out.writeInt(tile);
+                out.writeInt(frac.getTileLeft(tile));
+                out.writeInt(frac.getTileTop(tile));
+                out.writeInt(frac.getTileWidth(tile));
+                out.writeInt(frac.getTileHeight(tile));
+                out.flush();
+                if (in.readInt() != tile)
+                    throw new IOException("A worker sent back the wrong tile.");
+                int length = frac.getTileWidth(tile)*frac.getTileHeight(tile);
+                int compressedLength = in.readInt();
+                // (deflate never makes anything more than a little bigger.)
+                if (compressedLength < 0 || compressedLength > length*4 + 1024)
+                    throw new IOException("A worker sent back a tile "+compressedLength+" bytes long.");
+                byte[] compressed = new byte[compressedLength];
+                in.readFully(compressed);
+                decompress(compressed, counts, length);
+                // anyone can connect with --port, so don't let anything into the file that couldn't be a count.
+                for (int i = 0; i < length; i++)
+                    if (counts[i] < 0 || counts[i] > frac.getMaxCount())
+                        throw new IOException("A worker sent back a count of "+counts[i]+", with a max count of "+
+                                              frac.getMaxCount()+".");
+                tileFinished(tile, counts, compressed.length, length*4L);
+                tile = NO_MORE_TILES;
+            }
+            out.writeInt(NO_MORE_TILES);
+            out.flush();
+        } catch (IOException | DataFormatException e)
+        {
+            // the worker crashed, was killed or sent rubbish; its tile goes back on the queue.
+            workerLost(tile, joined, e);
+            return;
+        }
+        workerLeft();
+    }
+
+    private synchronized FracFile getFrac() {return frac;}
+
+    private synchronized void workerJoined()
+    {
+        connected++;
+    }
+
+    private synchronized void workerLeft()
+    {
+        connected--;
+        notifyAll();
+    }
+
+    /**
+     * @return the next tile for a worker to do, waiting if there's nothing to give it yet, or NO_MORE_TILES once
+     * every tile is done.
+     */
+    private synchronized int nextTile()
+    {
+        try
+        {
+            while (remaining > 0 && frac != null)
+            {
+                Integer tile = pending.poll();
+                if (tile == null)
+                    tile = findStraggler();
+                if (tile != null)
+                {
+                    startTimes.putIfAbsent(tile, System.currentTimeMillis());
+                    copies.merge(tile, 1, Integer::sum);
+                    return tile;
+                }
+                // nothing to do yet; a tile may come back from a lost worker, or turn into a straggler.
+                wait(100);
+            }
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return NO_MORE_TILES;
+    }
+
+    /**
+     * @return the running tile that has been going longest, if it has been going long enough to be worth copying
+     * (and nobody is already doing a copy), or else null.
+     */
+    private Integer findStraggler()
+    {
+        if (finishedHere == 0)
+            return null; // (we don't know how long a tile usually takes yet.)
+        long now = System.currentTimeMillis();
+        long tooLong = Math.max(MIN_STRAGGLER_MILLIS, (long)(STRAGGLER_FACTOR*tileMillis/finishedHere));
+        Integer oldest = null;
+        for (Map.Entry<Integer, Long> entry : startTimes.entrySet())
+            if (copies.get(entry.getKey()) == 1 && now - entry.getValue() > tooLong &&
+                (oldest == null || entry.getValue() < startTimes.get(oldest)))
+                oldest = entry.getKey();
+        if (oldest != null)
+            redispatched++;
+        return oldest;
+    }
+
+    /**
+     * saves a tile a worker sent back, unless another copy of it got there first.
+     */
+    private synchronized void tileFinished(int tile, int[] counts, long compressed, long raw)
+    {
+        dropCopy(tile);
+        if (frac == null || frac.isTileDone(tile))
+            return;
+        try
+        {
+            frac.writeTile(tile, counts);
+        } catch (IOException ioExp)
+        {
+            // (no point carrying on if we can't save anything.)
+            saveFailure = ioExp;
+            notifyAll();
+            return;
+        }
+        frac.markTileDone(tile);
+        tileMillis += System.currentTimeMillis() - startTimes.remove(tile);
+        copies.remove(tile);
+        finishedHere++;
+        remaining--;
+        rawBytes += raw;
+        compressedBytes += compressed;
+        int done = frac.getTileCount() - remaining;
+        // report every whole percent.
+        if (done*100L/frac.getTileCount() != (done-1)*100L/frac.getTileCount())
+            System.err.println("Finished "+done+" of "+frac.getTileCount()+" tiles.");
+        notifyAll();
+    }
+
+    /**
+     * a worker went away; puts the tile it was doing (if any) back at the front of the queue, unless it's done or
+     * someone else still has a copy.
+     * @param tile - the tile it was doing, or NO_MORE_TILES
+     * @param joined - whether it had got as far as being told about the frame
+     * @param reason - what went wrong
+     */
+    private synchronized void workerLost(int tile, boolean joined, Exception reason)
+    {
+        if (joined)
+            connected--;
+        // (once we're finished, we hang up on the workers ourselves, so that doesn't count.)
+        if (frac != null)
+        {
+            System.err.println("Lost a worker ("+(reason instanceof EOFException ? "it hung up"
+                                                                 : reason.getMessage())+").");
+            failures++;
+        }
+        if (tile != NO_MORE_TILES && dropCopy(tile))
+        {
+            startTimes.remove(tile);
+            if (frac != null && !frac.isTileDone(tile))
+                pending.addFirst(tile);
+        }
+        notifyAll();
+    }
+
+    /**
+     * notes that one of the copies of a tile has come back (or been lost).
+     * @return whether that was the last copy out.
+     */
+    private boolean dropCopy(int tile)
+    {
+        Integer left = copies.computeIfPresent(tile, (t, n) -> n > 1 ? n - 1 : null);
+        return left == null;
+    }
+
+    /**
+     * packs a tile's counts for sending: little-endian ints, deflated. Neighboring counts are mostly the same (and
+     * the inside of the set is all zeros), so this usually shrinks them a lot.
+     * @return the compressed bytes.
+     */
+    public static byte[] compress(int[] counts, int length)
+    {
+        ByteBuffer raw = ByteBuffer.allocate(length*4).order(ByteOrder.LITTLE_ENDIAN);
+        raw.asIntBuffer().put(counts, 0, length);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(raw.array());
+        deflater.finish();
+        byte[] buffer = new byte[length*4 + 64];
+        int size = 0;
+        while (!deflater.finished())
+        {
+            if (size == buffer.length)
+                buffer = Arrays.copyOf(buffer, buffer.length*2);
+            size += deflater.deflate(buffer, size, buffer.length - size);
+        }
+        deflater.end();
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * unpacks counts packed by compress().
+     * @param counts - receives the counts
+     * @param length - how many counts there should be
+     */
+    public static void decompress(byte[] compressed, int[] counts, int length) throws DataFormatException
+    {
+        byte[] raw = new byte[length*4];
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        int size = 0;
+        while (size < raw.length && !inflater.finished())
+        {
+            int got = inflater.inflate(raw, size, raw.length - size);
+            if (got == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                break;
+            size += got;
+        }
+        boolean complete = inflater.finished() && inflater.getRemaining() == 0;
+        inflater.end();
+        if (size != raw.length || !complete)
+            throw new DataFormatException("a tile's counts were the wrong length.");
+        ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(counts, 0, length);
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * A ticket for one render of the panel. Every time something changes that means the picture must be redrawn (the
+ * bounds, the size, the scan, the palette...), the panel bumps its generation number, cancels the job in progress
+ * and starts a new one. The scans check isCancelled() often, so a job that has been superseded stops promptly, and
+ * nothing it calculated after being cancelled is drawn.
+ *
+ * Some changes (palette, color cycling, equalization) don't need anything calculated, just the counts we already
+ * have colored in again; those get a "recolor only" job.
+ */
+public class RenderJob
+{
+    private final long generation;
+    private final boolean recolorOnly;
+    private volatile boolean cancelled;
+
+    /**
+     * @param generation - which change this job is drawing; later jobs have higher numbers.
+     */
+    public RenderJob(long generation)
+    {
+        this(generation, false);
+    }
+
+    /**
+     * @param generation - which change this job is drawing; later jobs have higher numbers.
+     * @param recolorOnly - whether this job only colors in the frame on screen again, rather than drawing a new one.
+     */
+    public RenderJob(long generation, boolean recolorOnly)
+    {
+        this.generation = generation;
+        this.recolorOnly = recolorOnly;
+    }
+
+    public long getGeneration() {return generation;}
+    public boolean isRecolorOnly() {return recolorOnly;}
+
+    /**
+     * tells this job to stop as soon as it can. There is no taking this back.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {return cancelled;}
+}
@@ -0,0 +1,284 @@
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps score of how the renderer is doing: for each frame, how long it took, how many pixels were calculated,
+ * filled in without calculating (by the divide-and-conquer scan) or reused from the previous frame, how many
+ * iterations that took, how much of the frame was inside the set, and - if the frame was interrupted - how long the
+ * scan took to actually stop. It also counts how often a frame came straight from the frame cache.
+ *
+ * The scans report their work a row (or rectangle) at a time, from whichever threads are running them, so the
+ * counts are LongAdders: they spread the adding across threads, and nobody waits on anybody else.
+ * Iterations are counted from the escape counts, so a pixel that never escapes counts as maxCount iterations, even
+ * if the interior or periodicity checks let us stop early.
+ */
+public class RenderMetrics implements RenderMetricsMBean
+{
+    public static final String OBJECT_NAME = "RecursiveFractal:type=RenderMetrics";
+
+    // the frame in progress.
+    private final LongAdder computed = new LongAdder();
+    private final LongAdder filled = new LongAdder();
+    private final LongAdder iterations = new LongAdder();
+    private final LongAdder interior = new LongAdder();
+    private volatile boolean frameRunning;
+    private long frameStartNanos;
+    private String framePrecision = "";
+    private long reusedPixels, reusedIterations;
+    private final AtomicLong interruptRequestNanos = new AtomicLong();
+
+    // running totals.
+    private final LongAdder framesFinished = new LongAdder();
+    private final LongAdder framesInterrupted = new LongAdder();
+    private final LongAdder framesFromCache = new LongAdder();
+    private final LongAdder totalComputed = new LongAdder();
+    private final LongAdder totalIterations = new LongAdder();
+
+    private volatile FrameSummary lastFrame = new FrameSummary("", false, 0, 0, 0, 0, 0, 0, -1);
+
+    /**
+     * the numbers for one frame, once it has stopped.
+     */
+    private static class FrameSummary
+    {
+        final String precision;
+        final boolean interrupted;
+        final long nanos, computed, filled, reused, iterations, interior, interruptLatencyNanos;
+
+        FrameSummary(String precision, boolean interrupted, long nanos, long computed, long filled, long reused,
+                     long iterations, long interior, long interruptLatencyNanos)
+        {
+            this.precision = precision;
+            this.interrupted = interrupted;
+            this.nanos = nanos;
+            this.computed = computed;
+            this.filled = filled;
+            this.reused = reused;
+            this.iterations = iterations;
+            this.interior = interior;
+            this.interruptLatencyNanos = interruptLatencyNanos;
+        }
+    }
+
+    /**
+     * publishes these metrics through the platform MBean server, so JConsole and friends can see them.
+     */
+    public void register()
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e)
+        {
+            // another panel got there first; its numbers are just as good.
+        } catch (JMException e)
+        {
+            System.out.println("Couldn't register the render metrics with JMX.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * starts counting a new frame that is about to be calculated.
+     * @param view - the frame
+     * @param carriedOver - counts reused from the previous frame, or null. These pass through the scans like any
+     *                    other pixel, so we note them here and take them back out of the calculated pixels at the end.
+     */
+    public void beginFrame(FractalView view, FrameReprojection carriedOver)
+    {
+        computed.reset();
+        filled.reset();
+        iterations.reset();
+        interior.reset();
+        interruptRequestNanos.set(0);
+        framePrecision = FractalView.PRECISION_NAMES[view.getPrecision()];
+        reusedPixels = 0;
+        reusedIterations = 0;
+        if (carriedOver != null)
+        {
+            int maxCount = view.getKernel().getMaxCount();
+            for (int y = 0; y < view.getHeight(); y++)
+                for (int x = 0; x < view.getWidth(); x++)
+                    if (carriedOver.isExact(x, y))
+                    {
+                        reusedPixels++;
+                        reusedIterations += iterationsFor(carriedOver.getCount(x, y), maxCount);
+                    }
+        }
+        frameStartNanos = System.nanoTime();
+        frameRunning = true;
+    }
+
+    /**
+     * @return the number of iterations a pixel with the given count took, counting a pixel that never escaped
+     * as maxCount iterations.
+     */
+    public static int iterationsFor(int count, int maxCount)
+    {
+        return count == 0 ? maxCount : count;
+    }
+
+    /**
+     * records some pixels that a scan has calculated.
+     * @param pixels - how many pixels
+     * @param pixelIterations - their iterations, added up
+     * @param interiorPixels - how many of them never escaped
+     */
+    public void recordCalculated(long pixels, long pixelIterations, long interiorPixels)
+    {
+        computed.add(pixels);
+        iterations.add(pixelIterations);
+        interior.add(interiorPixels);
+    }
+
+    /**
+     * records some pixels that a scan filled in without calculating them.
+     */
+    public void recordFilled(long pixels)
+    {
+        filled.add(pixels);
+    }
+
+    /**
+     * notes that the panel has asked the scan in progress to stop. Only the first request of a frame counts, since
+     * that is when the waiting starts.
+     */
+    public void interruptRequested()
+    {
+        if (frameRunning)
+            interruptRequestNanos.compareAndSet(0, System.nanoTime());
+    }
+
+    /**
+     * finishes counting the current frame.
+     * @param interrupted - whether the scan stopped early
+     */
+    public void endFrame(boolean interrupted)
+    {
+        long now = System.nanoTime();
+        frameRunning = false;
+        long requested = interruptRequestNanos.get();
+        long latency = interrupted && requested != 0 ? now - requested : -1;
+        // reused pixels went through the scan's tally too, but we didn't calculate them. (If the frame was
+        // interrupted, we don't know how many of them the scan got to, so this is only a rough figure.)
+        long calculated = Math.max(0, computed.sum() - reusedPixels);
+        long calculatedIterations = Math.max(0, iterations.sum() - reusedIterations);
+        long reused = Math.min(reusedPixels, computed.sum());
+        lastFrame = new FrameSummary(framePrecision, interrupted, now - frameStartNanos, calculated, filled.sum(),
+                                     reused, calculatedIterations, interior.sum(), latency);
+        totalComputed.add(calculated);
+        totalIterations.add(calculatedIterations);
+        if (interrupted)
+            framesInterrupted.increment();
+        else
+            framesFinished.increment();
+    }
+
+    /**
+     * records a frame that came straight out of the frame cache, without any calculating.
+     */
+    public void frameFromCache(FractalView view)
+    {
+        framesFromCache.increment();
+        lastFrame = new FrameSummary(FractalView.PRECISION_NAMES[view.getPrecision()], false, 0, 0, 0,
+                                     (long)view.getWidth()*view.getHeight(), 0, 0, -1);
+    }
+
+    @Override
+    public long getFramesFinished() {return framesFinished.sum();}
+
+    @Override
+    public long getFramesInterrupted() {return framesInterrupted.sum();}
+
+    @Override
+    public long getFramesFromCache() {return framesFromCache.sum();}
+
+    /**
+     * @return the fraction of frames that came from the frame cache, rather than being calculated.
+     */
+    @Override
+    public double getCacheHitRate()
+    {
+        long hits = framesFromCache.sum();
+        long lookups = hits + framesFinished.sum() + framesInterrupted.sum();
+        return lookups == 0 ? 0 : (double)hits / lookups;
+    }
+
+    @Override
+    public String getLastFramePrecision() {return lastFrame.precision;}
+
+    @Override
+    public boolean isLastFrameInterrupted() {return lastFrame.interrupted;}
+
+    @Override
+    public double getLastFrameMillis() {return lastFrame.nanos / 1e6;}
+
+    @Override
+    public long getLastPixelsComputed() {return lastFrame.computed;}
+
+    @Override
+    public long getLastPixelsFilled() {return lastFrame.filled;}
+
+    @Override
+    public long getLastPixelsReused() {return lastFrame.reused;}
+
+    @Override
+    public long getLastIterations() {return lastFrame.iterations;}
+
+    @Override
+    public double getLastIterationsPerSecond()
+    {
+        FrameSummary frame = lastFrame;
+        return frame.nanos == 0 ? 0 : frame.iterations * 1e9 / frame.nanos;
+    }
+
+    /**
+     * @return the fraction of the calculated pixels in the last frame that never escaped.
+     */
+    @Override
+    public double getLastInteriorRatio()
+    {
+        FrameSummary frame = lastFrame;
+        long pixels = frame.computed + frame.reused;
+        return pixels == 0 ? 0 : (double)frame.interior / pixels;
+    }
+
+    /**
+     * @return how long the last frame took to stop after it was asked to, in milliseconds, or -1 if it wasn't
+     * interrupted.
+     */
+    @Override
+    public double getLastInterruptLatencyMillis()
+    {
+        long latency = lastFrame.interruptLatencyNanos;
+        return latency < 0 ? -1 : latency / 1e6;
+    }
+
+    @Override
+    public long getTotalPixelsComputed() {return totalComputed.sum();}
+
+    @Override
+    public long getTotalIterations() {return totalIterations.sum();}
+
+    /**
+     * @return a few lines describing the last frame, for the on-screen overlay.
+     */
+    public String[] getSummaryLines()
+    {
+        FrameSummary frame = lastFrame;
+        String status = frame.interrupted ? String.format("interrupted, stopped in %.1f ms", getLastInterruptLatencyMillis())
+                                          : "finished";
+        return new String[] {
+                String.format("Last frame: %.1f ms, %s (%s)", frame.nanos / 1e6, status, frame.precision),
+                String.format("Pixels: %,d calculated, %,d filled, %,d reused", frame.computed, frame.filled, frame.reused),
+                String.format("Iterations: %,d (%.1f M/s), %.1f%% interior", frame.iterations,
+                              getLastIterationsPerSecond() / 1e6, 100*getLastInteriorRatio()),
+                String.format("Frames: %d finished, %d interrupted, %d cached (%.0f%% hit rate)", getFramesFinished(),
+                              getFramesInterrupted(), getFramesFromCache(), 100*getCacheHitRate())
+        };
+    }
+}
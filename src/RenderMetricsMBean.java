@@ -0,0 +1,25 @@
+/**
+ * What RenderMetrics shows through JMX (e.g. in JConsole or VisualVM, under "RecursiveFractal"). The "last frame"
+ * values describe the most recent frame to stop, whether it finished or was interrupted.
+ */
+public interface RenderMetricsMBean
+{
+    long getFramesFinished();
+    long getFramesInterrupted();
+    long getFramesFromCache();
+    double getCacheHitRate();
+
+    String getLastFramePrecision();
+    boolean isLastFrameInterrupted();
+    double getLastFrameMillis();
+    long getLastPixelsComputed();
+    long getLastPixelsFilled();
+    long getLastPixelsReused();
+    long getLastIterations();
+    double getLastIterationsPerSecond();
+    double getLastInteriorRatio();
+    double getLastInterruptLatencyMillis();
+
+    long getTotalPixelsComputed();
+    long getTotalIterations();
+}
@@ -0,0 +1,153 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.Socket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * One of the worker processes of a RenderFarm: connects to the coordinator, finds out which frame we are drawing,
+ * and then calculates whatever tiles it is sent (with all of this process's threads on each tile) until it is told
+ * there are no more. (See RenderFarm for the protocol.)
+ *
+ * The coordinator starts these itself on its own machine. To lend another machine to a render, start one there
+ * with the coordinator's address (the coordinator needs --port, so we know where to find it).
+ *
+ * Usage: java RecursiveFractalRunner --worker HOST:PORT [--threads N]
+ */
+public class RenderWorker
+{
+    private final FractalView view;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param view - the frame we are drawing tiles of
+     * @param threads - how many threads to calculate each tile with
+     */
+    public RenderWorker(FractalView view, int threads)
+    {
+        this.view = view;
+        this.pool = new ForkJoinPool(Math.max(1, threads));
+    }
+
+    /**
+     * calculates one tile's counts, with the rows spread across the pool.
+     * @param counts - receives the counts, row by row, width counts to a row
+     */
+    public void calculateTile(int left, int top, int width, int height, int[] counts) throws IOException
+    {
+        try
+        {
+            pool.submit(() -> IntStream.range(0, height).parallel().forEach(row ->
+            {
+                for (int x = 0; x < width; x++)
+                    counts[row*width + x] = view.countAt(left + x, top + row);
+            })).get();
+        } catch (InterruptedException | ExecutionException e)
+        {
+            throw new IOException("Calculating a tile failed.", e);
+        }
+    }
+
+    /**
+     * talks to the coordinator until it says we're finished.
+     */
+    public static void work(String host, int port, int threads) throws IOException
+    {
+        try (Socket socket = new Socket(host, port))
+        {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(RenderFarm.MAGIC);
+            out.writeInt(RenderFarm.VERSION);
+            out.flush();
+            if (in.readInt() != RenderFarm.MAGIC || in.readInt() != RenderFarm.VERSION)
+                throw new IOException("That isn't a render farm coordinator (or it's a different version).");
+            BigDecimal minRe = new BigDecimal(in.readUTF()), minIm = new BigDecimal(in.readUTF());
+            BigDecimal maxRe = new BigDecimal(in.readUTF()), maxIm = new BigDecimal(in.readUTF());
+            ComplexRange bounds = new ComplexRange(new BigComplex(minRe, minIm), new BigComplex(maxRe, maxIm));
+            int width = in.readInt(), height = in.readInt(), maxCount = in.readInt(), precision = in.readInt();
+            MandelbrotKernel kernel = new MandelbrotKernel(maxCount, MandelbrotKernel.DEFAULT_THRESHOLD_SQUARED,
+                                                           true, true);
+            FractalView view = new FractalView(bounds, width, height, kernel,
+                                               precision == FractalView.PRECISION_FLOAT);
+            // (the coordinator's counts must all be worked out the same way, or the tiles won't match up.)
+            if (view.getPrecision() != precision)
+                throw new IOException("We can't draw this frame in "+FractalView.PRECISION_NAMES[precision]+".");
+            RenderWorker worker = new RenderWorker(view, threads);
+            try
+            {
+                int[] counts = new int[0];
+                int tile;
+                while ((tile = in.readInt()) != RenderFarm.NO_MORE_TILES)
+                {
+                    int left = in.readInt(), top = in.readInt(), tileWidth = in.readInt(), tileHeight = in.readInt();
+                    if (counts.length < tileWidth*tileHeight)
+                        counts = new int[tileWidth*tileHeight];
+                    worker.calculateTile(left, top, tileWidth, tileHeight, counts);
+                    byte[] compressed = RenderFarm.compress(counts, tileWidth*tileHeight);
+                    out.writeInt(tile);
+                    out.writeInt(compressed.length);
+                    out.write(compressed);
+                    out.flush();
+                }
+            } finally
+            {
+                worker.pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * the worker's entry point (see the usage above).
+     */
+    public static void main(String[] args)
+    {
+        System.setProperty("java.awt.headless", "true");
+        String host = null;
+        int port = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                switch (args[i])
+                {
+                    case "--worker":
+                        String address = args[++i];
+                        int colon = address.lastIndexOf(':');
+                        host = address.substring(0, colon);
+                        port = Integer.parseInt(address.substring(colon+1));
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: "+args[i]);
+                }
+            }
+            if (host == null)
+                throw new IllegalArgumentException("No coordinator given (--worker).");
+            work(host, port, threads);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e)
+        {
+            System.err.println("Problem with the command line: "+e.getMessage());
+            System.err.println("Usage: --worker HOST:PORT [--threads N]");
+            System.exit(1);
+        } catch (EOFException eofExp)
+        {
+            // the coordinator hung up on us; it's finished (or gone), so we are too.
+        } catch (IOException ioExp)
+        {
+            System.err.println("Problem talking to the render farm.");
+            ioExp.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
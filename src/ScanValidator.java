@@ -0,0 +1,150 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks the scans that skip pixels (pixelated, divide-and-conquer, boundary trace, distance guided and nearest first)
+ * against the traditional scan, which calculates every pixel, over a set of views of each formula: every count (and,
+ * with smooth coloring, the fraction of every pixel that escapes) has to come out exactly the same. For each scan we
+ * also report how many of the pixels it actually calculated, which is the whole point of skipping them.
+ *
+ * The scans that skip pixels assume that a patch of one count has no islands of another count in it too small to
+ * touch the pixels they do calculate; where that isn't so (a lone pixel that escapes, say, with all its neighbors in
+ * the set), this is where it shows up. Only the distance-guided scan checks that assumption rather than trusting it,
+ * by calculating anything its distance estimates can't vouch for.
+ *
+ * Usage: java ScanValidator [--size N] [--max-count N]
+ *   --size N       render N x N pixel frames (default 400)
+ *   --max-count N  the maxCount to render with (default 1024)
+ * Exits with status 1 if any scan gave a different frame.
+ */
+public class ScanValidator
+{
+    private final int size, maxCount;
+    private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    public ScanValidator(int size, int maxCount)
+    {
+        this.size = size;
+        this.maxCount = maxCount;
+    }
+
+    /**
+     * a scanner that keeps track of how many pixels it calculated, rather than filled in.
+     */
+    private static class CountingScanner extends FractalScanner
+    {
+        private final AtomicLong calculated = new AtomicLong();
+
+        public CountingScanner(FractalView view, EscapeCountBuffer counts, ForkJoinPool pool)
+        {
+            super(view, counts, pool);
+        }
+
+        @Override
+        protected void countPixels(int[] xs, int[] ys, int[] pixelCounts, int length)
+        {
+            calculated.addAndGet(length);
+            super.countPixels(xs, ys, pixelCounts, length);
+        }
+
+        public long getCalculated() {return calculated.get();}
+    }
+
+    /**
+     * @return a square ComplexRange of the given width, centered on (x, y).
+     */
+    private static ComplexRange around(double x, double y, double width)
+    {
+        return new ComplexRange(new Complex(x - width/2, y - width/2), new Complex(x + width/2, y + width/2));
+    }
+
+    /**
+     * renders one view with every scan, and compares each with the traditional scan.
+     * @param name - what to call the view in the report
+     * @param kernel - the formula to render
+     * @param bounds - the part of the plane to render
+     * @param smooth - whether to work out smooth-coloring fractions too
+     * @return the number of scans that didn't match.
+     */
+    private int validate(String name, FractalKernel kernel, ComplexRange bounds, boolean smooth)
+    {
+        FractalView view = new FractalView(bounds, size, size, kernel, false);
+        EscapeCountBuffer reference = new EscapeCountBuffer(size, size, smooth);
+        new FractalScanner(view, reference, pool).scan(FractalScanner.MODE_TRADITIONAL);
+
+        int failures = 0;
+        for (int mode = 0; mode < FractalScanner.MODE_NAMES.length; mode++)
+        {
+            if (mode == FractalScanner.MODE_TRADITIONAL)
+                continue;
+            EscapeCountBuffer counts = new EscapeCountBuffer(size, size, smooth);
+            CountingScanner scanner = new CountingScanner(view, counts, pool);
+            long start = System.nanoTime();
+            scanner.scan(mode);
+            double millis = (System.nanoTime() - start) / 1e6;
+
+            // (the fractions of pixels with a count of zero are never used, so they don't have to match.)
+            int[] countArray = counts.getCounts(), referenceCounts = reference.getCounts();
+            int differences = 0;
+            for (int i = 0; i < size*size; i++)
+                if (countArray[i] != referenceCounts[i] ||
+                    (smooth && referenceCounts[i] > 0 && counts.getFractions()[i] != reference.getFractions()[i]))
+                    differences++;
+            if (differences > 0)
+                failures++;
+            System.out.printf("%-36s %-20s %8d different  %5.1f%% calculated  %8.1f ms%s%n", name,
+                              FractalScanner.MODE_NAMES[mode], differences,
+                              100.0 * scanner.getCalculated() / (size*size), millis, differences > 0 ? "  FAIL" : "");
+        }
+        return failures;
+    }
+
+    /**
+     * checks every scan over every view.
+     * @return the number of scans that didn't match.
+     */
+    public int validateAll()
+    {
+        double threshold = MandelbrotKernel.DEFAULT_THRESHOLD_SQUARED;
+        MandelbrotKernel mandelbrot = new MandelbrotKernel(maxCount, threshold, true, true);
+        List<Object[]> views = new ArrayList<Object[]>();
+        views.add(new Object[] {"Mandelbrot default", mandelbrot, around(0, 0, 4)});
+        views.add(new Object[] {"Mandelbrot seahorse valley", mandelbrot, around(-0.7435, 0.1314, 0.002)});
+        views.add(new Object[] {"Mandelbrot exterior", mandelbrot, around(1.5, 1.5, 0.4)});
+        views.add(new Object[] {"Mandelbrot minibrot", mandelbrot, around(-1.7686, 0.0017, 0.01)});
+        views.add(new Object[] {"Julia default", new JuliaKernel(maxCount, threshold, true,
+                                RecursiveFractalPanel.DEFAULT_JULIA_R, RecursiveFractalPanel.DEFAULT_JULIA_I),
+                                around(0, 0, 4)});
+        views.add(new Object[] {"Multibrot 3 default", new MultibrotKernel(maxCount, threshold, true, 3),
+                                around(0, 0, 4)});
+        views.add(new Object[] {"Burning Ship default", new BurningShipKernel(maxCount, threshold, true),
+                                around(-0.4, -0.5, 4)});
+
+        System.out.println("Frames are "+size+" x "+size+", maxCount "+maxCount+".");
+        int failures = 0;
+        for (Object[] view : views)
+        {
+            failures += validate((String)view[0], (FractalKernel)view[1], (ComplexRange)view[2], false);
+            failures += validate(view[0] + " (smooth)", (FractalKernel)view[1], (ComplexRange)view[2], true);
+        }
+        pool.shutdown();
+        System.out.println(failures == 0 ? "Every scan matched." : failures+" scan(s) did not match.");
+        return failures;
+    }
+
+    public static void main(String[] args)
+    {
+        System.setProperty("java.awt.headless", "true");
+        int size = 400, maxCount = 1024;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("--size") && i+1 < args.length)
+                size = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--max-count") && i+1 < args.length)
+                maxCount = Integer.parseInt(args[++i]);
+        }
+        System.exit(new ScanValidator(size, maxCount).validateAll() == 0 ? 0 : 1);
+    }
+}
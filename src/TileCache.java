@@ -0,0 +1,553 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Escape counts saved on disk in square tiles, so that the views people keep coming back to (Seahorse Valley, say)
+ * are drawn from disk rather than calculated again - in this session or any later one.
+ *
+ * The tiles sit on a fixed grid, a quadtree over the default view: level 0 is the square from (-2, -2) to (2, 2) as
+ * a single tile of TILE_SIZE x TILE_SIZE pixels, and each level after that has twice as many tiles across, each half
+ * the size. A frame is "on the grid" if its pixels are exactly the size of one level's, and its top left pixel is
+ * exactly one of that level's pixels (the default view, and anything reached from it by halving the width and moving
+ * whole pixels, are). A frame on the grid can be cut up into that level's tiles, and the tiles can be shared with any
+ * other frame on the same level, wherever its edges are. (A frame computes each pixel's point from its own corner,
+ * so two frames can disagree on a point in the last bit - which, like reusing counts from the last frame, can very
+ * occasionally change a count right on the edge of the set.)
+ *
+ * A frame usually only covers part of the tiles around its edges, so each tile remembers which of its pixels we
+ * have counts for, and saving more of a tile later adds to them.
+ *
+ * Each tile is a file of its own, under a folder for everything that decides its counts (see keyFor()), then one
+ * for its level. The layout, all little-endian:
+ * - "TILE", version, level, the tile's column and row on the grid (as longs), then the key as length-prefixed UTF-8,
+ * - which pixels are known, one bit each (bit i of long i/64 for pixel i, row by row),
+ * - the counts, TILE_SIZE x TILE_SIZE ints, row by row (zero where they aren't known),
+ * - a CRC-32 of everything before it.
+ * A file whose header doesn't match where we found it, or whose checksum is wrong, is deleted and counted as a miss.
+ * Files are written under another name and then renamed, so nobody ever reads half of one.
+ *
+ * The folder is kept under maxBytes by deleting the tiles used longest ago. Using a tile updates its file's modified
+ * time, so that the order survives restarts (and is shared with other sessions using the same folder).
+ */
+public class TileCache
+{
+    public static final int TILE_SIZE = 256;
+    public static final long DEFAULT_MAX_BYTES = 256L<<20;
+    private static final String EXTENSION = ".tile";
+    private static final int MAGIC = 0x454C4954; // "TILE", little-endian.
+    private static final int VERSION = 1;
+    // the grid's top left corner, and how wide level 0 is.
+    private static final BigDecimal GRID_LEFT = new BigDecimal(-2), GRID_TOP = new BigDecimal(2);
+    private static final BigDecimal GRID_SPAN = new BigDecimal(4);
+    // deeper than this and the pixel positions wouldn't fit in a long. (It is well past where doubles give out.)
+    private static final int MAX_LEVEL = 48;
+    // half-written files older than this are from a session that crashed, and can go.
+    private static final long STALE_TEMP_MILLIS = 60_000;
+
+    private final Path directory;
+    private final long maxBytes;
+    // every tile file we know about, and its size, least recently used first. (Guarded by this.)
+    private final LinkedHashMap<Path, Long> files = new LinkedHashMap<Path, Long>(16, 0.75f, true);
+    private long bytesUsed;
+    private long hits, misses, damaged;
+    // saving finished frames happens on a thread of its own, so that the render thread never waits for the disk.
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable ->
+    {
+        Thread thread = new Thread(runnable, "tile cache writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * opens the cache in the given folder (making it, if it isn't there yet), and finds out what is in it already.
+     * @param directory - where to keep the tiles
+     * @param maxBytes - how much disk space the tiles may take up, in all
+     */
+    public TileCache(File directory, long maxBytes) throws IOException
+    {
+        this.directory = directory.toPath();
+        this.maxBytes = maxBytes;
+        Files.createDirectories(this.directory);
+        List<Path> found = new ArrayList<Path>();
+        long now = System.currentTimeMillis();
+        try (Stream<Path> walk = Files.walk(this.directory))
+        {
+            for (Path path : (Iterable<Path>)walk::iterator)
+            {
+                String name = path.getFileName().toString();
+                if (name.endsWith(EXTENSION))
+                    found.add(path);
+                else if (name.endsWith(".tmp") && now - lastModified(path) > STALE_TEMP_MILLIS)
+                    Files.deleteIfExists(path);
+            }
+        } catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+        // oldest first, which is the order the LinkedHashMap keeps them in.
+        found.sort(Comparator.comparingLong(TileCache::lastModified));
+        for (Path path : found)
+        {
+            try
+            {
+                record(path, Files.size(path));
+            } catch (IOException e)
+            {
+                // another session has just deleted it.
+            }
+        }
+        evict();
+    }
+
+    /**
+     * @return the usual place for the cache: a folder in the user's home folder.
+     */
+    public static File getDefaultDirectory()
+    {
+        return new File(System.getProperty("user.home"), ".recursivefractal" + File.separator + "tiles");
+    }
+
+    private static long lastModified(Path path)
+    {
+        try
+        {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * @return everything that decides a tile's counts, apart from where it is: the formula, maxCount, the escape
+     * threshold, the precision, and the scan that drew it (the divide-and-conquer scan, for one, can fill in areas
+     * that a full scan would not).
+     */
+    public static String keyFor(FractalView view, int scanMode)
+    {
+        FractalKernel kernel = view.getKernel();
+        return kernel.getName() + ", maxCount " + kernel.getMaxCount() + ", threshold " +
+               kernel.getThresholdSquared() + ", " + FractalView.PRECISION_NAMES[view.getPrecision()] + ", " +
+               FractalScanner.MODE_NAMES[scanMode];
+    }
+
+    /**
+     * Where a frame sits on the grid: its level, and the position of its top left pixel, in that level's pixels
+     * from the grid's top left corner.
+     */
+    public static class Placement
+    {
+        public final int level;
+        public final long left, top;
+        public final int width, height;
+
+        public Placement(int level, long left, long top, int width, int height)
+        {
+            this.level = level;
+            this.left = left;
+            this.top = top;
+            this.width = width;
+            this.height = height;
+        }
+
+        public long getFirstColumn() {return Math.floorDiv(left, TILE_SIZE);}
+        public long getLastColumn() {return Math.floorDiv(left + width - 1, TILE_SIZE);}
+        public long getFirstRow() {return Math.floorDiv(top, TILE_SIZE);}
+        public long getLastRow() {return Math.floorDiv(top + height - 1, TILE_SIZE);}
+    }
+
+    /**
+     * works out whether a frame is on the grid, exactly, from its full-precision bounds.
+     * @return where it is on the grid, or null if it isn't.
+     */
+    public static Placement place(FractalView view)
+    {
+        ComplexRange bounds = view.getBounds();
+        BigDecimal minX = bounds.getPreciseMin().getReal();
+        BigDecimal maxY = bounds.getPreciseMax().getImaginary();
+        BigDecimal spanX = bounds.getPreciseMax().getReal().subtract(minX);
+        BigDecimal spanY = maxY.subtract(bounds.getPreciseMin().getImaginary());
+        if (spanX.signum() <= 0 || view.getWidth() <= 0 || view.getHeight() <= 0)
+            return null;
+        // guess the level from the pixel size in doubles, then check it exactly.
+        double pitch = spanX.doubleValue() / view.getWidth();
+        int level = (int)Math.round(Math.log(GRID_SPAN.doubleValue() / TILE_SIZE / pitch) / Math.log(2));
+        if (level < 0 || level > MAX_LEVEL)
+            return null;
+        // (dividing by powers of two always comes out exactly in decimal.)
+        BigDecimal gridPitch = GRID_SPAN.divide(new BigDecimal(BigInteger.valueOf(TILE_SIZE).shiftLeft(level)));
+        if (spanX.compareTo(gridPitch.multiply(new BigDecimal(view.getWidth()))) != 0 ||
+            spanY.compareTo(gridPitch.multiply(new BigDecimal(view.getHeight()))) != 0)
+            return null;
+        BigDecimal[] left = minX.subtract(GRID_LEFT).divideAndRemainder(gridPitch);
+        BigDecimal[] top = GRID_TOP.subtract(maxY).divideAndRemainder(gridPitch);
+        if (left[1].signum() != 0 || top[1].signum() != 0)
+            return null;
+        try
+        {
+            return new Placement(level, left[0].longValueExact(), top[0].longValueExact(), view.getWidth(),
+                                 view.getHeight());
+        } catch (ArithmeticException e)
+        {
+            return null; // (so far off the grid that the position doesn't fit in a long.)
+        }
+    }
+
+    /**
+     * @return the view on the grid nearest the given one, for a frame of the given size: the level whose pixels are
+     * nearest in size to the view's (the bigger way, if they aren't square), centered on the same point, to the
+     * nearest pixel.
+     */
+    public static ComplexRange snap(ComplexRange bounds, int width, int height)
+    {
+        BigDecimal minX = bounds.getPreciseMin().getReal(), maxX = bounds.getPreciseMax().getReal();
+        BigDecimal minY = bounds.getPreciseMin().getImaginary(), maxY = bounds.getPreciseMax().getImaginary();
+        double pitch = Math.max(maxX.subtract(minX).doubleValue() / width, maxY.subtract(minY).doubleValue() / height);
+        int level = (int)Math.round(Math.log(GRID_SPAN.doubleValue() / TILE_SIZE / pitch) / Math.log(2));
+        level = Math.max(0, Math.min(MAX_LEVEL, level));
+        BigDecimal gridPitch = GRID_SPAN.divide(new BigDecimal(BigInteger.valueOf(TILE_SIZE).shiftLeft(level)));
+        BigDecimal two = new BigDecimal(2);
+        BigDecimal centerX = minX.add(maxX).divide(two), centerY = minY.add(maxY).divide(two);
+        BigDecimal left = centerX.subtract(GRID_LEFT).divide(gridPitch, 0, RoundingMode.HALF_EVEN)
+                                 .subtract(new BigDecimal(width/2));
+        BigDecimal top = GRID_TOP.subtract(centerY).divide(gridPitch, 0, RoundingMode.HALF_EVEN)
+                                 .subtract(new BigDecimal(height/2));
+        BigDecimal newMinX = GRID_LEFT.add(gridPitch.multiply(left));
+        BigDecimal newMaxY = GRID_TOP.subtract(gridPitch.multiply(top));
+        return new ComplexRange(new BigComplex(newMinX, newMaxY.subtract(gridPitch.multiply(new BigDecimal(height)))),
+                                new BigComplex(newMinX.add(gridPitch.multiply(new BigDecimal(width))), newMaxY));
+    }
+
+    /**
+     * One tile's counts, and which of its pixels they cover.
+     */
+    private static class Tile
+    {
+        final long[] known; // one bit per pixel, TILE_SIZE*TILE_SIZE/64 longs.
+        final int[] counts; // TILE_SIZE x TILE_SIZE, row by row.
+
+        Tile()
+        {
+            this(new long[TILE_SIZE*TILE_SIZE/64], new int[TILE_SIZE*TILE_SIZE]);
+        }
+
+        Tile(long[] known, int[] counts)
+        {
+            this.known = known;
+            this.counts = counts;
+        }
+
+        boolean isKnown(int i) {return (known[i >>> 6] & (1L << i)) != 0;}
+
+        void setKnown(int i) {known[i >>> 6] |= 1L << i;}
+    }
+
+    private Path pathFor(String key, int level, long column, long row)
+    {
+        // (the key itself is checked against the file's header, so two keys that come out the same here are safe.)
+        String folder = key.replaceAll("[^A-Za-z0-9.+-]+", "_");
+        return directory.resolve(folder).resolve(Integer.toString(level)).resolve(column + "_" + row + EXTENSION);
+    }
+
+    /**
+     * fills in whatever parts of a frame on the grid we have counts for.
+     * @param key - what the frame's counts depend on (see keyFor())
+     * @param placement - where the frame is on the grid
+     * @param counts - receives the counts we have; the frame's size.
+     * @param known - set to true for each pixel we had a count for; the frame's size, y*width + x.
+     * @return how many pixels we had counts for.
+     */
+    public int readFrame(String key, Placement placement, EscapeCountBuffer counts, boolean[] known)
+    {
+        int found = 0;
+        for (long row = placement.getFirstRow(); row <= placement.getLastRow(); row++)
+            for (long column = placement.getFirstColumn(); column <= placement.getLastColumn(); column++)
+            {
+                Tile tile = readTile(key, placement.level, column, row, true);
+                if (tile == null)
+                    continue;
+                // the part of the tile in the frame, in the frame's pixels.
+                long tileLeft = column*TILE_SIZE - placement.left, tileTop = row*TILE_SIZE - placement.top;
+                int left = (int)Math.max(0, tileLeft), top = (int)Math.max(0, tileTop);
+                int right = (int)Math.min(placement.width, tileLeft + TILE_SIZE);
+                int bottom = (int)Math.min(placement.height, tileTop + TILE_SIZE);
+                for (int y = top; y < bottom; y++)
+                    for (int x = left; x < right; x++)
+                    {
+                        int i = (int)(y - tileTop)*TILE_SIZE + (int)(x - tileLeft);
+                        if (tile.isKnown(i) && !known[y*placement.width + x])
+                        {
+                            counts.set(x, y, tile.counts[i]);
+                            known[y*placement.width + x] = true;
+                            found++;
+                        }
+                    }
+            }
+        return found;
+    }
+
+    /**
+     * saves a finished frame's counts into every tile it covers any of, in the background. (Tiles that already
+     * have all of it are left alone.)
+     * @param key - what the frame's counts depend on (see keyFor())
+     * @param placement - where the frame is on the grid
+     * @param counts - the frame's counts. They mustn't change after this (the saving happens later).
+     */
+    public void saveFrameLater(String key, Placement placement, EscapeCountBuffer counts)
+    {
+        writer.execute(() ->
+        {
+            for (long row = placement.getFirstRow(); row <= placement.getLastRow(); row++)
+                for (long column = placement.getFirstColumn(); column <= placement.getLastColumn(); column++)
+                    saveTile(key, placement, column, row, counts);
+        });
+    }
+
+    /**
+     * saves the part of a frame that lies in one tile, adding it to what the tile already had.
+     */
+    private void saveTile(String key, Placement placement, long column, long row, EscapeCountBuffer counts)
+    {
+        // the part of the tile in the frame, in the frame's pixels.
+        long tileLeft = column*TILE_SIZE - placement.left, tileTop = row*TILE_SIZE - placement.top;
+        int left = (int)Math.max(0, tileLeft), top = (int)Math.max(0, tileTop);
+        int right = (int)Math.min(placement.width, tileLeft + TILE_SIZE);
+        int bottom = (int)Math.min(placement.height, tileTop + TILE_SIZE);
+
+        Tile tile = readTile(key, placement.level, column, row, false);
+        if (tile == null)
+            tile = new Tile();
+        boolean added = false;
+        for (int y = top; y < bottom; y++)
+            for (int x = left; x < right; x++)
+            {
+                int i = (int)(y - tileTop)*TILE_SIZE + (int)(x - tileLeft);
+                if (!tile.isKnown(i))
+                {
+                    tile.counts[i] = counts.get(x, y);
+                    tile.setKnown(i);
+                    added = true;
+                }
+            }
+        if (!added)
+            return;
+        try
+        {
+            writeTile(key, placement.level, column, row, tile);
+        } catch (IOException e)
+        {
+            System.out.println("Problem writing tile " + column + ", " + row + " to the tile cache.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * reads a tile, and checks it is whole and is the one we asked for; if it isn't, deletes it.
+     * @param use - whether this is a real use of the tile, which counts as a hit or miss and makes it the most
+     *            recently used, rather than just a look at what's already there.
+     * @return the tile, or null if we don't have it (or it was damaged).
+     */
+    private Tile readTile(String key, int level, long column, long row, boolean use)
+    {
+        Path file = pathFor(key, level, column, row);
+        byte[] bytes;
+        try
+        {
+            bytes = Files.readAllBytes(file);
+        } catch (IOException e)
+        {
+            if (use)
+                countMiss(); // (usually NoSuchFileException: we've never saved this tile.)
+            return null;
+        }
+        Tile tile = decode(bytes, key, level, column, row);
+        if (tile == null)
+        {
+            System.out.println("The tile cache's " + file + " is damaged; deleting it.");
+            synchronized (this)
+            {
+                damaged++;
+            }
+            forget(file);
+            if (use)
+                countMiss();
+            return null;
+        }
+        if (use)
+        {
+            synchronized (this)
+            {
+                hits++;
+                record(file, bytes.length); // (makes it the most recently used.)
+            }
+            try
+            {
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException e)
+            {
+                // not worth stopping for; it just may be evicted a little sooner than it should be.
+            }
+        }
+        return tile;
+    }
+
+    private synchronized void countMiss()
+    {
+        misses++;
+    }
+
+    /**
+     * @return the tile in the given file contents, or null if they are damaged or aren't the tile we asked for.
+     */
+    private static Tile decode(byte[] bytes, String key, int level, long column, long row)
+    {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length != getFileSize(keyBytes))
+            return null;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if ((int)crc.getValue() != buffer.getInt(bytes.length - 4))
+            return null;
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != level ||
+            buffer.getLong() != column || buffer.getLong() != row)
+            return null;
+        byte[] storedKey = new byte[buffer.getInt()];
+        if (storedKey.length != keyBytes.length)
+            return null;
+        buffer.get(storedKey);
+        if (!new String(storedKey, StandardCharsets.UTF_8).equals(key))
+            return null;
+        Tile tile = new Tile();
+        buffer.asLongBuffer().get(tile.known);
+        buffer.position(buffer.position() + 8*tile.known.length);
+        buffer.asIntBuffer().get(tile.counts);
+        return tile;
+    }
+
+    /**
+     * @return how long a tile's file is, with the given key.
+     */
+    private static int getFileSize(byte[] keyBytes)
+    {
+        return 4*3 + 8*2 + 4 + keyBytes.length + TILE_SIZE*TILE_SIZE/8 + 4*TILE_SIZE*TILE_SIZE + 4;
+    }
+
+    /**
+     * writes a tile to a file of its own under another name, then renames it into place.
+     */
+    private void writeTile(String key, int level, long column, long row, Tile tile) throws IOException
+    {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(getFileSize(keyBytes)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(level).putLong(column).putLong(row);
+        buffer.putInt(keyBytes.length).put(keyBytes);
+        buffer.asLongBuffer().put(tile.known);
+        buffer.position(buffer.position() + 8*tile.known.length);
+        buffer.asIntBuffer().put(tile.counts);
+        buffer.position(buffer.position() + 4*tile.counts.length);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int)crc.getValue());
+
+        Path file = pathFor(key, level, column, row);
+        Files.createDirectories(file.getParent());
+        Path temporary = Files.createTempFile(file.getParent(), "tile", ".tmp");
+        try
+        {
+            Files.write(temporary, buffer.array());
+            try
+            {
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally
+        {
+            Files.deleteIfExists(temporary);
+        }
+        synchronized (this)
+        {
+            record(file, buffer.capacity());
+            evict();
+        }
+    }
+
+    /**
+     * notes a file's size, and makes it the most recently used.
+     */
+    private synchronized void record(Path file, long size)
+    {
+        Long old = files.put(file, size);
+        if (old != null)
+            bytesUsed -= old;
+        bytesUsed += size;
+    }
+
+    /**
+     * deletes a file, and forgets about it.
+     */
+    private synchronized void forget(Path file)
+    {
+        Long old = files.remove(file);
+        if (old != null)
+            bytesUsed -= old;
+        try
+        {
+            Files.deleteIfExists(file);
+        } catch (IOException e)
+        {
+            System.out.println("Problem deleting " + file + " from the tile cache.");
+        }
+    }
+
+    /**
+     * deletes the tiles used longest ago, until we are back under budget.
+     */
+    private synchronized void evict()
+    {
+        Iterator<Map.Entry<Path, Long>> eldest = files.entrySet().iterator();
+        while (bytesUsed > maxBytes && eldest.hasNext())
+        {
+            Map.Entry<Path, Long> entry = eldest.next();
+            bytesUsed -= entry.getValue();
+            eldest.remove();
+            try
+            {
+                Files.deleteIfExists(entry.getKey());
+            } catch (IOException e)
+            {
+                System.out.println("Problem deleting " + entry.getKey() + " from the tile cache.");
+            }
+        }
+    }
+
+    public synchronized int size() {return files.size();}
+    public synchronized long getBytesUsed() {return bytesUsed;}
+    public synchronized long getHits() {return hits;}
+    public synchronized long getMisses() {return misses;}
+    public synchronized long getDamaged() {return damaged;}
+}